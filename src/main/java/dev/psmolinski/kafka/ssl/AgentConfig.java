@@ -0,0 +1,102 @@
+package dev.psmolinski.kafka.ssl;
+
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Agent settings passed as {@code -javaagent:kafka-ssl-fix.jar=key=value,key=value}.
+ * A key without value is treated as {@code true}.
+ * <p>
+ * When the classes are patched offline with {@link PatchJar} there is no agent
+ * and the settings are read from the {@code kafka.ssl.fix.options} system property.
+ */
+public class AgentConfig {
+
+    static final String OPTIONS_PROPERTY = "kafka.ssl.fix.options";
+
+    private static volatile AgentConfig current;
+
+    private final Map<String, String> settings;
+
+    private AgentConfig(Map<String, String> settings) {
+        this.settings = Collections.unmodifiableMap(settings);
+    }
+
+    public static AgentConfig parse(String agentArgs) {
+        Map<String, String> settings = new LinkedHashMap<>();
+        if (agentArgs != null) {
+            for (String entry : agentArgs.split(",")) {
+                String trimmed = entry.trim();
+                if (trimmed.isEmpty()) {
+                    continue;
+                }
+                int eq = trimmed.indexOf('=');
+                if (eq < 0) {
+                    settings.put(trimmed, "true");
+                } else {
+                    settings.put(trimmed.substring(0, eq).trim(), trimmed.substring(eq + 1).trim());
+                }
+            }
+        }
+        return new AgentConfig(settings);
+    }
+
+    /**
+     * Make the settings visible to the runtime helpers. Must be called before any
+     * of the patched classes is used.
+     */
+    static void install(AgentConfig config) {
+        current = config;
+    }
+
+    public static AgentConfig current() {
+        AgentConfig config = current;
+        if (config == null) {
+            synchronized (AgentConfig.class) {
+                if (current == null) {
+                    current = parse(System.getProperty(OPTIONS_PROPERTY));
+                }
+                config = current;
+            }
+        }
+        return config;
+    }
+
+    /**
+     * @return the settings with the value of the key set unless given explicitly
+     */
+    AgentConfig withDefault(String key, String value) {
+        if (settings.containsKey(key)) {
+            return this;
+        }
+        Map<String, String> settings = new LinkedHashMap<>(this.settings);
+        settings.put(key, value);
+        return new AgentConfig(settings);
+    }
+
+    public Map<String, String> settings() {
+        return settings;
+    }
+
+    public String getString(String key, String defaultValue) {
+        String value = settings.get(key);
+        return value != null ? value : defaultValue;
+    }
+
+    public int getInt(String key, int defaultValue) {
+        String value = settings.get(key);
+        return value != null ? Integer.parseInt(value) : defaultValue;
+    }
+
+    public long getLong(String key, long defaultValue) {
+        String value = settings.get(key);
+        return value != null ? Long.parseLong(value) : defaultValue;
+    }
+
+    public boolean getBoolean(String key, boolean defaultValue) {
+        String value = settings.get(key);
+        return value != null ? Boolean.parseBoolean(value) : defaultValue;
+    }
+
+}
@@ -0,0 +1,300 @@
+package dev.psmolinski.kafka.ssl;
+
+import javax.management.ObjectName;
+import java.lang.management.ManagementFactory;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Self telemetry of the agent: the transformer cost, the patched classes, the parameter
+ * nullifications and the store load timings. The counters are {@link LongAdder}s, so that
+ * the clients created concurrently do not contend on them.
+ * <p>
+ * The telemetry is enabled with {@code telemetry=true}. The MBean is then registered by
+ * {@code premain} and {@code agentmain}; in the offline patched jar when the injected
+ * code first runs.
+ */
+public class AgentTelemetry implements AgentTelemetryMXBean {
+
+    static final String OBJECT_NAME = "dev.psmolinski.kafka.ssl:type=Agent";
+
+    private static final LongAdder transformCalls = new LongAdder();
+    private static final LongAdder transformNanos = new LongAdder();
+
+    private static final Set<String> patchedClasses = ConcurrentHashMap.newKeySet();
+
+    private static final LongAdder stringNullifications = new LongAdder();
+    private static final LongAdder passwordNullifications = new LongAdder();
+
+    private static final LongAdder keystoreLoads = new LongAdder();
+    private static final LongAdder keystoreLoadNanos = new LongAdder();
+    private static final LongAdder truststoreLoads = new LongAdder();
+    private static final LongAdder truststoreLoadNanos = new LongAdder();
+
+    private static final int MAX_STORES = 256;
+    private static final Map<String, Long> lastStoreLoadMicros = new ConcurrentHashMap<>();
+
+    // store load in progress on the current thread
+    private static final ThreadLocal<StoreLoad> storeLoad = ThreadLocal.withInitial(StoreLoad::new);
+
+    private static boolean registered;
+
+    static {
+        if (enabled(AgentConfig.current())) {
+            register();
+        }
+    }
+
+    /**
+     * Make sure the MBean is registered.
+     */
+    static synchronized void register() {
+        if (registered) {
+            return;
+        }
+        registered = true;
+        try {
+            ManagementFactory.getPlatformMBeanServer().registerMBean(new AgentTelemetry(), new ObjectName(OBJECT_NAME));
+        } catch (Exception e) {
+            // already registered by another copy of the agent classes or no JMX
+        }
+    }
+
+    static boolean enabled(AgentConfig config) {
+        return config.getBoolean("telemetry", false);
+    }
+
+    static void transformed(long nanos) {
+        transformCalls.increment();
+        transformNanos.add(nanos);
+    }
+
+    static void patched(String className) {
+        patchedClasses.add(className);
+    }
+
+    static void stringNullified() {
+        stringNullifications.increment();
+    }
+
+    static void passwordNullified() {
+        passwordNullifications.increment();
+    }
+
+    public static void storeLoadBegin(String kind, String type, String path) {
+        StoreLoad load = storeLoad.get();
+        // no store configured
+        load.kind = type != null || path != null ? kind : null;
+        load.path = path;
+        load.startNanos = System.nanoTime();
+    }
+
+    /**
+     * @return the store
+     */
+    public static Object storeLoadEnd(Object store) {
+        StoreLoad load = storeLoad.get();
+        if (load.kind == null) {
+            return store;
+        }
+        long nanos = System.nanoTime() - load.startNanos;
+        if ("keystore".equals(load.kind)) {
+            keystoreLoads.increment();
+            keystoreLoadNanos.add(nanos);
+        } else {
+            truststoreLoads.increment();
+            truststoreLoadNanos.add(nanos);
+        }
+        if (store != null) {
+            String key = load.kind + " " + (load.path != null ? load.path : "(inline)");
+            if (lastStoreLoadMicros.size() < MAX_STORES || lastStoreLoadMicros.containsKey(key)) {
+                lastStoreLoadMicros.put(key, nanos / 1000L);
+            }
+        }
+        load.kind = null;
+        load.path = null;
+        return store;
+    }
+
+    @Override
+    public long getTransformCalls() {
+        return transformCalls.sum();
+    }
+
+    @Override
+    public long getTransformNanos() {
+        return transformNanos.sum();
+    }
+
+    @Override
+    public String[] getPatchedClasses() {
+        return patchedClasses.toArray(new String[0]);
+    }
+
+    @Override
+    public boolean isFactoryPatched() {
+        return patchedClasses.contains(PatchDefaultSslEngineFactory.DEFAULT_SSL_ENGINE_FACTORY);
+    }
+
+    @Override
+    public long getStringNullifications() {
+        return stringNullifications.sum();
+    }
+
+    @Override
+    public long getPasswordNullifications() {
+        return passwordNullifications.sum();
+    }
+
+    @Override
+    public long getKeystoreLoads() {
+        return keystoreLoads.sum();
+    }
+
+    @Override
+    public long getKeystoreLoadNanos() {
+        return keystoreLoadNanos.sum();
+    }
+
+    @Override
+    public long getTruststoreLoads() {
+        return truststoreLoads.sum();
+    }
+
+    @Override
+    public long getTruststoreLoadNanos() {
+        return truststoreLoadNanos.sum();
+    }
+
+    @Override
+    public Map<String, Long> getLastStoreLoadMicros() {
+        return new TreeMap<>(lastStoreLoadMicros);
+    }
+
+    @Override
+    public long getKeystoreCacheHits() {
+        return SecurityStoreCache.hits();
+    }
+
+    @Override
+    public long getKeystoreCacheMisses() {
+        return SecurityStoreCache.misses();
+    }
+
+    @Override
+    public int getKeystoreCacheSize() {
+        return SecurityStoreCache.size();
+    }
+
+    @Override
+    public long getSharedSslContextHits() {
+        return SharedSslContextRegistry.hits();
+    }
+
+    @Override
+    public long getSharedSslContextMisses() {
+        return SharedSslContextRegistry.misses();
+    }
+
+    @Override
+    public int getSharedSslContexts() {
+        return SharedSslContextRegistry.size();
+    }
+
+    @Override
+    public long getTrustCacheHits() {
+        return CachingTrustManager.hits();
+    }
+
+    @Override
+    public long getTrustCacheMisses() {
+        return CachingTrustManager.misses();
+    }
+
+    @Override
+    public long getTrustIndexHits() {
+        return IndexedTrustManager.hits();
+    }
+
+    @Override
+    public long getTrustIndexMisses() {
+        return IndexedTrustManager.misses();
+    }
+
+    @Override
+    public long getSessionsResumed() {
+        return SessionResumption.resumed();
+    }
+
+    @Override
+    public long getSessionsFull() {
+        return SessionResumption.full();
+    }
+
+    @Override
+    public double getSessionResumptionRate() {
+        return SessionResumption.hitRate();
+    }
+
+    @Override
+    public long getWarmupNanos() {
+        return Warmup.durationNanos();
+    }
+
+    @Override
+    public Map<String, Long> getSslContextProviders() {
+        return JsseProviders.contexts();
+    }
+
+    @Override
+    public long getSslContextProviderFallbacks() {
+        return JsseProviders.fallbacks();
+    }
+
+    @Override
+    public Map<String, Double> getCipherSuiteThroughput() {
+        return CipherSuiteRanking.throughput();
+    }
+
+    @Override
+    public long getEagerHandshakes() {
+        return EagerHandshakes.completed();
+    }
+
+    @Override
+    public long getEagerHandshakeFailures() {
+        return EagerHandshakes.failed();
+    }
+
+    @Override
+    public long getDelegatedTasksOffloaded() {
+        return DelegatedTaskExecutor.offloaded();
+    }
+
+    @Override
+    public long getDelegatedTasksInline() {
+        return DelegatedTaskExecutor.inline();
+    }
+
+    @Override
+    public long getDelegatedTaskQueueNanos() {
+        return DelegatedTaskExecutor.queueNanos();
+    }
+
+    @Override
+    public long getDelegatedTaskNanos() {
+        return DelegatedTaskExecutor.taskNanos();
+    }
+
+    private static class StoreLoad {
+
+        String kind;
+        String path;
+        long startNanos;
+
+    }
+
+}
@@ -0,0 +1,164 @@
+package dev.psmolinski.kafka.ssl;
+
+import java.util.Map;
+
+/**
+ * What the agent did in this JVM, registered as {@code dev.psmolinski.kafka.ssl:type=Agent}.
+ */
+public interface AgentTelemetryMXBean {
+
+    /**
+     * @return number of the class file transformer callbacks
+     */
+    long getTransformCalls();
+
+    /**
+     * @return time spent in the class file transformer across all class loads
+     */
+    long getTransformNanos();
+
+    /**
+     * @return internal names of the patched classes
+     */
+    String[] getPatchedClasses();
+
+    boolean isFactoryPatched();
+
+    /**
+     * @return empty {@code String} parameters replaced with null
+     */
+    long getStringNullifications();
+
+    /**
+     * @return empty {@code Password} parameters replaced with null
+     */
+    long getPasswordNullifications();
+
+    long getKeystoreLoads();
+
+    long getKeystoreLoadNanos();
+
+    long getTruststoreLoads();
+
+    long getTruststoreLoadNanos();
+
+    /**
+     * @return duration of the last load of each store in microseconds, keyed {@code kind path}
+     */
+    Map<String, Long> getLastStoreLoadMicros();
+
+    /**
+     * @return key and trust stores served from the cache with {@code keystore.cache} or {@code pem.cache}
+     */
+    long getKeystoreCacheHits();
+
+    /**
+     * @return key and trust stores loaded and put into the cache
+     */
+    long getKeystoreCacheMisses();
+
+    int getKeystoreCacheSize();
+
+    /**
+     * @return contexts reused from the registry with {@code sslcontext.shared}
+     */
+    long getSharedSslContextHits();
+
+    /**
+     * @return contexts built because none was registered for the configuration
+     */
+    long getSharedSslContextMisses();
+
+    /**
+     * @return contexts in the registry, used or retained for reuse
+     */
+    int getSharedSslContexts();
+
+    /**
+     * @return peer certificate chains accepted from the cache with {@code trust.cache}
+     */
+    long getTrustCacheHits();
+
+    /**
+     * @return peer certificate chains validated by the trust manager
+     */
+    long getTrustCacheMisses();
+
+    /**
+     * @return chains validated against the anchors of their issuer with {@code truststore.index}
+     */
+    long getTrustIndexHits();
+
+    /**
+     * @return chains validated against the whole trust store
+     */
+    long getTrustIndexMisses();
+
+    /**
+     * @return client handshakes that resumed a session, tracked with {@code session.resumption}
+     */
+    long getSessionsResumed();
+
+    /**
+     * @return client handshakes that established a new session
+     */
+    long getSessionsFull();
+
+    /**
+     * @return fraction of the completed client handshakes that resumed a session, NaN if none completed
+     */
+    double getSessionResumptionRate();
+
+    /**
+     * @return duration of the premain warm-up or -1 if it is not enabled or has not finished
+     */
+    long getWarmupNanos();
+
+    /**
+     * @return number of the contexts built by the factories by JSSE provider name,
+     *         recorded with {@code sslcontext.provider}
+     */
+    Map<String, Long> getSslContextProviders();
+
+    /**
+     * @return contexts built by the default provider instead of {@code sslcontext.provider}
+     */
+    long getSslContextProviderFallbacks();
+
+    /**
+     * @return bulk encryption throughput in MB/s by cipher suite, measured or read
+     *         with {@code cipher.ranking}
+     */
+    Map<String, Double> getCipherSuiteThroughput();
+
+    /**
+     * @return handshakes to the bootstrap brokers completed with {@code eager.handshake}
+     */
+    long getEagerHandshakes();
+
+    /**
+     * @return handshakes to the bootstrap brokers failed or timed out with {@code eager.handshake}
+     */
+    long getEagerHandshakeFailures();
+
+    /**
+     * @return handshake steps whose delegated tasks ran on the {@code tasks.offload} pool
+     */
+    long getDelegatedTasksOffloaded();
+
+    /**
+     * @return handshake steps whose delegated tasks ran on the network thread, because the pool queue was full
+     */
+    long getDelegatedTasksInline();
+
+    /**
+     * @return total time the offloaded tasks waited in the pool queue
+     */
+    long getDelegatedTaskQueueNanos();
+
+    /**
+     * @return total run time of the offloaded tasks
+     */
+    long getDelegatedTaskNanos();
+
+}
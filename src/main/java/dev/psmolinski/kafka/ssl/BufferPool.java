@@ -0,0 +1,169 @@
+package dev.psmolinski.kafka.ssl;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Shared pool of the direct buffers used by the {@code SslTransportLayer} connections.
+ * <p>
+ * The network and application buffers allocated at the handshake start are taken from
+ * the pool, rounded up to a 4 KiB size class. The buffers are returned when the transport
+ * layer drops them: on close and when a buffer is replaced by a larger one. The pool keeps
+ * at most {@code buffers.pool.max.bytes} of free buffers; the rest is left to the GC.
+ * <p>
+ * The buffers of an established connection holding no data are returned as well, when
+ * {@code handshake}, {@code read} or {@code write} returns, and replaced with the shared
+ * zero capacity {@link #DETACHED} buffer. The methods using a buffer take one from the pool
+ * again on entry, so an idle connection holds no buffers at all. The zero capacity keeps the
+ * shared buffer empty whatever the transport layer does with it, e.g. in {@code hasPendingWrites}.
+ * <p>
+ * The buffers allocated by the pool are direct, so the connection buffers are off the heap,
+ * unless the direct memory limit is reached. Only direct buffers of a size class are accepted
+ * back; the heap buffers allocated by the transport layer itself are ignored.
+ * <p>
+ * The methods are invoked from the bytecode injected into {@code SslTransportLayer}.
+ */
+public class BufferPool {
+
+    static final int SIZE_CLASS = 4096;
+
+    /**
+     * Placeholder of a buffer returned to the pool while the connection is idle.
+     */
+    static final ByteBuffer DETACHED = ByteBuffer.allocate(0);
+
+    private static final long maxBytes = AgentConfig.current().getLong("buffers.pool.max.bytes", 64L * 1024 * 1024);
+
+    private static final Map<Integer, ArrayDeque<ByteBuffer>> free = new ConcurrentHashMap<>();
+
+    private static final AtomicLong freeBytes = new AtomicLong();
+
+    private static final LongAdder allocated = new LongAdder();
+    private static final LongAdder reused = new LongAdder();
+    private static final LongAdder released = new LongAdder();
+
+    private BufferPool() {
+    }
+
+    static boolean enabled(AgentConfig config) {
+        return config.getBoolean("buffers.pool", false);
+    }
+
+    static int sizeClass(int size) {
+        return (size + SIZE_CLASS - 1) / SIZE_CLASS * SIZE_CLASS;
+    }
+
+    /**
+     * Replacement of {@code ByteBuffer.allocate(size)}.
+     * @return cleared buffer with at least the requested capacity
+     */
+    public static ByteBuffer acquire(int size) {
+        int capacity = sizeClass(Math.max(size, 1));
+        ArrayDeque<ByteBuffer> buffers = free.get(capacity);
+        if (buffers != null) {
+            ByteBuffer buffer;
+            synchronized (buffers) {
+                buffer = buffers.pollFirst();
+            }
+            if (buffer != null) {
+                freeBytes.addAndGet(-capacity);
+                reused.increment();
+                buffer.clear();
+                return buffer;
+            }
+        }
+        allocated.increment();
+        try {
+            return ByteBuffer.allocateDirect(capacity);
+        } catch (OutOfMemoryError e) {
+            // MaxDirectMemorySize reached; a heap buffer is never taken back by the pool
+            return ByteBuffer.allocate(capacity);
+        }
+    }
+
+    /**
+     * Called when a buffer field is assigned.
+     * @return the new value
+     */
+    public static ByteBuffer replace(ByteBuffer previous, ByteBuffer next) {
+        if (previous != null && previous != next) {
+            release(previous);
+        }
+        return next;
+    }
+
+    /**
+     * Called on entry of the methods reading into the network and application read buffers.
+     * @return the buffer or a cleared one from the pool if it was detached
+     */
+    public static ByteBuffer attachRead(ByteBuffer buffer, int size) {
+        return buffer == DETACHED ? acquire(size) : buffer;
+    }
+
+    /**
+     * Called on entry of the methods wrapping into the network write buffer.
+     * @return the buffer or an empty one from the pool, ready to be flushed, if it was detached
+     */
+    public static ByteBuffer attachWrite(ByteBuffer buffer, int size) {
+        if (buffer != DETACHED) {
+            return buffer;
+        }
+        ByteBuffer attached = acquire(size);
+        attached.limit(0);
+        return attached;
+    }
+
+    /**
+     * Called when a method of the established connection returns.
+     * The read buffers hold data between the start and the position.
+     * @return {@link #DETACHED} if the buffer is empty, otherwise the buffer
+     */
+    public static ByteBuffer detachRead(ByteBuffer buffer, boolean ready) {
+        return ready && buffer != null && buffer.position() == 0 ? DETACHED : buffer;
+    }
+
+    /**
+     * The write buffer holds data between the position and the limit.
+     * @return {@link #DETACHED} if the buffer is flushed, otherwise the buffer
+     */
+    public static ByteBuffer detachWrite(ByteBuffer buffer, boolean ready) {
+        return ready && buffer != null && !buffer.hasRemaining() ? DETACHED : buffer;
+    }
+
+    static void release(ByteBuffer buffer) {
+        int capacity = buffer.capacity();
+        if (!buffer.isDirect() || capacity == 0 || capacity % SIZE_CLASS != 0) {
+            return;
+        }
+        if (freeBytes.addAndGet(capacity) > maxBytes) {
+            freeBytes.addAndGet(-capacity);
+            return;
+        }
+        ArrayDeque<ByteBuffer> buffers = free.computeIfAbsent(capacity, k -> new ArrayDeque<>());
+        synchronized (buffers) {
+            buffers.addFirst(buffer);
+        }
+        released.increment();
+    }
+
+    public static long allocated() {
+        return allocated.sum();
+    }
+
+    public static long reused() {
+        return reused.sum();
+    }
+
+    public static long released() {
+        return released.sum();
+    }
+
+    public static long freeBytes() {
+        return freeBytes.get();
+    }
+
+}
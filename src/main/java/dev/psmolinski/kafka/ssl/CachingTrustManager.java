@@ -0,0 +1,268 @@
+package dev.psmolinski.kafka.ssl;
+
+import javax.net.ssl.ExtendedSSLSession;
+import javax.net.ssl.SSLEngine;
+import javax.net.ssl.SSLParameters;
+import javax.net.ssl.SSLSession;
+import javax.net.ssl.SSLSocket;
+import javax.net.ssl.X509ExtendedTrustManager;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.Security;
+import java.security.cert.CertificateEncodingException;
+import java.security.cert.CertificateException;
+import java.security.cert.X509Certificate;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Trust manager remembering the successful validations of the peer certificate chains.
+ * <p>
+ * The result is keyed by the SHA-256 fingerprint of the chain, the key exchange type and,
+ * for the connection bound checks, the endpoint identification algorithm and the peer host,
+ * so that the hostname verification of the delegate is not skipped for another host.
+ * The key also covers the inputs of the algorithm constraints the delegate applies: the
+ * disabled algorithm security properties and, for a handshake, the protocol and the local
+ * supported signature algorithms. A chain is validated again when any of them changes;
+ * a connection with its own {@code AlgorithmConstraints} is never served from the cache.
+ * <p>
+ * An entry expires with the first certificate of the chain or after {@code trust.cache.ttl.ms};
+ * the validity period of the certificates is checked again on every hit.
+ * The failures are never cached.
+ * <p>
+ * A cached chain is not checked for revocation until the entry expires, so the factory
+ * contexts are not wrapped when {@code com.sun.net.ssl.checkRevocation} is enabled. A trust
+ * manager checking the revocation by other means, e.g. of a custom {@code ssl.trustmanager.algorithm},
+ * accepts a chain revoked in the meantime for up to {@code trust.cache.ttl.ms}.
+ * <p>
+ * The cache belongs to the trust manager, i.e. to one {@code SSLContext}; a trust store
+ * reload builds a new context and starts with an empty cache.
+ */
+public class CachingTrustManager extends X509ExtendedTrustManager {
+
+    private static final LongAdder hits = new LongAdder();
+    private static final LongAdder misses = new LongAdder();
+
+    private final X509ExtendedTrustManager delegate;
+    private final int capacity;
+    private final long ttlMs;
+
+    // access order gives LRU eviction
+    private final LinkedHashMap<String, Long> validated;
+
+    public CachingTrustManager(X509ExtendedTrustManager delegate, int capacity, long ttlMs) {
+        this.delegate = delegate;
+        this.capacity = capacity;
+        this.ttlMs = ttlMs;
+        this.validated = new LinkedHashMap<String, Long>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, Long> eldest) {
+                return size() > CachingTrustManager.this.capacity;
+            }
+        };
+    }
+
+    public static long hits() {
+        return hits.sum();
+    }
+
+    public static long misses() {
+        return misses.sum();
+    }
+
+    @Override
+    public void checkClientTrusted(X509Certificate[] chain, String authType) throws CertificateException {
+        String key = key("client", chain, authType, null, null, constraints(null, null));
+        if (!cached(key, chain)) {
+            delegate.checkClientTrusted(chain, authType);
+            remember(key, chain);
+        }
+    }
+
+    @Override
+    public void checkServerTrusted(X509Certificate[] chain, String authType) throws CertificateException {
+        String key = key("server", chain, authType, null, null, constraints(null, null));
+        if (!cached(key, chain)) {
+            delegate.checkServerTrusted(chain, authType);
+            remember(key, chain);
+        }
+    }
+
+    @Override
+    public void checkClientTrusted(X509Certificate[] chain, String authType, Socket socket) throws CertificateException {
+        String key = key("client", chain, authType, endpointIdentification(socket), peerHost(socket), constraints(socket));
+        if (!cached(key, chain)) {
+            delegate.checkClientTrusted(chain, authType, socket);
+            remember(key, chain);
+        }
+    }
+
+    @Override
+    public void checkServerTrusted(X509Certificate[] chain, String authType, Socket socket) throws CertificateException {
+        String key = key("server", chain, authType, endpointIdentification(socket), peerHost(socket), constraints(socket));
+        if (!cached(key, chain)) {
+            delegate.checkServerTrusted(chain, authType, socket);
+            remember(key, chain);
+        }
+    }
+
+    @Override
+    public void checkClientTrusted(X509Certificate[] chain, String authType, SSLEngine engine) throws CertificateException {
+        String key = key("client", chain, authType, endpointIdentification(engine), peerHost(engine), constraints(engine));
+        if (!cached(key, chain)) {
+            delegate.checkClientTrusted(chain, authType, engine);
+            remember(key, chain);
+        }
+    }
+
+    @Override
+    public void checkServerTrusted(X509Certificate[] chain, String authType, SSLEngine engine) throws CertificateException {
+        String key = key("server", chain, authType, endpointIdentification(engine), peerHost(engine), constraints(engine));
+        if (!cached(key, chain)) {
+            delegate.checkServerTrusted(chain, authType, engine);
+            remember(key, chain);
+        }
+    }
+
+    @Override
+    public X509Certificate[] getAcceptedIssuers() {
+        return delegate.getAcceptedIssuers();
+    }
+
+    private boolean cached(String key, X509Certificate[] chain) {
+        if (key == null) {
+            misses.increment();
+            return false;
+        }
+        Long expiresMs;
+        synchronized (validated) {
+            expiresMs = validated.get(key);
+            if (expiresMs != null && (expiresMs < System.currentTimeMillis() || !valid(chain))) {
+                validated.remove(key);
+                expiresMs = null;
+            }
+        }
+        if (expiresMs == null) {
+            misses.increment();
+            return false;
+        }
+        hits.increment();
+        return true;
+    }
+
+    private void remember(String key, X509Certificate[] chain) {
+        if (key == null) {
+            return;
+        }
+        long expiresMs = System.currentTimeMillis() + ttlMs;
+        for (X509Certificate certificate : chain) {
+            expiresMs = Math.min(expiresMs, certificate.getNotAfter().getTime());
+        }
+        synchronized (validated) {
+            validated.put(key, expiresMs);
+        }
+    }
+
+    /**
+     * @return true if the current time is within the validity period of all the certificates
+     */
+    private static boolean valid(X509Certificate[] chain) {
+        try {
+            for (X509Certificate certificate : chain) {
+                certificate.checkValidity();
+            }
+            return true;
+        } catch (CertificateException e) {
+            return false;
+        }
+    }
+
+    /**
+     * @return the cache key or null if the chain or the constraints cannot be fingerprinted
+     */
+    private static String key(String side, X509Certificate[] chain, String authType, String endpointIdentification, String peerHost, String constraints) {
+        if (chain == null || chain.length == 0 || constraints == null) {
+            return null;
+        }
+        MessageDigest digest = Digests.sha256();
+        digest.update(constraints.getBytes(StandardCharsets.UTF_8));
+        try {
+            for (X509Certificate certificate : chain) {
+                digest.update(certificate.getEncoded());
+            }
+        } catch (CertificateEncodingException e) {
+            return null;
+        }
+        return side + ' ' + authType + ' ' + endpointIdentification + ' ' + peerHost + ' ' + Digests.hex(digest.digest());
+    }
+
+    /**
+     * Inputs of the algorithm constraints of the delegate, i.e. of {@code SSLAlgorithmConstraints}
+     * and of the certification path validation.
+     * @return the description of the constraints or null if the connection has its own
+     *         {@code AlgorithmConstraints} that cannot be compared
+     */
+    private static String constraints(SSLParameters parameters, SSLSession session) {
+        // since Java 9 the connections carry the default constraints of the JDK, built from the security properties
+        if (parameters != null && parameters.getAlgorithmConstraints() != null
+                && !parameters.getAlgorithmConstraints().getClass().getName().startsWith("sun.security.ssl.")) {
+            return null;
+        }
+        StringBuilder constraints = new StringBuilder()
+                .append(Security.getProperty("jdk.certpath.disabledAlgorithms")).append('\n')
+                .append(Security.getProperty("jdk.tls.disabledAlgorithms"));
+        if (session != null) {
+            constraints.append('\n').append(session.getProtocol());
+            if (session instanceof ExtendedSSLSession) {
+                constraints.append('\n').append(String.join(",", ((ExtendedSSLSession) session).getLocalSupportedSignatureAlgorithms()));
+            }
+        }
+        return constraints.toString();
+    }
+
+    private static String constraints(SSLEngine engine) {
+        if (engine == null) {
+            return constraints(null, null);
+        }
+        return constraints(engine.getSSLParameters(), engine.getHandshakeSession());
+    }
+
+    private static String constraints(Socket socket) {
+        if (!(socket instanceof SSLSocket)) {
+            return constraints(null, null);
+        }
+        SSLSocket sslSocket = (SSLSocket) socket;
+        return constraints(sslSocket.getSSLParameters(), sslSocket.getHandshakeSession());
+    }
+
+    private static String endpointIdentification(SSLEngine engine) {
+        if (engine == null) {
+            return null;
+        }
+        SSLParameters parameters = engine.getSSLParameters();
+        return parameters != null ? parameters.getEndpointIdentificationAlgorithm() : null;
+    }
+
+    private static String peerHost(SSLEngine engine) {
+        return engine != null ? engine.getPeerHost() : null;
+    }
+
+    private static String endpointIdentification(Socket socket) {
+        if (!(socket instanceof SSLSocket)) {
+            return null;
+        }
+        SSLParameters parameters = ((SSLSocket) socket).getSSLParameters();
+        return parameters != null ? parameters.getEndpointIdentificationAlgorithm() : null;
+    }
+
+    private static String peerHost(Socket socket) {
+        if (!(socket instanceof SSLSocket)) {
+            return null;
+        }
+        SSLSession session = ((SSLSocket) socket).getHandshakeSession();
+        return session != null ? session.getPeerHost() : null;
+    }
+
+}
@@ -0,0 +1,374 @@
+package dev.psmolinski.kafka.ssl;
+
+import javax.net.ssl.KeyManagerFactory;
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLEngine;
+import javax.net.ssl.SSLEngineResult;
+import javax.net.ssl.SSLException;
+import javax.net.ssl.TrustManagerFactory;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.security.KeyStore;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Properties;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Orders the enabled cipher suites of the engines created by the factory by the bulk
+ * encryption throughput measured on the host, e.g. AES-GCM ahead of ChaCha20 with AES-NI
+ * and the other way round without it.
+ * <p>
+ * The throughput is measured on a background thread started by {@code premain}: for
+ * every AEAD cipher of the JDK default suites one representative suite is negotiated
+ * in memory, with the throwaway key of the {@link Warmup}, and 16 KiB records are wrapped
+ * and unwrapped for {@code cipher.ranking.ms}, in rounds until the ranking settles, as
+ * the crypto intrinsics kick in only once the code is compiled. With
+ * {@code cipher.ranking.file} the result is read from the file when it exists and written
+ * there otherwise, so that only the first start of the host pays for the measurement.
+ * The engines created before the result is available keep their order.
+ * <p>
+ * The order changes only within the enabled suites, i.e. {@code ssl.cipher.suites} when
+ * configured, only among the AEAD suites and only among the suites of the same key
+ * exchange, so that e.g. the CBC suites or the suites without forward secrecy are never
+ * promoted. The server picks the suite, by its own order by default; the ranking of the
+ * client engines matters when the broker honors the client preference, the ranking of the
+ * server engines when the agent runs on the broker.
+ * <p>
+ * The {@link #rank(Object)} method is invoked from the bytecode injected into
+ * {@code createClientSslEngine} and {@code createServerSslEngine}.
+ */
+public class CipherSuiteRanking implements Runnable {
+
+    static final String THREAD_NAME = "kafka-ssl-fix-cipher-ranking";
+
+    private static final int RECORD_SIZE = 16384;
+    private static final int MAX_ORDERS = 64;
+    private static final int MAX_ROUNDS = 20;
+
+    private static final String SCSV = "_SCSV";
+    private static final String WITH = "_WITH_";
+
+    private static final AtomicBoolean started = new AtomicBoolean();
+
+    // MB/s by bulk cipher, null until measured or read
+    private static volatile Map<String, Double> throughput;
+    private static volatile Map<String, Double> report = Collections.emptyMap();
+
+    // enabled suites of the engines and their ranked order
+    private static final Map<List<String>, String[]> orders = new ConcurrentHashMap<>();
+    private static final String[] UNCHANGED = new String[0];
+
+    private final Path file;
+    private final long durationMs;
+
+    CipherSuiteRanking(String file, long durationMs) {
+        this.file = file != null ? Paths.get(file) : null;
+        this.durationMs = durationMs;
+    }
+
+    static boolean enabled(AgentConfig config) {
+        return config.getBoolean("cipher.ranking", false);
+    }
+
+    static Thread start(AgentConfig config) {
+        if (!started.compareAndSet(false, true)) {
+            return null;
+        }
+        CipherSuiteRanking ranking = new CipherSuiteRanking(
+                config.getString("cipher.ranking.file", null),
+                config.getLong("cipher.ranking.ms", 200L));
+        Thread thread = new Thread(ranking, THREAD_NAME);
+        thread.setDaemon(true);
+        // do not compete with the application startup
+        thread.setPriority(Thread.MIN_PRIORITY);
+        thread.start();
+        return thread;
+    }
+
+    /**
+     * Order the enabled cipher suites of the engine by the measured throughput.
+     * @return the engine
+     */
+    public static Object rank(Object engine) {
+        Map<String, Double> throughput = CipherSuiteRanking.throughput;
+        if (throughput == null) {
+            // patched offline, there was no premain
+            start(AgentConfig.current());
+            return engine;
+        }
+        if (engine instanceof SSLEngine) {
+            SSLEngine sslEngine = (SSLEngine) engine;
+            String[] enabled = sslEngine.getEnabledCipherSuites();
+            List<String> key = Arrays.asList(enabled);
+            String[] ranked = orders.get(key);
+            if (ranked == null) {
+                ranked = order(enabled, throughput);
+                if (ranked == enabled) {
+                    ranked = UNCHANGED;
+                }
+                if (orders.size() < MAX_ORDERS) {
+                    orders.put(key, ranked);
+                }
+            }
+            if (ranked != UNCHANGED) {
+                sslEngine.setEnabledCipherSuites(ranked);
+            }
+        }
+        return engine;
+    }
+
+    /**
+     * @return the suites ordered by the throughput within every key exchange,
+     *         the same array if the order does not change
+     */
+    static String[] order(String[] suites, Map<String, Double> throughput) {
+        Map<String, List<Integer>> slots = new LinkedHashMap<>();
+        for (int i = 0; i < suites.length; i++) {
+            if (throughput.containsKey(bulkCipher(suites[i])) && aead(bulkCipher(suites[i]))) {
+                slots.computeIfAbsent(keyExchange(suites[i]), k -> new ArrayList<>()).add(i);
+            }
+        }
+        String[] ranked = suites.clone();
+        for (List<Integer> group : slots.values()) {
+            List<String> sorted = new ArrayList<>();
+            for (int i : group) {
+                sorted.add(suites[i]);
+            }
+            // stable, the equally fast suites keep their order
+            sorted.sort((a, b) -> Double.compare(throughput.get(bulkCipher(b)), throughput.get(bulkCipher(a))));
+            for (int i = 0; i < group.size(); i++) {
+                ranked[group.get(i)] = sorted.get(i);
+            }
+        }
+        return Arrays.equals(ranked, suites) ? suites : ranked;
+    }
+
+    /**
+     * @return the cipher and hash of the suite, e.g. {@code AES_128_GCM_SHA256}
+     */
+    static String bulkCipher(String suite) {
+        int with = suite.indexOf(WITH);
+        if (with >= 0) {
+            return suite.substring(with + WITH.length());
+        }
+        // TLS 1.3 suites name the cipher only
+        return suite.startsWith("TLS_") ? suite.substring(4) : suite;
+    }
+
+    /**
+     * @return true for the authenticated encryption ciphers, the only ones reordered
+     */
+    static boolean aead(String cipher) {
+        return cipher.contains("_GCM_") || cipher.contains("_CCM") || cipher.startsWith("CHACHA20_POLY1305");
+    }
+
+    /**
+     * @return the key exchange and authentication of the suite, empty for TLS 1.3
+     */
+    static String keyExchange(String suite) {
+        int with = suite.indexOf(WITH);
+        return with >= 0 ? suite.substring(0, with) : "";
+    }
+
+    /**
+     * @return measured throughput in MB/s by cipher suite, empty until measured
+     */
+    public static Map<String, Double> throughput() {
+        return report;
+    }
+
+    @Override
+    public void run() {
+        Map<String, Double> measured = null;
+        try {
+            if (file != null && Files.isRegularFile(file)) {
+                measured = read(file);
+            } else {
+                measured = measure();
+                if (file != null && !measured.isEmpty()) {
+                    write(file, measured);
+                }
+            }
+        } catch (Exception e) {
+            // the suites keep the configured order
+        } finally {
+            publish(measured != null ? measured : Collections.emptyMap());
+        }
+    }
+
+    private static void publish(Map<String, Double> bySuite) {
+        Map<String, Double> byCipher = new HashMap<>();
+        for (Map.Entry<String, Double> e : bySuite.entrySet()) {
+            byCipher.put(bulkCipher(e.getKey()), e.getValue());
+        }
+        report = Collections.unmodifiableMap(new TreeMap<>(bySuite));
+        throughput = byCipher;
+    }
+
+    /**
+     * @return throughput in MB/s of every JDK default suite with a measurable bulk cipher
+     */
+    private Map<String, Double> measure() throws Exception {
+        KeyStore keystore = KeyStore.getInstance("PKCS12");
+        try (InputStream in = Warmup.class.getResourceAsStream(Warmup.KEYSTORE)) {
+            if (in == null) {
+                return Collections.emptyMap();
+            }
+            keystore.load(in, Warmup.PASSWORD);
+        }
+        KeyManagerFactory kmf = KeyManagerFactory.getInstance(KeyManagerFactory.getDefaultAlgorithm());
+        kmf.init(keystore, Warmup.PASSWORD);
+        TrustManagerFactory tmf = TrustManagerFactory.getInstance(TrustManagerFactory.getDefaultAlgorithm());
+        tmf.init(keystore);
+        SSLContext server = SSLContext.getInstance("TLS");
+        server.init(kmf.getKeyManagers(), null, null);
+        SSLContext client = SSLContext.getInstance("TLS");
+        client.init(null, tmf.getTrustManagers(), null);
+
+        String[] defaults = client.getDefaultSSLParameters().getCipherSuites();
+        List<String> supported = Arrays.asList(client.getSupportedSSLParameters().getCipherSuites());
+
+        // one suite negotiable with the RSA key for every bulk cipher
+        Map<String, String> representatives = new LinkedHashMap<>();
+        for (String suite : defaults) {
+            if (suite.endsWith(SCSV)) {
+                continue;
+            }
+            String cipher = bulkCipher(suite);
+            if (!aead(cipher) || representatives.containsKey(cipher)) {
+                continue;
+            }
+            for (String candidate : new String[]{"TLS_" + cipher, "TLS_ECDHE_RSA_WITH_" + cipher, "TLS_RSA_WITH_" + cipher}) {
+                if (supported.contains(candidate)) {
+                    representatives.put(cipher, candidate);
+                    break;
+                }
+            }
+        }
+
+        // until the code paths are compiled, i.e. the ranking and the figures settle
+        Map<String, Double> byCipher = null;
+        for (int round = 0; round < MAX_ROUNDS; round++) {
+            Map<String, Double> measured = new HashMap<>();
+            for (Map.Entry<String, String> e : representatives.entrySet()) {
+                try {
+                    measured.put(e.getKey(), measure(client, server, e.getValue()));
+                } catch (SSLException ex) {
+                    // e.g. disabled by the security properties
+                }
+            }
+            boolean settled = byCipher != null && settled(byCipher, measured);
+            byCipher = measured;
+            if (settled) {
+                break;
+            }
+        }
+
+        Map<String, Double> bySuite = new LinkedHashMap<>();
+        for (String suite : defaults) {
+            Double mbs = byCipher.get(bulkCipher(suite));
+            if (mbs != null) {
+                bySuite.put(suite, mbs);
+            }
+        }
+        return bySuite;
+    }
+
+    /**
+     * @return true if the ranking is the same and no figure changed by more than a quarter
+     */
+    private static boolean settled(Map<String, Double> previous, Map<String, Double> current) {
+        if (!previous.keySet().equals(current.keySet())) {
+            return false;
+        }
+        for (String a : current.keySet()) {
+            if (Math.abs(current.get(a) - previous.get(a)) > previous.get(a) / 4) {
+                return false;
+            }
+            for (String b : current.keySet()) {
+                if (Double.compare(current.get(a), current.get(b)) != Double.compare(previous.get(a), previous.get(b))) {
+                    return false;
+                }
+            }
+        }
+        return true;
+    }
+
+    /**
+     * @return MB/s of the client wrapping and the server unwrapping records with the suite
+     */
+    private double measure(SSLContext client, SSLContext server, String suite) throws SSLException {
+        String protocol = keyExchange(suite).isEmpty() ? "TLSv1.3" : "TLSv1.2";
+        SSLEngine clientEngine = client.createSSLEngine();
+        clientEngine.setUseClientMode(true);
+        clientEngine.setEnabledProtocols(new String[]{protocol});
+        clientEngine.setEnabledCipherSuites(new String[]{suite});
+        SSLEngine serverEngine = server.createSSLEngine();
+        serverEngine.setUseClientMode(false);
+        serverEngine.setEnabledProtocols(new String[]{protocol});
+        serverEngine.setEnabledCipherSuites(new String[]{suite});
+        Warmup.handshake(clientEngine, serverEngine);
+        if (!suite.equals(clientEngine.getSession().getCipherSuite())) {
+            throw new SSLException("Not negotiated: " + suite);
+        }
+
+        ByteBuffer plain = ByteBuffer.allocate(RECORD_SIZE);
+        ByteBuffer encrypted = ByteBuffer.allocate(clientEngine.getSession().getPacketBufferSize());
+        ByteBuffer decrypted = ByteBuffer.allocate(serverEngine.getSession().getApplicationBufferSize());
+        long bytes = 0L;
+        long start = System.nanoTime();
+        long deadline = start + durationMs * 1_000_000L;
+        long now;
+        do {
+            plain.clear();
+            encrypted.clear();
+            decrypted.clear();
+            SSLEngineResult wrapped = clientEngine.wrap(plain, encrypted);
+            encrypted.flip();
+            SSLEngineResult unwrapped = serverEngine.unwrap(encrypted, decrypted);
+            if (wrapped.getStatus() != SSLEngineResult.Status.OK || unwrapped.getStatus() != SSLEngineResult.Status.OK) {
+                throw new SSLException(wrapped + " " + unwrapped);
+            }
+            bytes += wrapped.bytesConsumed();
+        } while ((now = System.nanoTime()) < deadline);
+        // bytes per microsecond
+        return bytes * 1_000.0 / (now - start);
+    }
+
+    private static Map<String, Double> read(Path file) throws Exception {
+        Properties properties = new Properties();
+        try (InputStream in = Files.newInputStream(file)) {
+            properties.load(in);
+        }
+        Map<String, Double> bySuite = new LinkedHashMap<>();
+        for (String suite : properties.stringPropertyNames()) {
+            bySuite.put(suite, Double.parseDouble(properties.getProperty(suite)));
+        }
+        return bySuite;
+    }
+
+    private static void write(Path file, Map<String, Double> bySuite) throws Exception {
+        Properties properties = new Properties();
+        for (Map.Entry<String, Double> e : bySuite.entrySet()) {
+            properties.setProperty(e.getKey(), String.format(Locale.ROOT, "%.1f", e.getValue()));
+        }
+        try (OutputStream out = Files.newOutputStream(file)) {
+            properties.store(out, "cipher suite throughput in MB/s, "
+                    + System.getProperty("os.arch") + " " + System.getProperty("java.version"));
+        }
+    }
+
+}
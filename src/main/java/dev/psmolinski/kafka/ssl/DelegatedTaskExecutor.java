@@ -0,0 +1,271 @@
+package dev.psmolinski.kafka.ssl;
+
+import javax.net.ssl.SSLEngine;
+import javax.net.ssl.SSLEngineResult;
+import java.nio.channels.CancelledKeyException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.ArrayDeque;
+import java.util.Collections;
+import java.util.Map;
+import java.util.Queue;
+import java.util.WeakHashMap;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Runs the {@code SSLEngine} delegated tasks of the {@code SslTransportLayer} handshakes,
+ * i.e. the certificate validation and the signatures, on a shared pool of daemon threads
+ * instead of the network thread, so that a burst of handshakes does not stall the I/O of
+ * the established connections.
+ * <p>
+ * While the tasks of a channel run, the interest set of its selection key is emptied,
+ * so that the selector does not spin on the channel waiting for them. The selection key
+ * is only ever changed by the network thread: the pool thread completing the tasks just
+ * queues the channel for its selector and wakes the selector up. When the network thread
+ * enters the next {@code select}, the interest set is restored with {@code OP_WRITE} added;
+ * the channel is selected right away and the handshake continues from the new engine
+ * status.
+ * <p>
+ * The pool has {@code tasks.offload.threads} threads and a queue of
+ * {@code tasks.offload.queue} channels; when the queue is full the tasks run inline as
+ * before.
+ * <p>
+ * The {@link #offload(String, SSLEngine, SelectionKey)} method is invoked from the bytecode
+ * injected into {@code SslTransportLayer.runDelegatedTasks}, {@link #resume(Selector)}
+ * from the bytecode injected into the Kafka {@code Selector.select}.
+ */
+public class DelegatedTaskExecutor {
+
+    static final String THREAD_NAME = "kafka-ssl-fix-delegated-tasks";
+
+    private static final boolean jfrEvents = PatchDefaultSslEngineFactory.jfrEvents(AgentConfig.current());
+
+    private static final ThreadPoolExecutor executor = executor(
+            AgentConfig.current().getInt("tasks.offload.threads", Runtime.getRuntime().availableProcessors()),
+            AgentConfig.current().getInt("tasks.offload.queue", 1024));
+
+    // engines with the tasks in progress or the interest set not restored yet
+    private static final Map<SSLEngine, Tasks> inProgress = new ConcurrentHashMap<>();
+
+    // completed tasks waiting for the network thread of the selector
+    private static final Map<Selector, Queue<Tasks>> completed = Collections.synchronizedMap(new WeakHashMap<>());
+    private static final AtomicInteger pending = new AtomicInteger();
+
+    private static final LongAdder offloaded = new LongAdder();
+    private static final LongAdder inline = new LongAdder();
+    private static final LongAdder queueNanos = new LongAdder();
+    private static final LongAdder taskNanos = new LongAdder();
+
+    private DelegatedTaskExecutor() {
+    }
+
+    static boolean enabled(AgentConfig config) {
+        return config.getBoolean("tasks.offload", false);
+    }
+
+    private static ThreadPoolExecutor executor(int threads, int queue) {
+        ThreadPoolExecutor executor = new ThreadPoolExecutor(
+                threads, threads, 60L, TimeUnit.SECONDS,
+                new ArrayBlockingQueue<>(queue),
+                task -> {
+                    Thread thread = new Thread(task, THREAD_NAME);
+                    thread.setDaemon(true);
+                    return thread;
+                });
+        executor.allowCoreThreadTimeOut(true);
+        return executor;
+    }
+
+    /**
+     * Submit the delegated tasks of the engine.
+     * @return {@code NEED_TASK} when the tasks run in the background, null to run them inline
+     */
+    public static Object offload(String channelId, SSLEngine engine, SelectionKey key) {
+        if (key == null) {
+            return null;
+        }
+        Tasks tasks = inProgress.get(engine);
+        if (tasks != null) {
+            // the channel was selected before the tasks completed or before the selector resumed it
+            return tasks.suspend() ? SSLEngineResult.HandshakeStatus.NEED_TASK : null;
+        }
+        Runnable task = engine.getDelegatedTask();
+        if (task == null) {
+            return null;
+        }
+        tasks = new Tasks(channelId, engine, key, task);
+        inProgress.put(engine, tasks);
+        try {
+            if (!tasks.suspend()) {
+                throw new CancelledKeyException();
+            }
+            executor.execute(tasks);
+            offloaded.increment();
+            return SSLEngineResult.HandshakeStatus.NEED_TASK;
+        } catch (RejectedExecutionException | CancelledKeyException e) {
+            tasks.restore(0);
+            inline.increment();
+            // the remaining tasks are run by the original code
+            task.run();
+            return null;
+        }
+    }
+
+    /**
+     * Restore the interest sets of the channels of the selector whose tasks have completed.
+     * Called by the network thread before it selects.
+     */
+    public static void resume(Selector selector) {
+        if (pending.get() == 0 || selector == null) {
+            return;
+        }
+        Queue<Tasks> queue = completed.get(selector);
+        if (queue == null) {
+            return;
+        }
+        while (true) {
+            Tasks tasks;
+            synchronized (queue) {
+                tasks = queue.poll();
+            }
+            if (tasks == null) {
+                return;
+            }
+            pending.decrementAndGet();
+            tasks.restore(SelectionKey.OP_WRITE);
+        }
+    }
+
+    /**
+     * @return number of the handshake steps whose tasks ran on the pool
+     */
+    public static long offloaded() {
+        return offloaded.sum();
+    }
+
+    /**
+     * @return number of the handshake steps whose tasks ran inline, because the queue was full
+     */
+    public static long inline() {
+        return inline.sum();
+    }
+
+    public static long queueNanos() {
+        return queueNanos.sum();
+    }
+
+    public static long taskNanos() {
+        return taskNanos.sum();
+    }
+
+    private static class Tasks implements Runnable {
+
+        final String channelId;
+        final SSLEngine engine;
+        final SelectionKey key;
+        final Runnable first;
+        final long submittedNanos = System.nanoTime();
+
+        // interest set to restore and the state, guarded by this
+        int interestOps;
+        boolean done;
+        boolean restored;
+
+        Tasks(String channelId, SSLEngine engine, SelectionKey key, Runnable first) {
+            this.channelId = channelId;
+            this.engine = engine;
+            this.key = key;
+            this.first = first;
+        }
+
+        /**
+         * Stop selecting the channel until the tasks are done. Network thread only.
+         * @return false if the tasks are already done, the interest set is then restored
+         *         and the handshake continues, or the key is cancelled
+         */
+        synchronized boolean suspend() {
+            if (done) {
+                restore(0);
+                return false;
+            }
+            try {
+                interestOps |= key.interestOps();
+                key.interestOps(0);
+                return true;
+            } catch (CancelledKeyException e) {
+                return false;
+            }
+        }
+
+        /**
+         * Restore the interest set, adding the given operations. Network thread only.
+         */
+        synchronized void restore(int ops) {
+            if (restored) {
+                return;
+            }
+            restored = true;
+            inProgress.remove(engine);
+            try {
+                key.interestOps(interestOps | key.interestOps() | ops);
+            } catch (CancelledKeyException e) {
+                // the channel is closed
+            }
+        }
+
+        /**
+         * Hand the channel over to the network thread. The selection key is not touched here.
+         */
+        private void complete() {
+            synchronized (this) {
+                done = true;
+                if (!key.isValid()) {
+                    // the channel is closed, its selector may never select again
+                    restored = true;
+                    inProgress.remove(engine);
+                    return;
+                }
+            }
+            Selector selector = key.selector();
+            Queue<Tasks> queue;
+            synchronized (completed) {
+                queue = completed.computeIfAbsent(selector, s -> new ArrayDeque<>());
+            }
+            synchronized (queue) {
+                queue.add(this);
+            }
+            pending.incrementAndGet();
+            selector.wakeup();
+        }
+
+        @Override
+        public void run() {
+            long start = System.nanoTime();
+            queueNanos.add(start - submittedNanos);
+            if (jfrEvents) {
+                JfrEvents.delegatedTasksBegin(channelId);
+            }
+            try {
+                for (Runnable task = first; task != null; task = engine.getDelegatedTask()) {
+                    task.run();
+                }
+            } catch (RuntimeException e) {
+                // the engine reports the failure on the next wrap or unwrap
+            } finally {
+                if (jfrEvents) {
+                    JfrEvents.delegatedTasksEnd(null);
+                }
+                taskNanos.add(System.nanoTime() - start);
+                complete();
+            }
+        }
+
+    }
+
+}
@@ -0,0 +1,46 @@
+package dev.psmolinski.kafka.ssl;
+
+import org.apache.kafka.common.config.types.Password;
+
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+/**
+ * SHA-256 helpers used to build the cache keys. Secrets are never kept in the keys
+ * in plain text.
+ */
+class Digests {
+
+    private Digests() {
+    }
+
+    static MessageDigest sha256() {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    static String sha256(String text) {
+        return text == null ? "-" : hex(sha256().digest(text.getBytes(StandardCharsets.UTF_8)));
+    }
+
+    static String sha256(Password password) {
+        return password == null ? "-" : sha256(password.value());
+    }
+
+    static String sha256(byte[] data) {
+        return hex(sha256().digest(data));
+    }
+
+    static String hex(byte[] hash) {
+        StringBuilder sb = new StringBuilder(hash.length * 2);
+        for (byte b : hash) {
+            sb.append(Character.forDigit((b >> 4) & 0xf, 16)).append(Character.forDigit(b & 0xf, 16));
+        }
+        return sb.toString();
+    }
+
+}
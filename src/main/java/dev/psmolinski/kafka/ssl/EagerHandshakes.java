@@ -0,0 +1,247 @@
+package dev.psmolinski.kafka.ssl;
+
+import javax.net.ssl.SSLEngine;
+import javax.net.ssl.SSLEngineResult;
+import javax.net.ssl.SSLException;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.lang.reflect.Method;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * TLS handshakes to the bootstrap brokers started in parallel as soon as the client
+ * factory is configured, so that the sessions are established while the client is still
+ * being created and the connections of the {@code NetworkClient} resume them.
+ * <p>
+ * The factory is not given the {@code bootstrap.servers}; the addresses are taken from
+ * the {@code ClientUtils.parseAndValidateAddresses} call of the producer, consumer and
+ * admin client constructors, which create the channel builder later on the same thread.
+ * The addresses are kept for the thread until the constructor returns or throws. Only
+ * an {@code SslFactory} in the client mode starts the handshakes; the factories of the
+ * broker listeners do not connect anywhere.
+ * <p>
+ * Every address is handshaken on a small shared pool of daemon threads,
+ * {@code eager.handshake.threads}, with an engine created by the factory for the same peer
+ * host and port, i.e. from the same {@code SSLContext} and under the same session cache key
+ * as the connection that follows. The connection is closed after the handshake and, with
+ * TLS 1.3, after the session ticket has arrived.
+ * <p>
+ * The handshakes are best effort; failures, including the handshakes the pool rejects,
+ * are counted and otherwise ignored.
+ * <p>
+ * The methods are invoked from the bytecode injected into the client constructors and
+ * the end of {@code SslFactory.configure}.
+ */
+public class EagerHandshakes implements Runnable {
+
+    static final String THREAD_NAME = "kafka-ssl-fix-eager-handshake";
+
+    private static final int timeoutMs = AgentConfig.current().getInt("eager.handshake.timeout.ms", 10_000);
+
+    private static final int MAX_ADDRESSES = 16;
+
+    private static final int QUEUE_SIZE = 64;
+
+    // TLS 1.3 sends the session ticket right after the handshake
+    private static final int TICKET_WAIT_MS = 1_000;
+
+    // bootstrap addresses of the client being created by the current thread
+    private static final ThreadLocal<List<InetSocketAddress>> bootstrap = new ThreadLocal<>();
+
+    private static final ThreadPoolExecutor executor = executor(
+            AgentConfig.current().getInt("eager.handshake.threads", 4));
+
+    private static final LongAdder completed = new LongAdder();
+    private static final LongAdder failed = new LongAdder();
+
+    private final Object factory;
+    private final InetSocketAddress address;
+    private final String endpointIdentification;
+
+    EagerHandshakes(Object factory, InetSocketAddress address, String endpointIdentification) {
+        this.factory = factory;
+        this.address = address;
+        this.endpointIdentification = endpointIdentification;
+    }
+
+    static boolean enabled(AgentConfig config) {
+        return config.getBoolean("eager.handshake", false);
+    }
+
+    private static ThreadPoolExecutor executor(int threads) {
+        ThreadPoolExecutor executor = new ThreadPoolExecutor(
+                threads, threads, 60L, TimeUnit.SECONDS,
+                new ArrayBlockingQueue<>(QUEUE_SIZE),
+                task -> {
+                    Thread thread = new Thread(task, THREAD_NAME);
+                    thread.setDaemon(true);
+                    return thread;
+                });
+        executor.allowCoreThreadTimeOut(true);
+        return executor;
+    }
+
+    /**
+     * Remember the bootstrap addresses of the client being created by the current thread.
+     */
+    public static void bootstrap(Object addresses) {
+        if (!(addresses instanceof List)) {
+            return;
+        }
+        List<InetSocketAddress> resolved = new ArrayList<>();
+        for (Object address : (List<?>) addresses) {
+            if (address instanceof InetSocketAddress && resolved.size() < MAX_ADDRESSES) {
+                resolved.add((InetSocketAddress) address);
+            }
+        }
+        bootstrap.set(resolved);
+    }
+
+    /**
+     * Forget the bootstrap addresses of the current thread, when the client constructor exits.
+     */
+    public static void clear() {
+        bootstrap.remove();
+    }
+
+    /**
+     * Start the handshakes to the bootstrap addresses recorded by the current thread
+     * if the configured {@code SslFactory} is in the client mode.
+     */
+    public static void configured(Object mode, Object factory, Map<?, ?> configs) {
+        List<InetSocketAddress> addresses = bootstrap.get();
+        if (addresses == null || factory == null || mode == null || !"CLIENT".equals(((Enum<?>) mode).name())) {
+            return;
+        }
+        bootstrap.remove();
+        Object endpointIdentification = configs.get("ssl.endpoint.identification.algorithm");
+        for (InetSocketAddress address : addresses) {
+            try {
+                executor.execute(new EagerHandshakes(factory, address,
+                        endpointIdentification instanceof String ? (String) endpointIdentification : null));
+            } catch (RejectedExecutionException e) {
+                failed.increment();
+            }
+        }
+    }
+
+    public static long completed() {
+        return completed.sum();
+    }
+
+    public static long failed() {
+        return failed.sum();
+    }
+
+    @Override
+    public void run() {
+        try {
+            // the factory may come from a class loader not visible to the agent
+            Method create = factory.getClass().getMethod("createClientSslEngine", String.class, int.class, String.class);
+            SSLEngine engine = (SSLEngine) create.invoke(factory, address.getHostString(), address.getPort(), endpointIdentification);
+            try (Socket socket = new Socket()) {
+                socket.connect(address, timeoutMs);
+                socket.setSoTimeout(timeoutMs);
+                socket.setTcpNoDelay(true);
+                handshake(engine, socket);
+            }
+            completed.increment();
+        } catch (Exception e) {
+            failed.increment();
+        }
+    }
+
+    private static void handshake(SSLEngine engine, Socket socket) throws IOException {
+        InputStream in = socket.getInputStream();
+        OutputStream out = socket.getOutputStream();
+        ByteBuffer netIn = ByteBuffer.allocate(engine.getSession().getPacketBufferSize());
+        ByteBuffer netOut = ByteBuffer.allocate(engine.getSession().getPacketBufferSize());
+        ByteBuffer application = ByteBuffer.allocate(engine.getSession().getApplicationBufferSize());
+        ByteBuffer empty = ByteBuffer.allocate(0);
+
+        engine.beginHandshake();
+        SSLEngineResult.HandshakeStatus status = engine.getHandshakeStatus();
+        while (status != SSLEngineResult.HandshakeStatus.NOT_HANDSHAKING
+                && status != SSLEngineResult.HandshakeStatus.FINISHED) {
+            switch (status) {
+                case NEED_WRAP:
+                    netOut.clear();
+                    status = engine.wrap(empty, netOut).getHandshakeStatus();
+                    write(out, netOut);
+                    break;
+                case NEED_TASK:
+                    for (Runnable task; (task = engine.getDelegatedTask()) != null; ) {
+                        task.run();
+                    }
+                    status = engine.getHandshakeStatus();
+                    break;
+                default:
+                    status = unwrap(engine, in, netIn, application).getHandshakeStatus();
+                    break;
+            }
+        }
+
+        if ("TLSv1.3".equals(engine.getSession().getProtocol())) {
+            socket.setSoTimeout(Math.min(timeoutMs, TICKET_WAIT_MS));
+            try {
+                unwrap(engine, in, netIn, application);
+            } catch (SocketTimeoutException e) {
+                // no ticket, nothing to resume
+            }
+        }
+
+        engine.closeOutbound();
+        netOut.clear();
+        engine.wrap(empty, netOut);
+        write(out, netOut);
+    }
+
+    /**
+     * Unwrap one record, reading from the socket as needed.
+     */
+    private static SSLEngineResult unwrap(SSLEngine engine, InputStream in, ByteBuffer netIn, ByteBuffer application) throws IOException {
+        while (true) {
+            netIn.flip();
+            SSLEngineResult result;
+            try {
+                application.clear();
+                result = engine.unwrap(netIn, application);
+            } finally {
+                netIn.compact();
+            }
+            switch (result.getStatus()) {
+                case OK:
+                    return result;
+                case BUFFER_UNDERFLOW:
+                    int n = in.read(netIn.array(), netIn.arrayOffset() + netIn.position(), netIn.remaining());
+                    if (n < 0) {
+                        throw new EOFException("Connection closed during the handshake");
+                    }
+                    netIn.position(netIn.position() + n);
+                    break;
+                default:
+                    throw new SSLException("Unexpected unwrap result: " + result);
+            }
+        }
+    }
+
+    private static void write(OutputStream out, ByteBuffer netOut) throws IOException {
+        netOut.flip();
+        out.write(netOut.array(), netOut.arrayOffset() + netOut.position(), netOut.remaining());
+        out.flush();
+    }
+
+}
@@ -0,0 +1,213 @@
+package dev.psmolinski.kafka.ssl;
+
+import javax.management.ObjectName;
+import javax.net.ssl.SSLEngine;
+import javax.net.ssl.SSLSession;
+import java.lang.management.ManagementFactory;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * TLS handshake metrics of the {@code SslTransportLayer} connections.
+ * <p>
+ * The handshake start time is kept in a field added to the transport layer, the durations
+ * go to fixed power of two histograms and the counters are {@link LongAdder}s. Once a node,
+ * protocol, cipher suite or failure cause has been seen, recording does not allocate.
+ * The number of distinct nodes is capped; the broker side channel ids are per connection
+ * and end up in the {@code other} node.
+ * <p>
+ * The methods are invoked from the bytecode injected into {@code SslTransportLayer}.
+ */
+public class HandshakeMetrics implements HandshakeMetricsMXBean {
+
+    static final String OBJECT_NAME = "dev.psmolinski.kafka.ssl:type=HandshakeMetrics";
+
+    private static final int BUCKETS = 26;
+    private static final int MAX_NODES = 256;
+    private static final int MAX_CAUSES = 64;
+    private static final String OTHER = "other";
+
+    private static final long[] BOUNDS = new long[BUCKETS];
+
+    static {
+        for (int i = 0; i < BUCKETS - 1; i++) {
+            BOUNDS[i] = 1L << i;
+        }
+        BOUNDS[BUCKETS - 1] = Long.MAX_VALUE;
+    }
+
+    private static final Map<String, Node> nodes = new ConcurrentHashMap<>();
+
+    private static final Map<String, LongAdder> causes = new ConcurrentHashMap<>();
+
+    private static final LongAdder failures = new LongAdder();
+
+    static {
+        try {
+            ManagementFactory.getPlatformMBeanServer().registerMBean(new HandshakeMetrics(), new ObjectName(OBJECT_NAME));
+        } catch (Exception e) {
+            // already registered by another copy of the agent classes or no JMX; recording still works
+        }
+    }
+
+    static boolean enabled(AgentConfig config) {
+        return config.getBoolean("handshake.metrics", false);
+    }
+
+    /**
+     * Record a completed handshake.
+     * @param ready whether the channel is ready; the handshake is still pending while its last records are written
+     * @param startNanos handshake start or 0 if not known
+     * @return the start to keep for the pending handshake, 0 once it is recorded
+     */
+    public static long finished(boolean ready, long startNanos, String channelId, SSLEngine engine) {
+        if (!ready) {
+            return startNanos;
+        }
+        if (startNanos == 0L) {
+            return 0L;
+        }
+        long micros = (System.nanoTime() - startNanos) / 1000L;
+        Node node = node(channelId);
+        node.histogram[bucket(micros)].increment();
+        SSLSession session = engine != null ? engine.getSession() : null;
+        if (session != null) {
+            count(node.protocols, session.getProtocol());
+            count(node.cipherSuites, session.getCipherSuite());
+        }
+        return 0L;
+    }
+
+    /**
+     * Record a failed handshake.
+     */
+    public static void failed(Throwable cause) {
+        failures.increment();
+        String name = cause != null ? cause.getClass().getName() : "unknown";
+        LongAdder counter = causes.get(name);
+        if (counter == null) {
+            counter = causes.size() < MAX_CAUSES
+                    ? causes.computeIfAbsent(name, k -> new LongAdder())
+                    : causes.computeIfAbsent(OTHER, k -> new LongAdder());
+        }
+        counter.increment();
+    }
+
+    static int bucket(long micros) {
+        int bucket = micros <= 1L ? 0 : 64 - Long.numberOfLeadingZeros(micros - 1L);
+        return Math.min(bucket, BUCKETS - 1);
+    }
+
+    private static Node node(String channelId) {
+        String id = channelId != null ? channelId : OTHER;
+        Node node = nodes.get(id);
+        if (node == null) {
+            node = nodes.size() < MAX_NODES
+                    ? nodes.computeIfAbsent(id, k -> new Node())
+                    : nodes.computeIfAbsent(OTHER, k -> new Node());
+        }
+        return node;
+    }
+
+    private static void count(Map<String, LongAdder> counters, String key) {
+        if (key == null) {
+            return;
+        }
+        LongAdder counter = counters.get(key);
+        if (counter == null) {
+            counter = counters.computeIfAbsent(key, k -> new LongAdder());
+        }
+        counter.increment();
+    }
+
+    @Override
+    public long getHandshakes() {
+        long total = 0L;
+        for (long count : getDurationHistogram()) {
+            total += count;
+        }
+        return total;
+    }
+
+    @Override
+    public long getFailures() {
+        return failures.sum();
+    }
+
+    @Override
+    public long[] getDurationBucketBoundsMicros() {
+        return BOUNDS.clone();
+    }
+
+    @Override
+    public long[] getDurationHistogram() {
+        long[] histogram = new long[BUCKETS];
+        for (Node node : nodes.values()) {
+            for (int i = 0; i < BUCKETS; i++) {
+                histogram[i] += node.histogram[i].sum();
+            }
+        }
+        return histogram;
+    }
+
+    @Override
+    public Map<String, long[]> getNodeDurationHistograms() {
+        Map<String, long[]> result = new TreeMap<>();
+        for (Map.Entry<String, Node> e : nodes.entrySet()) {
+            long[] histogram = new long[BUCKETS];
+            for (int i = 0; i < BUCKETS; i++) {
+                histogram[i] = e.getValue().histogram[i].sum();
+            }
+            result.put(e.getKey(), histogram);
+        }
+        return result;
+    }
+
+    @Override
+    public Map<String, Long> getFailuresByCause() {
+        return sums(causes, null);
+    }
+
+    @Override
+    public Map<String, Long> getProtocols() {
+        Map<String, Long> result = new TreeMap<>();
+        for (Map.Entry<String, Node> e : nodes.entrySet()) {
+            result.putAll(sums(e.getValue().protocols, e.getKey()));
+        }
+        return result;
+    }
+
+    @Override
+    public Map<String, Long> getCipherSuites() {
+        Map<String, Long> result = new TreeMap<>();
+        for (Map.Entry<String, Node> e : nodes.entrySet()) {
+            result.putAll(sums(e.getValue().cipherSuites, e.getKey()));
+        }
+        return result;
+    }
+
+    private static Map<String, Long> sums(Map<String, LongAdder> counters, String prefix) {
+        Map<String, Long> result = new TreeMap<>();
+        for (Map.Entry<String, LongAdder> e : counters.entrySet()) {
+            result.put(prefix != null ? prefix + " " + e.getKey() : e.getKey(), e.getValue().sum());
+        }
+        return result;
+    }
+
+    private static class Node {
+
+        final LongAdder[] histogram = new LongAdder[BUCKETS];
+        final Map<String, LongAdder> protocols = new ConcurrentHashMap<>();
+        final Map<String, LongAdder> cipherSuites = new ConcurrentHashMap<>();
+
+        Node() {
+            for (int i = 0; i < BUCKETS; i++) {
+                histogram[i] = new LongAdder();
+            }
+        }
+
+    }
+
+}
@@ -0,0 +1,42 @@
+package dev.psmolinski.kafka.ssl;
+
+import java.util.Map;
+
+/**
+ * TLS handshake metrics of the {@code SslTransportLayer} connections, registered as
+ * {@code dev.psmolinski.kafka.ssl:type=HandshakeMetrics}.
+ * <p>
+ * The maps are keyed by the channel id, i.e. the broker node id on the clients.
+ * The histograms count the handshakes with duration up to the matching bucket bound.
+ */
+public interface HandshakeMetricsMXBean {
+
+    long getHandshakes();
+
+    long getFailures();
+
+    /**
+     * @return upper bounds of the duration histogram buckets in microseconds
+     */
+    long[] getDurationBucketBoundsMicros();
+
+    long[] getDurationHistogram();
+
+    Map<String, long[]> getNodeDurationHistograms();
+
+    /**
+     * @return failed handshakes by the exception class
+     */
+    Map<String, Long> getFailuresByCause();
+
+    /**
+     * @return completed handshakes by node and negotiated protocol, keyed {@code node protocol}
+     */
+    Map<String, Long> getProtocols();
+
+    /**
+     * @return completed handshakes by node and negotiated cipher suite, keyed {@code node cipher}
+     */
+    Map<String, Long> getCipherSuites();
+
+}
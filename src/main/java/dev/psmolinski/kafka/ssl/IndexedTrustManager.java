@@ -0,0 +1,264 @@
+package dev.psmolinski.kafka.ssl;
+
+import javax.net.ssl.SSLEngine;
+import javax.net.ssl.TrustManager;
+import javax.net.ssl.TrustManagerFactory;
+import javax.net.ssl.X509ExtendedTrustManager;
+import javax.security.auth.x500.X500Principal;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.security.KeyStore;
+import java.security.Provider;
+import java.security.cert.CertificateException;
+import java.security.cert.X509Certificate;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Trust manager validating a chain against the trust anchors of its issuer only.
+ * <p>
+ * The anchors of the trust store are indexed by the subject and by the subject key
+ * identifier. For a chain the anchors are looked up by the issuer of its last certificate,
+ * or by its authority key identifier, and the chain is validated by a trust manager built
+ * from a trust store holding just those anchors. The per issuer trust managers are built
+ * on first use with the algorithm and provider of the original factory.
+ * <p>
+ * The original trust manager validates the chains with no indexed issuer and is
+ * consulted again when the narrowed validation fails, so that a path through another
+ * anchor is still found.
+ */
+public class IndexedTrustManager extends X509ExtendedTrustManager {
+
+    private static final String AUTHORITY_KEY_IDENTIFIER = "2.5.29.35";
+    private static final String SUBJECT_KEY_IDENTIFIER = "2.5.29.14";
+
+    private static final LongAdder hits = new LongAdder();
+    private static final LongAdder misses = new LongAdder();
+
+    private final X509ExtendedTrustManager delegate;
+    private final String algorithm;
+    private final Provider provider;
+
+    private final Map<X500Principal, List<X509Certificate>> bySubject = new HashMap<>();
+    private final Map<ByteBuffer, List<X509Certificate>> byKeyIdentifier = new HashMap<>();
+
+    private final Map<List<X509Certificate>, X509ExtendedTrustManager> delegates = new ConcurrentHashMap<>();
+
+    public IndexedTrustManager(X509ExtendedTrustManager delegate, String algorithm, Provider provider) {
+        this.delegate = delegate;
+        this.algorithm = algorithm;
+        this.provider = provider;
+        for (X509Certificate anchor : delegate.getAcceptedIssuers()) {
+            bySubject.computeIfAbsent(anchor.getSubjectX500Principal(), k -> new ArrayList<>()).add(anchor);
+            byte[] keyIdentifier = keyIdentifier(anchor.getExtensionValue(SUBJECT_KEY_IDENTIFIER), (byte) 0x04);
+            if (keyIdentifier != null) {
+                byKeyIdentifier.computeIfAbsent(ByteBuffer.wrap(keyIdentifier), k -> new ArrayList<>()).add(anchor);
+            }
+        }
+    }
+
+    public static long hits() {
+        return hits.sum();
+    }
+
+    public static long misses() {
+        return misses.sum();
+    }
+
+    @Override
+    public void checkClientTrusted(X509Certificate[] chain, String authType) throws CertificateException {
+        X509ExtendedTrustManager trustManager = trustManager(chain);
+        try {
+            trustManager.checkClientTrusted(chain, authType);
+        } catch (CertificateException e) {
+            if (trustManager == delegate) {
+                throw e;
+            }
+            delegate.checkClientTrusted(chain, authType);
+        }
+    }
+
+    @Override
+    public void checkServerTrusted(X509Certificate[] chain, String authType) throws CertificateException {
+        X509ExtendedTrustManager trustManager = trustManager(chain);
+        try {
+            trustManager.checkServerTrusted(chain, authType);
+        } catch (CertificateException e) {
+            if (trustManager == delegate) {
+                throw e;
+            }
+            delegate.checkServerTrusted(chain, authType);
+        }
+    }
+
+    @Override
+    public void checkClientTrusted(X509Certificate[] chain, String authType, Socket socket) throws CertificateException {
+        X509ExtendedTrustManager trustManager = trustManager(chain);
+        try {
+            trustManager.checkClientTrusted(chain, authType, socket);
+        } catch (CertificateException e) {
+            if (trustManager == delegate) {
+                throw e;
+            }
+            delegate.checkClientTrusted(chain, authType, socket);
+        }
+    }
+
+    @Override
+    public void checkServerTrusted(X509Certificate[] chain, String authType, Socket socket) throws CertificateException {
+        X509ExtendedTrustManager trustManager = trustManager(chain);
+        try {
+            trustManager.checkServerTrusted(chain, authType, socket);
+        } catch (CertificateException e) {
+            if (trustManager == delegate) {
+                throw e;
+            }
+            delegate.checkServerTrusted(chain, authType, socket);
+        }
+    }
+
+    @Override
+    public void checkClientTrusted(X509Certificate[] chain, String authType, SSLEngine engine) throws CertificateException {
+        X509ExtendedTrustManager trustManager = trustManager(chain);
+        try {
+            trustManager.checkClientTrusted(chain, authType, engine);
+        } catch (CertificateException e) {
+            if (trustManager == delegate) {
+                throw e;
+            }
+            delegate.checkClientTrusted(chain, authType, engine);
+        }
+    }
+
+    @Override
+    public void checkServerTrusted(X509Certificate[] chain, String authType, SSLEngine engine) throws CertificateException {
+        X509ExtendedTrustManager trustManager = trustManager(chain);
+        try {
+            trustManager.checkServerTrusted(chain, authType, engine);
+        } catch (CertificateException e) {
+            if (trustManager == delegate) {
+                throw e;
+            }
+            delegate.checkServerTrusted(chain, authType, engine);
+        }
+    }
+
+    @Override
+    public X509Certificate[] getAcceptedIssuers() {
+        return delegate.getAcceptedIssuers();
+    }
+
+    /**
+     * @return trust manager of the anchors that may have issued the chain
+     */
+    private X509ExtendedTrustManager trustManager(X509Certificate[] chain) {
+        List<X509Certificate> anchors = anchors(chain);
+        if (anchors == null) {
+            misses.increment();
+            return delegate;
+        }
+        X509ExtendedTrustManager trustManager = delegates.get(anchors);
+        if (trustManager == null) {
+            trustManager = delegates.computeIfAbsent(anchors, this::build);
+        }
+        if (trustManager == null) {
+            misses.increment();
+            return delegate;
+        }
+        hits.increment();
+        return trustManager;
+    }
+
+    private List<X509Certificate> anchors(X509Certificate[] chain) {
+        if (chain == null || chain.length == 0) {
+            return null;
+        }
+        X509Certificate last = chain[chain.length - 1];
+        // the peer may send the anchor itself
+        List<X509Certificate> anchors = bySubject.get(last.getSubjectX500Principal());
+        if (anchors != null && anchors.contains(last)) {
+            return anchors;
+        }
+        anchors = bySubject.get(last.getIssuerX500Principal());
+        if (anchors != null) {
+            return anchors;
+        }
+        byte[] keyIdentifier = keyIdentifier(last.getExtensionValue(AUTHORITY_KEY_IDENTIFIER), (byte) 0x80);
+        return keyIdentifier != null ? byKeyIdentifier.get(ByteBuffer.wrap(keyIdentifier)) : null;
+    }
+
+    /**
+     * @return trust manager of the anchors or null if it cannot be built
+     */
+    private X509ExtendedTrustManager build(List<X509Certificate> anchors) {
+        try {
+            KeyStore truststore = KeyStore.getInstance(KeyStore.getDefaultType());
+            truststore.load(null, null);
+            for (int i = 0; i < anchors.size(); i++) {
+                truststore.setCertificateEntry("anchor-" + i, anchors.get(i));
+            }
+            TrustManagerFactory factory = provider != null
+                    ? TrustManagerFactory.getInstance(algorithm, provider)
+                    : TrustManagerFactory.getInstance(algorithm);
+            factory.init(truststore);
+            for (TrustManager trustManager : factory.getTrustManagers()) {
+                if (trustManager instanceof X509ExtendedTrustManager) {
+                    return (X509ExtendedTrustManager) trustManager;
+                }
+            }
+            return null;
+        } catch (Exception e) {
+            return null;
+        }
+    }
+
+    /**
+     * Extract the key identifier from the DER encoded extension value.
+     * <p>
+     * The value is an OCTET STRING wrapping either the subject key identifier
+     * (an OCTET STRING, tag {@code 0x04}) or the authority key identifier
+     * (a SEQUENCE with the optional {@code [0] keyIdentifier}, tag {@code 0x80}).
+     *
+     * @return the identifier or null if there is none
+     */
+    static byte[] keyIdentifier(byte[] extension, byte tag) {
+        if (extension == null) {
+            return null;
+        }
+        try {
+            byte[] value = content(extension, 0, (byte) 0x04);
+            if (tag == (byte) 0x80) {
+                value = content(value, 0, (byte) 0x30);
+            }
+            return value.length > 0 && value[0] == tag ? content(value, 0, tag) : null;
+        } catch (RuntimeException e) {
+            return null;
+        }
+    }
+
+    /**
+     * @return content of the DER element with the given tag at the offset
+     */
+    private static byte[] content(byte[] der, int offset, byte tag) {
+        if (der[offset] != tag) {
+            throw new IllegalArgumentException("Unexpected tag " + der[offset]);
+        }
+        int length = der[offset + 1] & 0xff;
+        int start = offset + 2;
+        if (length > 0x80) {
+            int bytes = length & 0x7f;
+            length = 0;
+            for (int i = 0; i < bytes; i++) {
+                length = (length << 8) | (der[start + i] & 0xff);
+            }
+            start += bytes;
+        }
+        return Arrays.copyOfRange(der, start, start + length);
+    }
+
+}
@@ -0,0 +1,224 @@
+package dev.psmolinski.kafka.ssl;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLEngine;
+import javax.net.ssl.SSLSession;
+
+/**
+ * Java Flight Recorder events of the SSL activity, so that the store loads, context builds
+ * and handshakes line up with GC and safepoints in the same recording.
+ * <p>
+ * The events are created only when their type is enabled in a running recording; otherwise
+ * each hook costs one check. The events in progress are kept per thread for the factory
+ * methods and in a field added to {@code SslTransportLayer} for the handshakes.
+ * <p>
+ * The methods are invoked from the bytecode injected into {@code DefaultSslEngineFactory}
+ * and {@code SslTransportLayer}. The class requires {@code jdk.jfr}; the agent does not
+ * inject the calls when it is not available.
+ */
+public class JfrEvents {
+
+    private static final StoreLoad STORE_LOAD = new StoreLoad();
+    private static final ContextBuild CONTEXT_BUILD = new ContextBuild();
+    private static final Handshake HANDSHAKE = new Handshake();
+    private static final DelegatedTasks DELEGATED_TASKS = new DelegatedTasks();
+
+    private static final ThreadLocal<Event[]> inProgress = ThreadLocal.withInitial(() -> new Event[3]);
+
+    private static final int STORE_SLOT = 0;
+    private static final int CONTEXT_SLOT = 1;
+    private static final int TASKS_SLOT = 2;
+
+    private JfrEvents() {
+    }
+
+    public static void storeLoadBegin(String kind, String type, String path) {
+        // no store configured
+        if (!STORE_LOAD.isEnabled() || (type == null && path == null)) {
+            return;
+        }
+        StoreLoad event = new StoreLoad();
+        event.kind = kind;
+        event.storeType = type;
+        event.path = path;
+        event.begin();
+        inProgress.get()[STORE_SLOT] = event;
+    }
+
+    /**
+     * @return the store
+     */
+    public static Object storeLoadEnd(Object store) {
+        end(STORE_SLOT);
+        return store;
+    }
+
+    public static void contextBuildBegin() {
+        if (!CONTEXT_BUILD.isEnabled()) {
+            return;
+        }
+        ContextBuild event = new ContextBuild();
+        event.begin();
+        inProgress.get()[CONTEXT_SLOT] = event;
+    }
+
+    /**
+     * @return the context
+     */
+    public static Object contextBuildEnd(Object context) {
+        Event[] events = inProgress.get();
+        Event event = events[CONTEXT_SLOT];
+        if (event != null && context instanceof SSLContext) {
+            ((ContextBuild) event).protocol = ((SSLContext) context).getProtocol();
+        }
+        end(CONTEXT_SLOT);
+        return context;
+    }
+
+    /**
+     * @return the event stored in the transport layer until the handshake completes, null if disabled
+     */
+    public static Object handshakeBegin(String channelId) {
+        if (!HANDSHAKE.isEnabled()) {
+            return null;
+        }
+        Handshake event = new Handshake();
+        event.channelId = channelId;
+        event.begin();
+        return event;
+    }
+
+    /**
+     * Commit the event of a completed handshake.
+     * @param ready whether the channel is ready; the handshake is still pending while its last records are written
+     * @return the event to keep for the pending handshake, null once it is committed
+     */
+    public static Object handshakeEnd(boolean ready, Object event, SSLEngine engine) {
+        if (!ready) {
+            return event;
+        }
+        if (!(event instanceof Handshake)) {
+            return null;
+        }
+        Handshake handshake = (Handshake) event;
+        handshake.end();
+        if (handshake.shouldCommit()) {
+            SSLSession session = engine != null ? engine.getSession() : null;
+            if (session != null) {
+                handshake.protocol = session.getProtocol();
+                handshake.cipherSuite = session.getCipherSuite();
+            }
+            handshake.commit();
+        }
+        return null;
+    }
+
+    public static void handshakeFailed(Object event, Throwable cause) {
+        if (!(event instanceof Handshake)) {
+            return;
+        }
+        Handshake handshake = (Handshake) event;
+        handshake.end();
+        if (handshake.shouldCommit()) {
+            handshake.failure = cause != null ? cause.getClass().getName() + ": " + cause.getMessage() : "unknown";
+            handshake.commit();
+        }
+    }
+
+    public static void delegatedTasksBegin(String channelId) {
+        if (!DELEGATED_TASKS.isEnabled()) {
+            return;
+        }
+        DelegatedTasks event = new DelegatedTasks();
+        event.channelId = channelId;
+        event.begin();
+        inProgress.get()[TASKS_SLOT] = event;
+    }
+
+    /**
+     * @return the handshake status returned by the tasks
+     */
+    public static Object delegatedTasksEnd(Object status) {
+        end(TASKS_SLOT);
+        return status;
+    }
+
+    private static void end(int slot) {
+        Event[] events = inProgress.get();
+        Event event = events[slot];
+        if (event == null) {
+            return;
+        }
+        events[slot] = null;
+        event.commit();
+    }
+
+    @Name("dev.psmolinski.kafka.ssl.StoreLoad")
+    @Label("Key or Trust Store Load")
+    @Category({"Kafka", "SSL"})
+    @StackTrace(false)
+    static class StoreLoad extends Event {
+
+        @Label("Kind")
+        @Description("keystore or truststore")
+        String kind;
+
+        @Label("Store Type")
+        String storeType;
+
+        @Label("Path")
+        String path;
+
+    }
+
+    @Name("dev.psmolinski.kafka.ssl.ContextBuild")
+    @Label("SSLContext Build")
+    @Category({"Kafka", "SSL"})
+    @StackTrace(false)
+    static class ContextBuild extends Event {
+
+        @Label("Protocol")
+        String protocol;
+
+    }
+
+    @Name("dev.psmolinski.kafka.ssl.Handshake")
+    @Label("TLS Handshake")
+    @Category({"Kafka", "SSL"})
+    @StackTrace(false)
+    static class Handshake extends Event {
+
+        @Label("Channel")
+        String channelId;
+
+        @Label("Protocol")
+        String protocol;
+
+        @Label("Cipher Suite")
+        String cipherSuite;
+
+        @Label("Failure")
+        String failure;
+
+    }
+
+    @Name("dev.psmolinski.kafka.ssl.DelegatedTasks")
+    @Label("TLS Delegated Tasks")
+    @Description("Handshake phase running the SSLEngine delegated tasks")
+    @Category({"Kafka", "SSL"})
+    @StackTrace(false)
+    static class DelegatedTasks extends Event {
+
+        @Label("Channel")
+        String channelId;
+
+    }
+
+}
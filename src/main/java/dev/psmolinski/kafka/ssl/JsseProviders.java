@@ -0,0 +1,126 @@
+package dev.psmolinski.kafka.ssl;
+
+import javax.net.ssl.SSLContext;
+import java.security.NoSuchAlgorithmException;
+import java.security.NoSuchProviderException;
+import java.security.Provider;
+import java.security.Security;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * JSSE provider of the contexts built by the factory chosen by the agent configuration.
+ * <p>
+ * The {@code sslcontext.provider} value is the name of an installed provider or the class
+ * name of a provider to instantiate; the instance is used directly, without installing it.
+ * When the provider is not available or does not support the protocol, the context comes
+ * from the default provider and the fallback is counted. The {@code ssl.provider} of the
+ * client, when set, is honored as before.
+ * <p>
+ * The providers of the contexts built are counted by name.
+ * <p>
+ * The methods are invoked from the bytecode injected into {@code createSSLContext}
+ * in place of {@code SSLContext.getInstance}.
+ */
+public class JsseProviders {
+
+    private static final String providerName = AgentConfig.current().getString("sslcontext.provider", null);
+
+    private static final Map<String, LongAdder> contexts = new ConcurrentHashMap<>();
+    private static final LongAdder fallbacks = new LongAdder();
+
+    private static volatile Provider provider;
+    private static volatile boolean resolved;
+
+    private JsseProviders() {
+    }
+
+    static boolean enabled(AgentConfig config) {
+        return config.getString("sslcontext.provider", null) != null;
+    }
+
+    /**
+     * Replacement of {@code SSLContext.getInstance(protocol)}.
+     */
+    public static SSLContext getInstance(String protocol) throws NoSuchAlgorithmException {
+        Provider provider = provider();
+        if (provider != null) {
+            try {
+                return built(SSLContext.getInstance(protocol, provider));
+            } catch (NoSuchAlgorithmException e) {
+                // the protocol is not supported by the provider
+            }
+        }
+        if (providerName != null) {
+            fallbacks.increment();
+        }
+        return built(SSLContext.getInstance(protocol));
+    }
+
+    /**
+     * Replacement of {@code SSLContext.getInstance(protocol, provider)}, used when
+     * the {@code ssl.provider} is configured.
+     */
+    public static SSLContext getInstance(String protocol, String provider) throws NoSuchAlgorithmException, NoSuchProviderException {
+        return built(SSLContext.getInstance(protocol, provider));
+    }
+
+    /**
+     * @return the configured provider or null if there is none or it cannot be loaded
+     */
+    static Provider provider() {
+        if (!resolved) {
+            synchronized (JsseProviders.class) {
+                if (!resolved) {
+                    provider = resolve(providerName);
+                    resolved = true;
+                }
+            }
+        }
+        return provider;
+    }
+
+    private static Provider resolve(String name) {
+        if (name == null) {
+            return null;
+        }
+        Provider installed = Security.getProvider(name);
+        if (installed != null) {
+            return installed;
+        }
+        try {
+            ClassLoader loader = Thread.currentThread().getContextClassLoader();
+            Class<?> type = Class.forName(name, true, loader != null ? loader : JsseProviders.class.getClassLoader());
+            return (Provider) type.getConstructor().newInstance();
+        } catch (Exception | LinkageError e) {
+            return null;
+        }
+    }
+
+    private static SSLContext built(SSLContext context) {
+        contexts.computeIfAbsent(context.getProvider().getName(), k -> new LongAdder()).increment();
+        return context;
+    }
+
+    /**
+     * @return number of the contexts built by provider name
+     */
+    public static Map<String, Long> contexts() {
+        Map<String, Long> result = new TreeMap<>();
+        for (Map.Entry<String, LongAdder> e : contexts.entrySet()) {
+            result.put(e.getKey(), e.getValue().sum());
+        }
+        return result;
+    }
+
+    /**
+     * @return number of the contexts built by the default provider, because the configured
+     *         one is not available or does not support the protocol
+     */
+    public static long fallbacks() {
+        return fallbacks.sum();
+    }
+
+}
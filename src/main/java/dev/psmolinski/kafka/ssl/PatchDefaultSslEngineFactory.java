@@ -3,15 +3,159 @@ package dev.psmolinski.kafka.ssl;
 import org.apache.kafka.common.config.types.Password;
 import org.objectweb.asm.*;
 
+import java.io.IOException;
 import java.lang.instrument.ClassFileTransformer;
 import java.lang.instrument.IllegalClassFormatException;
 import java.lang.instrument.Instrumentation;
 import java.security.ProtectionDomain;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
 
 public class PatchDefaultSslEngineFactory implements ClassFileTransformer  {
 
+    static final String DEFAULT_SSL_ENGINE_FACTORY = "org/apache/kafka/common/security/ssl/DefaultSslEngineFactory";
+    static final String FILE_BASED_STORE = DEFAULT_SSL_ENGINE_FACTORY + "$FileBasedStore";
+    static final String SSL_TRANSPORT_LAYER = "org/apache/kafka/common/network/SslTransportLayer";
+    static final String NETWORK_SELECTOR = "org/apache/kafka/common/network/Selector";
+    static final String SSL_FACTORY = "org/apache/kafka/common/security/ssl/SslFactory";
+    static final String CLIENT_UTILS = "org/apache/kafka/clients/ClientUtils";
+
+    // the clients resolving their bootstrap addresses while being created
+    static final List<String> CLIENTS = Arrays.asList(
+            "org/apache/kafka/clients/producer/KafkaProducer",
+            "org/apache/kafka/clients/consumer/KafkaConsumer",
+            "org/apache/kafka/clients/admin/KafkaAdminClient");
+
+    private static final String PASSWORD = "Lorg/apache/kafka/common/config/types/Password;";
+    private static final String STRING = "Ljava/lang/String;";
+
+    // expected parameters of the methods wrapped with the store cache
+    private static final String CREATE_KEYSTORE_PARAMETERS =
+            "(" + STRING + STRING + PASSWORD + PASSWORD + PASSWORD + PASSWORD + ")";
+    private static final String CREATE_TRUSTSTORE_PARAMETERS =
+            "(" + STRING + STRING + PASSWORD + PASSWORD + ")";
+
     public static void premain(String agentArgs, Instrumentation instrumentation) throws Exception {
-        instrumentation.addTransformer(new PatchDefaultSslEngineFactory());
+        AgentConfig config = configure(agentArgs);
+        instrumentation.addTransformer(new PatchDefaultSslEngineFactory(instrumentation, config));
+        if (Warmup.enabled(config)) {
+            Warmup.start(config);
+        }
+        if (PreBuild.enabled(config)) {
+            PreBuild.start(config);
+        }
+        if (CipherSuiteRanking.enabled(config)) {
+            CipherSuiteRanking.start(config);
+        }
+    }
+
+    /**
+     * Dynamic attach to a running JVM. The targets already loaded are retransformed,
+     * the remaining ones are patched when loaded.
+     */
+    public static void agentmain(String agentArgs, Instrumentation instrumentation) throws Exception {
+        AgentConfig config = configure(agentArgs);
+        PatchDefaultSslEngineFactory transformer = new PatchDefaultSslEngineFactory(instrumentation, config);
+        instrumentation.addTransformer(transformer, true);
+        List<Class<?>> loaded = new ArrayList<>();
+        for (Class<?> type : instrumentation.getAllLoadedClasses()) {
+            if (transformer.targets.contains(type.getName().replace('.', '/'))) {
+                loaded.add(type);
+            }
+        }
+        if (!loaded.isEmpty()) {
+            instrumentation.retransformClasses(loaded.toArray(new Class<?>[0]));
+        }
+    }
+
+    private static AgentConfig configure(String agentArgs) {
+        AgentConfig config = AgentConfig.parse(agentArgs);
+        if (config.getString("prebuild", null) != null) {
+            // the pre-built stores and context are picked up from the caches
+            config = config
+                    .withDefault("keystore.cache", "true")
+                    .withDefault("pem.cache", "true")
+                    .withDefault("sslcontext.shared", "true");
+        }
+        AgentConfig.install(config);
+        if (AgentTelemetry.enabled(config)) {
+            AgentTelemetry.register();
+        }
+        return config;
+    }
+
+    private final Instrumentation instrumentation;
+
+    private final AgentConfig config;
+
+    // keep the transformer registered, e.g. for plugin class loaders loading their own kafka-clients copy;
+    // deregistering after the first patch is opt-in, for the JVMs known to have a single copy
+    private final boolean retain;
+
+    private final boolean telemetry;
+
+    private final PatchRules rules;
+
+    private final Set<String> targets = new HashSet<>();
+
+    private final Set<String> pending = ConcurrentHashMap.newKeySet();
+
+    private volatile boolean done;
+
+    public PatchDefaultSslEngineFactory(Instrumentation instrumentation, AgentConfig config) throws IOException {
+        this.instrumentation = instrumentation;
+        this.config = config;
+        this.retain = config.getBoolean("transformer.retain", true);
+        this.telemetry = AgentTelemetry.enabled(config);
+        this.rules = PatchRules.load(config);
+        this.targets.addAll(targets(config, rules));
+        this.pending.addAll(targets);
+    }
+
+    /**
+     * @return internal names of the classes patched with the given configuration
+     */
+    static Set<String> targets(AgentConfig config, PatchRules rules) {
+        Set<String> targets = new HashSet<>();
+        for (String className : rules.classNames()) {
+            targets.add(className);
+        }
+        targets.add(DEFAULT_SSL_ENGINE_FACTORY);
+        if (config.getBoolean("store.watch", false)) {
+            targets.add(FILE_BASED_STORE);
+        }
+        if (HandshakeMetrics.enabled(config) || jfrEvents(config) || BufferPool.enabled(config)
+                || WriteCoalescing.enabled(config) || DelegatedTaskExecutor.enabled(config)) {
+            targets.add(SSL_TRANSPORT_LAYER);
+        }
+        if (DelegatedTaskExecutor.enabled(config)) {
+            targets.add(NETWORK_SELECTOR);
+        }
+        if (EagerHandshakes.enabled(config)) {
+            targets.add(SSL_FACTORY);
+            targets.addAll(CLIENTS);
+        }
+        return targets;
+    }
+
+    /**
+     * The JFR events are emitted when requested and the JVM provides {@code jdk.jfr}.
+     * Checked here, as {@link JfrEvents} cannot be loaded without it.
+     */
+    static boolean jfrEvents(AgentConfig config) {
+        if (!config.getBoolean("jfr.events", false)) {
+            return false;
+        }
+        try {
+            Class.forName("jdk.jfr.Event", false, ClassLoader.getSystemClassLoader());
+            return true;
+        } catch (ClassNotFoundException e) {
+            return false;
+        }
     }
 
     public byte[]
@@ -22,24 +166,184 @@ public class PatchDefaultSslEngineFactory implements ClassFileTransformer  {
                 byte[]              classfileBuffer)
             throws IllegalClassFormatException {
 
-        if (!className.equals("org/apache/kafka/common/security/ssl/DefaultSslEngineFactory")) {
+        if (!telemetry) {
+            return transform(loader, className, classBeingRedefined, classfileBuffer);
+        }
+        long start = System.nanoTime();
+        try {
+            return transform(loader, className, classBeingRedefined, classfileBuffer);
+        } finally {
+            AgentTelemetry.transformed(System.nanoTime() - start);
+        }
+
+    }
+
+    private byte[]
+    transform(  ClassLoader         loader,
+                String              className,
+                Class<?>            classBeingRedefined,
+                byte[]              classfileBuffer) {
+
+        // the callback runs for every class loaded by the JVM; reject as early as possible
+        // the bootstrap loader, lambda forms and hidden classes (null name) never match
+        if (done || loader == null || className == null) {
+            return null;
+        }
+
+        // single hash lookup regardless of the number of rules
+        if (!targets.contains(className)) {
+            return null;
+        }
+
+        // the transport layer patch adds a field, which the retransformation does not allow
+        if (classBeingRedefined != null && SSL_TRANSPORT_LAYER.equals(className)) {
+            skipped(className);
             return null;
         }
 
+        byte[] result = patch(className, classfileBuffer, config, rules);
+
+        patched(className);
+
+        return result;
+
+    }
+
+    /**
+     * Rewrite the target class. Used by the agent and by the offline {@link PatchJar} tool.
+     */
+    static byte[] patch(String className, byte[] classfileBuffer, AgentConfig config, PatchRules rules) {
         ClassReader cr = new ClassReader(classfileBuffer);
         // COMPUTE_MAXS flag is needed when the injected call parameters frame
         // is larger than any frame used in the original code
         ClassWriter cw = new ClassWriter(ClassWriter.COMPUTE_MAXS);
-        cr.accept(new TransformerVisitor(cw), 0);
+        ClassVisitor cv = cw;
+        if (FILE_BASED_STORE.equals(className)) {
+            cv = new FileBasedStoreVisitor(cv);
+        } else if (DEFAULT_SSL_ENGINE_FACTORY.equals(className)) {
+            cv = new TransformerVisitor(cv, config);
+        } else if (SSL_TRANSPORT_LAYER.equals(className)) {
+            cv = new SslTransportLayerVisitor(cv, HandshakeMetrics.enabled(config), jfrEvents(config),
+                    BufferPool.enabled(config), WriteCoalescing.enabled(config), DelegatedTaskExecutor.enabled(config));
+        } else if (NETWORK_SELECTOR.equals(className)) {
+            cv = new SelectorVisitor(cv);
+        } else if (SSL_FACTORY.equals(className)) {
+            cv = new SslFactoryVisitor(cv);
+        } else if (CLIENTS.contains(className)) {
+            cv = new ClientVisitor(cv);
+        }
+        // outermost, so that the parameters are normalized before any other injected code
+        List<PatchRules.Rule> classRules = rules.forClass(className);
+        if (!classRules.isEmpty()) {
+            cv = new NormalizeVisitor(cv, classRules);
+        }
+        cr.accept(cv, 0);
         return cw.toByteArray();
+    }
+
+    /**
+     * Mark the class as patched. With {@code transformer.retain=false}, when all the targets are patched
+     * the transformer deregisters itself, so that the following class loads do not pay for the callback.
+     */
+    private void patched(String className) {
+        if (telemetry) {
+            AgentTelemetry.patched(className);
+        }
+        skipped(className);
+    }
 
+    /**
+     * Mark the class as done without patching it.
+     */
+    private void skipped(String className) {
+        if (pending.remove(className) && pending.isEmpty() && !retain) {
+            done = true;
+            instrumentation.removeTransformer(this);
+        }
     }
 
-    private static class TransformerVisitor extends ClassVisitor {
-        public TransformerVisitor(ClassVisitor cv) {
+    /**
+     * Common helpers for the patching visitors.
+     */
+    private abstract static class PatchVisitor extends ClassVisitor {
+
+        protected String owner;
+        protected int version;
+
+        protected PatchVisitor(ClassVisitor cv) {
             super(Opcodes.ASM9, cv);
         }
 
+        @Override
+        public void visit(int version, int access, String name, String signature, String superName, String[] interfaces) {
+            this.owner = name;
+            this.version = version;
+            super.visit(version, access, name, signature, superName, interfaces);
+        }
+
+        /**
+         * Push all the method arguments on the stack.
+         */
+        protected static void loadArguments(MethodVisitor mv, int access, String descriptor) {
+            int slot = (access & Opcodes.ACC_STATIC) != 0 ? 0 : 1;
+            for (Type type : Type.getArgumentTypes(descriptor)) {
+                mv.visitVarInsn(type.getOpcode(Opcodes.ILOAD), slot);
+                slot += type.getSize();
+            }
+        }
+
+        /**
+         * Return the value on the stack top if it is not null, otherwise drop it
+         * and continue with the original bytecode. The value is unboxed for the
+         * primitive return types.
+         */
+        protected void returnIfNotNull(MethodVisitor mv, Type type) {
+            Label proceed = new Label();
+            mv.visitInsn(Opcodes.DUP);
+            mv.visitJumpInsn(Opcodes.IFNULL, proceed);
+            if (type.getSort() == Type.BOOLEAN) {
+                mv.visitTypeInsn(Opcodes.CHECKCAST, "java/lang/Boolean");
+                mv.visitMethodInsn(Opcodes.INVOKEVIRTUAL, "java/lang/Boolean", "booleanValue", "()Z", false);
+                mv.visitInsn(Opcodes.IRETURN);
+            } else {
+                mv.visitTypeInsn(Opcodes.CHECKCAST, type.getInternalName());
+                mv.visitInsn(Opcodes.ARETURN);
+            }
+            mv.visitLabel(proceed);
+            // the frame is relative to the initial one; the locals are untouched at this point
+            if (version >= Opcodes.V1_6) {
+                mv.visitFrame(Opcodes.F_SAME1, 0, null, 1, new Object[]{"java/lang/Object"});
+            }
+            mv.visitInsn(Opcodes.POP);
+        }
+
+    }
+
+    private static class TransformerVisitor extends PatchVisitor {
+
+        private final AgentConfig config;
+        private final boolean cacheStores;
+        private final boolean sharedContext;
+        private final boolean jfrEvents;
+        private final boolean telemetry;
+        private final boolean trustManagers;
+        private final boolean prebuild;
+        private final boolean provider;
+        private final boolean cipherRanking;
+
+        public TransformerVisitor(ClassVisitor cv, AgentConfig config) {
+            super(cv);
+            this.config = config;
+            this.cacheStores = SecurityStoreCache.enabled(config);
+            this.sharedContext = config.getBoolean("sslcontext.shared", false);
+            this.jfrEvents = jfrEvents(config);
+            this.telemetry = AgentTelemetry.enabled(config);
+            this.trustManagers = TrustManagers.enabled(config);
+            this.prebuild = PreBuild.enabled(config);
+            this.provider = JsseProviders.enabled(config);
+            this.cipherRanking = CipherSuiteRanking.enabled(config);
+        }
+
         @Override
         public MethodVisitor
         visitMethod( int access,
@@ -48,60 +352,531 @@ public class PatchDefaultSslEngineFactory implements ClassFileTransformer  {
                      String signature,
                      String[] exceptions) {
 
-            if ("createKeystore".equals(name)) {
-                return patchCreateKeystore(access, name, descriptor, signature, exceptions);
+            MethodVisitor mv = patchMethod(access, name, descriptor, signature, exceptions);
+
+            if (!SessionResumption.enabled(config)) {
+                return mv;
             }
 
-            if ("createTruststore".equals(name)) {
-                return patchCreateTruststore(access, name, descriptor, signature, exceptions);
+            // the engines created without the peer hints get them from createClientSslEngine
+            return new MethodVisitor(api, mv) {
+                @Override
+                public void visitMethodInsn(int opcode, String owner, String name, String descriptor, boolean isInterface) {
+                    if (opcode == Opcodes.INVOKEVIRTUAL
+                            && "javax/net/ssl/SSLContext".equals(owner)
+                            && "createSSLEngine".equals(name)
+                            && "()Ljavax/net/ssl/SSLEngine;".equals(descriptor)) {
+                        super.visitMethodInsn(
+                                Opcodes.INVOKESTATIC,
+                                "dev/psmolinski/kafka/ssl/SessionResumption",
+                                "createSSLEngine",
+                                "(Ljavax/net/ssl/SSLContext;)Ljavax/net/ssl/SSLEngine;",
+                                false);
+                        return;
+                    }
+                    super.visitMethodInsn(opcode, owner, name, descriptor, isInterface);
+                }
+            };
+
+        }
+
+        private MethodVisitor
+        patchMethod( int access,
+                     String name,
+                     String descriptor,
+                     String signature,
+                     String[] exceptions) {
+
+            if ("createKeystore".equals(name) && (cacheStores || jfrEvents || telemetry) && descriptor.startsWith(CREATE_KEYSTORE_PARAMETERS)) {
+                return patchCreateStore(access, name, descriptor, signature, exceptions,
+                        "keystore", "lookupKeystore", CREATE_KEYSTORE_PARAMETERS);
+            }
+
+            if ("createTruststore".equals(name) && (cacheStores || jfrEvents || telemetry) && descriptor.startsWith(CREATE_TRUSTSTORE_PARAMETERS)) {
+                return patchCreateStore(access, name, descriptor, signature, exceptions,
+                        "truststore", "lookupTruststore", CREATE_TRUSTSTORE_PARAMETERS);
+            }
+
+            if ("createSSLContext".equals(name) && (sharedContext || jfrEvents || trustManagers || provider || SessionResumption.configured(config))) {
+                return patchCreateSSLContext(access, name, descriptor, signature, exceptions);
+            }
+
+            if ("createClientSslEngine".equals(name) && (SessionResumption.enabled(config) || cipherRanking)
+                    && descriptor.startsWith("(" + STRING + "I")) {
+                return patchCreateClientSslEngine(access, name, descriptor, signature, exceptions);
+            }
+
+            if ("createServerSslEngine".equals(name) && cipherRanking
+                    && descriptor.endsWith(")Ljavax/net/ssl/SSLEngine;")) {
+                return patchCreateServerSslEngine(access, name, descriptor, signature, exceptions);
+            }
+
+            if ("close".equals(name) && "()V".equals(descriptor) && sharedContext) {
+                return patchClose(access, name, descriptor, signature, exceptions);
+            }
+
+            if ("configure".equals(name) && "(Ljava/util/Map;)V".equals(descriptor) && prebuild) {
+                return patchConfigure(access, name, descriptor, signature, exceptions);
+            }
+
+            if ("shouldBeRebuilt".equals(name) && RebuildCoordinator.enabled(config)) {
+                return patchShouldBeRebuilt(access, name, descriptor, signature, exceptions);
             }
 
             return super.visitMethod(access, name, descriptor, signature, exceptions);
 
         }
 
+        /**
+         * Wrap the store creation with the store cache and the JFR event.
+         * The first two parameters are the store type and path.
+         */
         private MethodVisitor
-        patchCreateKeystore( int access,
-                                  String name,
-                                  String descriptor,
-                                  String signature,
-                                  String[] exceptions) {
+        patchCreateStore( int access,
+                          String name,
+                          String descriptor,
+                          String signature,
+                          String[] exceptions,
+                          String kind,
+                          String lookup,
+                          String parameters) {
 
             MethodVisitor mv = super.visitMethod(access, name, descriptor, signature, exceptions);
 
             return new MethodVisitor(api, mv) {
                 @Override
                 public void visitCode() {
+                    super.visitCode();
 
-                    nullifyString(mv, 2);
-                    nullifyPassword(mv, 3);
-                    nullifyPassword(mv, 4);
-                    nullifyPassword(mv, 5);
-                    nullifyPassword(mv, 6);
+                    if (cacheStores) {
+                        loadArguments(mv, access, descriptor);
+                        mv.visitMethodInsn(
+                                Opcodes.INVOKESTATIC,
+                                "dev/psmolinski/kafka/ssl/SecurityStoreCache",
+                                lookup,
+                                parameters + "Ljava/lang/Object;",
+                                false);
+                        returnIfNotNull(mv, Type.getReturnType(descriptor));
+                    }
 
-                    // continue with the original bytecode
+                    // the cache hits are not store loads
+                    if (telemetry) {
+                        storeLoadBegin(mv, "dev/psmolinski/kafka/ssl/AgentTelemetry");
+                    }
+                    if (jfrEvents) {
+                        storeLoadBegin(mv, "dev/psmolinski/kafka/ssl/JfrEvents");
+                    }
+
+                }
+
+                private void storeLoadBegin(MethodVisitor mv, String helper) {
+                    int slot = (access & Opcodes.ACC_STATIC) != 0 ? 0 : 1;
+                    mv.visitLdcInsn(kind);
+                    mv.visitVarInsn(Opcodes.ALOAD, slot); // type
+                    mv.visitVarInsn(Opcodes.ALOAD, slot + 1); // path
+                    mv.visitMethodInsn(
+                            Opcodes.INVOKESTATIC,
+                            helper,
+                            "storeLoadBegin",
+                            "(Ljava/lang/String;Ljava/lang/String;Ljava/lang/String;)V",
+                            false);
+                }
+
+                private void storeLoadEnd(MethodVisitor mv, String helper, String type) {
+                    mv.visitMethodInsn(
+                            Opcodes.INVOKESTATIC,
+                            helper,
+                            "storeLoadEnd",
+                            "(Ljava/lang/Object;)Ljava/lang/Object;",
+                            false);
+                    mv.visitTypeInsn(Opcodes.CHECKCAST, type);
+                }
+
+                @Override
+                public void visitInsn(int opcode) {
+                    if (opcode == Opcodes.ARETURN) {
+                        String type = Type.getReturnType(descriptor).getInternalName();
+                        if (cacheStores) {
+                            storeResult(mv, type);
+                        }
+                        if (jfrEvents) {
+                            storeLoadEnd(mv, "dev/psmolinski/kafka/ssl/JfrEvents", type);
+                        }
+                        if (telemetry) {
+                            storeLoadEnd(mv, "dev/psmolinski/kafka/ssl/AgentTelemetry", type);
+                        }
+                    }
+                    super.visitInsn(opcode);
+                }
+            };
+
+        }
+
+        private MethodVisitor
+        patchCreateSSLContext( int access,
+                               String name,
+                               String descriptor,
+                               String signature,
+                               String[] exceptions) {
+
+            MethodVisitor mv = super.visitMethod(access, name, descriptor, signature, exceptions);
+
+            return new MethodVisitor(api, mv) {
+                @Override
+                public void visitCode() {
                     super.visitCode();
 
+                    if (sharedContext) {
+                        // return the shared context if there is one
+                        mv.visitVarInsn(Opcodes.ALOAD, 0);
+                        loadConfigs(mv);
+                        mv.visitMethodInsn(
+                                Opcodes.INVOKESTATIC,
+                                "dev/psmolinski/kafka/ssl/SharedSslContextRegistry",
+                                "acquire",
+                                "(Ljava/lang/Object;Ljava/util/Map;)Ljava/lang/Object;",
+                                false);
+                        returnIfNotNull(mv, Type.getObjectType("javax/net/ssl/SSLContext"));
+                    }
+
+                    if (jfrEvents) {
+                        mv.visitMethodInsn(
+                                Opcodes.INVOKESTATIC,
+                                "dev/psmolinski/kafka/ssl/JfrEvents",
+                                "contextBuildBegin",
+                                "()V",
+                                false);
+                    }
+
+                }
+
+                @Override
+                public void visitMethodInsn(int opcode, String owner, String name, String descriptor, boolean isInterface) {
+                    // the trust managers passed to SSLContext.init are decorated
+                    if (trustManagers
+                            && opcode == Opcodes.INVOKEVIRTUAL
+                            && "javax/net/ssl/TrustManagerFactory".equals(owner)
+                            && "getTrustManagers".equals(name)
+                            && "()[Ljavax/net/ssl/TrustManager;".equals(descriptor)) {
+                        super.visitMethodInsn(
+                                Opcodes.INVOKESTATIC,
+                                "dev/psmolinski/kafka/ssl/TrustManagers",
+                                "wrap",
+                                "(Ljavax/net/ssl/TrustManagerFactory;)[Ljavax/net/ssl/TrustManager;",
+                                false);
+                        return;
+                    }
+                    // the context is created with the provider chosen by the agent configuration
+                    if (provider
+                            && opcode == Opcodes.INVOKESTATIC
+                            && "javax/net/ssl/SSLContext".equals(owner)
+                            && "getInstance".equals(name)
+                            && ("(Ljava/lang/String;)Ljavax/net/ssl/SSLContext;".equals(descriptor)
+                                || "(Ljava/lang/String;Ljava/lang/String;)Ljavax/net/ssl/SSLContext;".equals(descriptor))) {
+                        super.visitMethodInsn(
+                                Opcodes.INVOKESTATIC,
+                                "dev/psmolinski/kafka/ssl/JsseProviders",
+                                "getInstance",
+                                descriptor,
+                                false);
+                        return;
+                    }
+                    super.visitMethodInsn(opcode, owner, name, descriptor, isInterface);
+                }
+
+                @Override
+                public void visitInsn(int opcode) {
+                    if (opcode == Opcodes.ARETURN) {
+                        // stack: context
+                        // the shared contexts are configured once, before they are registered
+                        configureSessions(mv);
+                        if (sharedContext) {
+                            mv.visitVarInsn(Opcodes.ALOAD, 0);
+                            loadConfigs(mv);
+                            mv.visitMethodInsn(
+                                    Opcodes.INVOKESTATIC,
+                                    "dev/psmolinski/kafka/ssl/SharedSslContextRegistry",
+                                    "register",
+                                    "(Ljava/lang/Object;Ljava/lang/Object;Ljava/util/Map;)Ljava/lang/Object;",
+                                    false);
+                            mv.visitTypeInsn(Opcodes.CHECKCAST, "javax/net/ssl/SSLContext");
+                        }
+                        if (jfrEvents) {
+                            mv.visitMethodInsn(
+                                    Opcodes.INVOKESTATIC,
+                                    "dev/psmolinski/kafka/ssl/JfrEvents",
+                                    "contextBuildEnd",
+                                    "(Ljava/lang/Object;)Ljava/lang/Object;",
+                                    false);
+                            mv.visitTypeInsn(Opcodes.CHECKCAST, "javax/net/ssl/SSLContext");
+                        }
+                    }
+                    super.visitInsn(opcode);
+                }
+            };
+
+        }
+
+        /**
+         * Apply the session cache settings to the context on the stack top.
+         */
+        private void configureSessions(MethodVisitor mv) {
+            if (!SessionResumption.configured(config)) {
+                return;
+            }
+            mv.visitMethodInsn(
+                    Opcodes.INVOKESTATIC,
+                    "dev/psmolinski/kafka/ssl/SessionResumption",
+                    "configure",
+                    "(Ljava/lang/Object;)Ljava/lang/Object;",
+                    false);
+            mv.visitTypeInsn(Opcodes.CHECKCAST, "javax/net/ssl/SSLContext");
+        }
+
+        private MethodVisitor
+        patchCreateClientSslEngine( int access,
+                                    String name,
+                                    String descriptor,
+                                    String signature,
+                                    String[] exceptions) {
+
+            MethodVisitor mv = super.visitMethod(access, name, descriptor, signature, exceptions);
+
+            boolean resumption = SessionResumption.enabled(config);
+
+            return new MethodVisitor(api, mv) {
+                @Override
+                public void visitCode() {
+                    super.visitCode();
+                    if (!resumption) {
+                        return;
+                    }
+                    mv.visitVarInsn(Opcodes.ALOAD, 1); // peerHost
+                    mv.visitVarInsn(Opcodes.ILOAD, 2); // peerPort
+                    mv.visitMethodInsn(
+                            Opcodes.INVOKESTATIC,
+                            "dev/psmolinski/kafka/ssl/SessionResumption",
+                            "peer",
+                            "(Ljava/lang/String;I)V",
+                            false);
+                }
+
+                @Override
+                public void visitInsn(int opcode) {
+                    if (opcode == Opcodes.ARETURN) {
+                        if (resumption) {
+                            mv.visitMethodInsn(
+                                    Opcodes.INVOKESTATIC,
+                                    "dev/psmolinski/kafka/ssl/SessionResumption",
+                                    "client",
+                                    "(Ljava/lang/Object;)Ljava/lang/Object;",
+                                    false);
+                        }
+                        if (cipherRanking) {
+                            mv.visitMethodInsn(
+                                    Opcodes.INVOKESTATIC,
+                                    "dev/psmolinski/kafka/ssl/CipherSuiteRanking",
+                                    "rank",
+                                    "(Ljava/lang/Object;)Ljava/lang/Object;",
+                                    false);
+                        }
+                        mv.visitTypeInsn(Opcodes.CHECKCAST, Type.getReturnType(descriptor).getInternalName());
+                    }
+                    super.visitInsn(opcode);
+                }
+            };
+
+        }
+
+        /**
+         * Rank the cipher suites of the returned engine.
+         */
+        private MethodVisitor
+        patchCreateServerSslEngine( int access,
+                                    String name,
+                                    String descriptor,
+                                    String signature,
+                                    String[] exceptions) {
+
+            MethodVisitor mv = super.visitMethod(access, name, descriptor, signature, exceptions);
+
+            return new MethodVisitor(api, mv) {
+                @Override
+                public void visitInsn(int opcode) {
+                    if (opcode == Opcodes.ARETURN) {
+                        mv.visitMethodInsn(
+                                Opcodes.INVOKESTATIC,
+                                "dev/psmolinski/kafka/ssl/CipherSuiteRanking",
+                                "rank",
+                                "(Ljava/lang/Object;)Ljava/lang/Object;",
+                                false);
+                        mv.visitTypeInsn(Opcodes.CHECKCAST, Type.getReturnType(descriptor).getInternalName());
+                    }
+                    super.visitInsn(opcode);
                 }
             };
 
         }
 
         private MethodVisitor
-        patchCreateTruststore( int access,
-                             String name,
-                             String descriptor,
-                             String signature,
-                             String[] exceptions) {
+        patchClose( int access,
+                    String name,
+                    String descriptor,
+                    String signature,
+                    String[] exceptions) {
 
             MethodVisitor mv = super.visitMethod(access, name, descriptor, signature, exceptions);
 
             return new MethodVisitor(api, mv) {
                 @Override
                 public void visitCode() {
-                    nullifyString(mv, 1);
-                    nullifyPassword(mv, 2);
-                    nullifyPassword(mv, 3);
+                    super.visitCode();
+                    mv.visitVarInsn(Opcodes.ALOAD, 0);
+                    mv.visitMethodInsn(
+                            Opcodes.INVOKESTATIC,
+                            "dev/psmolinski/kafka/ssl/SharedSslContextRegistry",
+                            "release",
+                            "(Ljava/lang/Object;)V",
+                            false);
+                }
+            };
+
+        }
+
+        private MethodVisitor
+        patchConfigure( int access,
+                        String name,
+                        String descriptor,
+                        String signature,
+                        String[] exceptions) {
+
+            MethodVisitor mv = super.visitMethod(access, name, descriptor, signature, exceptions);
+
+            return new MethodVisitor(api, mv) {
+                @Override
+                public void visitCode() {
+                    super.visitCode();
+                    mv.visitVarInsn(Opcodes.ALOAD, 1); // configs
+                    mv.visitMethodInsn(
+                            Opcodes.INVOKESTATIC,
+                            "dev/psmolinski/kafka/ssl/PreBuild",
+                            "await",
+                            "(Ljava/util/Map;)V",
+                            false);
+                }
+            };
+
+        }
+
+        private MethodVisitor
+        patchShouldBeRebuilt( int access,
+                              String name,
+                              String descriptor,
+                              String signature,
+                              String[] exceptions) {
+
+            MethodVisitor mv = super.visitMethod(access, name, descriptor, signature, exceptions);
+
+            return new MethodVisitor(api, mv) {
+                @Override
+                public void visitInsn(int opcode) {
+                    if (opcode == Opcodes.IRETURN) {
+                        // stack: rebuild
+                        mv.visitVarInsn(Opcodes.ALOAD, 0);
+                        mv.visitVarInsn(Opcodes.ALOAD, 1); // nextConfigs
+                        loadConfigs(mv);
+                        mv.visitMethodInsn(
+                                Opcodes.INVOKESTATIC,
+                                "dev/psmolinski/kafka/ssl/RebuildCoordinator",
+                                "admit",
+                                "(ZLjava/lang/Object;Ljava/util/Map;Ljava/util/Map;)Z",
+                                false);
+                    }
+                    super.visitInsn(opcode);
+                }
+            };
+
+        }
+
+        private void loadConfigs(MethodVisitor mv) {
+            mv.visitVarInsn(Opcodes.ALOAD, 0);
+            mv.visitFieldInsn(Opcodes.GETFIELD, owner, "configs", "Ljava/util/Map;");
+        }
+
+        /**
+         * Pass the returned store through the cache.
+         */
+        private static void storeResult(MethodVisitor mv, String type) {
+            mv.visitMethodInsn(
+                    Opcodes.INVOKESTATIC,
+                    "dev/psmolinski/kafka/ssl/SecurityStoreCache",
+                    "store",
+                    "(Ljava/lang/Object;)Ljava/lang/Object;",
+                    false);
+            mv.visitTypeInsn(Opcodes.CHECKCAST, type);
+        }
+
+    }
+
+    /**
+     * Replace the empty parameter values with null on method entry, as defined by the {@link PatchRules}.
+     */
+    private static class NormalizeVisitor extends PatchVisitor {
+
+        private final List<PatchRules.Rule> rules;
+
+        public NormalizeVisitor(ClassVisitor cv, List<PatchRules.Rule> rules) {
+            super(cv);
+            this.rules = rules;
+        }
+
+        @Override
+        public MethodVisitor
+        visitMethod( int access,
+                     String name,
+                     String descriptor,
+                     String signature,
+                     String[] exceptions) {
+
+            MethodVisitor mv = super.visitMethod(access, name, descriptor, signature, exceptions);
+
+            List<PatchRules.Rule> matching = new ArrayList<>();
+            for (PatchRules.Rule rule : rules) {
+                if (rule.matches(name, descriptor)) {
+                    matching.add(rule);
+                }
+            }
+            if (matching.isEmpty()) {
+                return mv;
+            }
+
+            // resolve the local variable slots of the parameters
+            Type[] arguments = Type.getArgumentTypes(descriptor);
+            int[] slots = new int[arguments.length];
+            int slot = (access & Opcodes.ACC_STATIC) != 0 ? 0 : 1;
+            for (int i = 0; i < arguments.length; i++) {
+                slots[i] = slot;
+                slot += arguments[i].getSize();
+            }
+
+            return new MethodVisitor(api, mv) {
+                @Override
+                public void visitCode() {
+
+                    for (PatchRules.Rule rule : matching) {
+                        for (int param : rule.parameters) {
+                            if (param < 0 || param >= arguments.length) {
+                                continue;
+                            }
+                            String type = arguments[param].getDescriptor();
+                            if (STRING.equals(type)) {
+                                nullifyString(mv, slots[param]);
+                            } else if (PASSWORD.equals(type)) {
+                                nullifyPassword(mv, slots[param]);
+                            }
+                        }
+                    }
+
                     // continue with the original bytecode
                     super.visitCode();
 
@@ -140,8 +915,687 @@ public class PatchDefaultSslEngineFactory implements ClassFileTransformer  {
 
     }
 
+    /**
+     * Serve the {@code FileBasedStore.modified()} checks from the shared change tracker.
+     */
+    private static class FileBasedStoreVisitor extends PatchVisitor {
+
+        public FileBasedStoreVisitor(ClassVisitor cv) {
+            super(cv);
+        }
+
+        @Override
+        public MethodVisitor
+        visitMethod( int access,
+                     String name,
+                     String descriptor,
+                     String signature,
+                     String[] exceptions) {
+
+            MethodVisitor mv = super.visitMethod(access, name, descriptor, signature, exceptions);
+
+            if (!"modified".equals(name) || !"()Z".equals(descriptor)) {
+                return mv;
+            }
+
+            return new MethodVisitor(api, mv) {
+                @Override
+                public void visitCode() {
+                    super.visitCode();
+                    mv.visitVarInsn(Opcodes.ALOAD, 0);
+                    mv.visitFieldInsn(Opcodes.GETFIELD, owner, "path", "Ljava/lang/String;");
+                    mv.visitVarInsn(Opcodes.ALOAD, 0);
+                    mv.visitFieldInsn(Opcodes.GETFIELD, owner, "fileLastModifiedMs", "Ljava/lang/Long;");
+                    mv.visitMethodInsn(
+                            Opcodes.INVOKESTATIC,
+                            "dev/psmolinski/kafka/ssl/StoreChangeTracker",
+                            "modified",
+                            "(Ljava/lang/String;Ljava/lang/Long;)Ljava/lang/Boolean;",
+                            false);
+                    // untracked file falls back to the original check
+                    returnIfNotNull(mv, Type.BOOLEAN_TYPE);
+                }
+            };
+
+        }
+
+    }
+
+    /**
+     * Pass the bootstrap addresses resolved by {@code ClientUtils.parseAndValidateAddresses}
+     * in the client constructors to the {@link EagerHandshakes}. The method calling it clears
+     * them on every return and, through an added catch-all handler, when it throws, so that
+     * the addresses of a client that does not configure an SSL factory do not stay with
+     * the thread.
+     */
+    private static class ClientVisitor extends PatchVisitor {
+
+        public ClientVisitor(ClassVisitor cv) {
+            super(cv);
+        }
+
+        @Override
+        public MethodVisitor
+        visitMethod( int access,
+                     String name,
+                     String descriptor,
+                     String signature,
+                     String[] exceptions) {
+
+            MethodVisitor mv = super.visitMethod(access, name, descriptor, signature, exceptions);
+
+            boolean isStatic = (access & Opcodes.ACC_STATIC) != 0;
+
+            return new MethodVisitor(api, mv) {
+
+                // start of the region covered by the handler, right after the call
+                private Label start;
+
+                @Override
+                public void visitMethodInsn(int opcode, String callOwner, String callName, String callDescriptor, boolean isInterface) {
+                    super.visitMethodInsn(opcode, callOwner, callName, callDescriptor, isInterface);
+                    if (opcode != Opcodes.INVOKESTATIC || !CLIENT_UTILS.equals(callOwner)
+                            || !"parseAndValidateAddresses".equals(callName) || !callDescriptor.endsWith(")Ljava/util/List;")) {
+                        return;
+                    }
+                    mv.visitInsn(Opcodes.DUP);
+                    mv.visitMethodInsn(
+                            Opcodes.INVOKESTATIC,
+                            "dev/psmolinski/kafka/ssl/EagerHandshakes",
+                            "bootstrap",
+                            "(Ljava/lang/Object;)V",
+                            false);
+                    if (start == null) {
+                        start = new Label();
+                        mv.visitLabel(start);
+                    }
+                }
+
+                @Override
+                public void visitInsn(int opcode) {
+                    if (start != null && opcode >= Opcodes.IRETURN && opcode <= Opcodes.RETURN) {
+                        clear(mv);
+                    }
+                    super.visitInsn(opcode);
+                }
+
+                @Override
+                public void visitMaxs(int maxStack, int maxLocals) {
+                    if (start != null) {
+                        Label end = new Label();
+                        Label handler = new Label();
+                        mv.visitLabel(end);
+                        mv.visitLabel(handler);
+                        if (version >= Opcodes.V1_6) {
+                            // this is initialized before the call
+                            Object[] locals = isStatic ? new Object[0] : new Object[]{owner};
+                            mv.visitFrame(Opcodes.F_FULL, locals.length, locals, 1, new Object[]{"java/lang/Throwable"});
+                        }
+                        clear(mv);
+                        mv.visitInsn(Opcodes.ATHROW);
+                        // last in the exception table, after the handlers of the original code
+                        mv.visitTryCatchBlock(start, end, handler, null);
+                    }
+                    super.visitMaxs(maxStack, maxLocals);
+                }
+            };
+
+        }
+
+        private static void clear(MethodVisitor mv) {
+            mv.visitMethodInsn(
+                    Opcodes.INVOKESTATIC,
+                    "dev/psmolinski/kafka/ssl/EagerHandshakes",
+                    "clear",
+                    "()V",
+                    false);
+        }
+
+    }
+
+    /**
+     * Start the {@link EagerHandshakes} when {@code SslFactory.configure} returns, with the mode
+     * and the engine factory, so that only the client factories connect.
+     */
+    private static class SslFactoryVisitor extends PatchVisitor {
+
+        private static final String MODE = "Lorg/apache/kafka/common/network/Mode;";
+        private static final String SSL_ENGINE_FACTORY = "Lorg/apache/kafka/common/security/auth/SslEngineFactory;";
+
+        private boolean mode;
+        private boolean sslEngineFactory;
+
+        public SslFactoryVisitor(ClassVisitor cv) {
+            super(cv);
+        }
+
+        @Override
+        public FieldVisitor visitField(int access, String name, String descriptor, String signature, Object value) {
+            // the fields are visited before the methods
+            if ("mode".equals(name) && MODE.equals(descriptor)) {
+                mode = true;
+            } else if ("sslEngineFactory".equals(name) && SSL_ENGINE_FACTORY.equals(descriptor)) {
+                sslEngineFactory = true;
+            }
+            return super.visitField(access, name, descriptor, signature, value);
+        }
+
+        @Override
+        public MethodVisitor
+        visitMethod( int access,
+                     String name,
+                     String descriptor,
+                     String signature,
+                     String[] exceptions) {
+
+            MethodVisitor mv = super.visitMethod(access, name, descriptor, signature, exceptions);
+
+            if (!"configure".equals(name) || !"(Ljava/util/Map;)V".equals(descriptor) || !mode || !sslEngineFactory) {
+                return mv;
+            }
+
+            return new MethodVisitor(api, mv) {
+                @Override
+                public void visitInsn(int opcode) {
+                    if (opcode == Opcodes.RETURN) {
+                        mv.visitVarInsn(Opcodes.ALOAD, 0);
+                        mv.visitFieldInsn(Opcodes.GETFIELD, owner, "mode", MODE);
+                        mv.visitVarInsn(Opcodes.ALOAD, 0);
+                        mv.visitFieldInsn(Opcodes.GETFIELD, owner, "sslEngineFactory", SSL_ENGINE_FACTORY);
+                        mv.visitVarInsn(Opcodes.ALOAD, 1); // configs
+                        mv.visitMethodInsn(
+                                Opcodes.INVOKESTATIC,
+                                "dev/psmolinski/kafka/ssl/EagerHandshakes",
+                                "configured",
+                                "(Ljava/lang/Object;Ljava/lang/Object;Ljava/util/Map;)V",
+                                false);
+                    }
+                    super.visitInsn(opcode);
+                }
+            };
+
+        }
+
+    }
+
+    /**
+     * Let the {@link DelegatedTaskExecutor} restore the interest sets of the channels whose
+     * offloaded tasks have completed, on the network thread, before {@code select}.
+     */
+    private static class SelectorVisitor extends PatchVisitor {
+
+        private static final String NIO_SELECTOR = "Ljava/nio/channels/Selector;";
+
+        private boolean nioSelector;
+
+        public SelectorVisitor(ClassVisitor cv) {
+            super(cv);
+        }
+
+        @Override
+        public FieldVisitor visitField(int access, String name, String descriptor, String signature, Object value) {
+            // the fields are visited before the methods
+            if ("nioSelector".equals(name) && NIO_SELECTOR.equals(descriptor)) {
+                nioSelector = true;
+            }
+            return super.visitField(access, name, descriptor, signature, value);
+        }
+
+        @Override
+        public MethodVisitor
+        visitMethod( int access,
+                     String name,
+                     String descriptor,
+                     String signature,
+                     String[] exceptions) {
+
+            MethodVisitor mv = super.visitMethod(access, name, descriptor, signature, exceptions);
+
+            if (!"select".equals(name) || !"(J)I".equals(descriptor) || !nioSelector) {
+                return mv;
+            }
+
+            return new MethodVisitor(api, mv) {
+                @Override
+                public void visitCode() {
+                    super.visitCode();
+                    mv.visitVarInsn(Opcodes.ALOAD, 0);
+                    mv.visitFieldInsn(Opcodes.GETFIELD, owner, "nioSelector", NIO_SELECTOR);
+                    mv.visitMethodInsn(
+                            Opcodes.INVOKESTATIC,
+                            "dev/psmolinski/kafka/ssl/DelegatedTaskExecutor",
+                            "resume",
+                            "(" + NIO_SELECTOR + ")V",
+                            false);
+                }
+            };
+
+        }
+
+    }
+
+    /**
+     * Record the handshake duration, outcome and negotiated parameters in {@link HandshakeMetrics}
+     * and as {@link JfrEvents}. The start time and the event in progress are kept in added fields,
+     * so that the metrics recording does not allocate.
+     * <p>
+     * With the {@link BufferPool} the buffers allocated by {@code startHandshake} come from
+     * the pool and every buffer dropped by a field assignment goes back to it. The empty
+     * buffers of an established connection are detached when {@code handshake}, {@code read}
+     * and {@code write} return, and attached again on entry of {@code read}, {@code write}
+     * and {@code close}.
+     * <p>
+     * With the {@link WriteCoalescing} the gathering write is delegated to it first.
+     * <p>
+     * With the {@link DelegatedTaskExecutor} the delegated tasks are offered to it first.
+     */
+    private static class SslTransportLayerVisitor extends PatchVisitor {
+
+        private static final String START_FIELD = "kafkaSslFix$handshakeStartNanos";
+        private static final String EVENT_FIELD = "kafkaSslFix$handshakeEvent";
+
+        private static final String SSL_ENGINE = "Ljavax/net/ssl/SSLEngine;";
+        private static final String SELECTION_KEY = "Ljava/nio/channels/SelectionKey;";
+        private static final String OBJECT = "Ljava/lang/Object;";
+
+        private static final String BYTE_BUFFER = "Ljava/nio/ByteBuffer;";
+
+        private final boolean metrics;
+        private final boolean jfrEvents;
+        private final boolean buffers;
+        private final boolean coalesce;
+        private final boolean offload;
+
+        private boolean channelId;
+        private boolean sslEngine;
+        private boolean key;
+
+        public SslTransportLayerVisitor(ClassVisitor cv, boolean metrics, boolean jfrEvents, boolean buffers, boolean coalesce, boolean offload) {
+            super(cv);
+            this.metrics = metrics;
+            this.jfrEvents = jfrEvents;
+            this.buffers = buffers;
+            this.coalesce = coalesce;
+            this.offload = offload;
+        }
+
+        @Override
+        public FieldVisitor visitField(int access, String name, String descriptor, String signature, Object value) {
+            // the fields are visited before the methods
+            if ("channelId".equals(name) && STRING.equals(descriptor)) {
+                channelId = true;
+            } else if ("sslEngine".equals(name) && SSL_ENGINE.equals(descriptor)) {
+                sslEngine = true;
+            } else if ("key".equals(name) && SELECTION_KEY.equals(descriptor)) {
+                key = true;
+            }
+            return super.visitField(access, name, descriptor, signature, value);
+        }
+
+        @Override
+        public MethodVisitor
+        visitMethod( int access,
+                     String name,
+                     String descriptor,
+                     String signature,
+                     String[] exceptions) {
+
+            MethodVisitor mv = super.visitMethod(access, name, descriptor, signature, exceptions);
+
+            if (!channelId || !sslEngine) {
+                return mv;
+            }
+
+            if (buffers && !"<init>".equals(name)) {
+                mv = poolBuffers(mv, "startHandshake".equals(name));
+                // outside of the pooling, so that the detached buffers are released by the field assignment
+                mv = detachBuffers(mv, name, descriptor);
+            }
+
+            if ("startHandshake".equals(name) && "()V".equals(descriptor)) {
+                return new MethodVisitor(api, mv) {
+                    @Override
+                    public void visitCode() {
+                        super.visitCode();
+                        if (metrics) {
+                            mv.visitVarInsn(Opcodes.ALOAD, 0);
+                            mv.visitMethodInsn(Opcodes.INVOKESTATIC, "java/lang/System", "nanoTime", "()J", false);
+                            mv.visitFieldInsn(Opcodes.PUTFIELD, owner, START_FIELD, "J");
+                        }
+                        if (jfrEvents) {
+                            mv.visitVarInsn(Opcodes.ALOAD, 0);
+                            loadField(mv, "channelId", STRING);
+                            mv.visitMethodInsn(
+                                    Opcodes.INVOKESTATIC,
+                                    "dev/psmolinski/kafka/ssl/JfrEvents",
+                                    "handshakeBegin",
+                                    "(Ljava/lang/String;)Ljava/lang/Object;",
+                                    false);
+                            mv.visitFieldInsn(Opcodes.PUTFIELD, owner, EVENT_FIELD, OBJECT);
+                        }
+                    }
+                };
+            }
+
+            if ("handshakeFinished".equals(name) && "()V".equals(descriptor)) {
+                return new MethodVisitor(api, mv) {
+                    @Override
+                    public void visitInsn(int opcode) {
+                        // recorded on the normal return only, after Kafka has checked the handshake status;
+                        // the handshake is complete once the channel is ready, not while the last records are written
+                        if (opcode == Opcodes.RETURN) {
+                            if (metrics) {
+                                mv.visitVarInsn(Opcodes.ALOAD, 0);
+                                loadReady(mv);
+                                loadField(mv, START_FIELD, "J");
+                                loadField(mv, "channelId", STRING);
+                                loadField(mv, "sslEngine", SSL_ENGINE);
+                                mv.visitMethodInsn(
+                                        Opcodes.INVOKESTATIC,
+                                        "dev/psmolinski/kafka/ssl/HandshakeMetrics",
+                                        "finished",
+                                        "(ZJLjava/lang/String;Ljavax/net/ssl/SSLEngine;)J",
+                                        false);
+                                // count a handshake once, also when the method is called again
+                                mv.visitFieldInsn(Opcodes.PUTFIELD, owner, START_FIELD, "J");
+                            }
+                            if (jfrEvents) {
+                                mv.visitVarInsn(Opcodes.ALOAD, 0);
+                                loadReady(mv);
+                                loadField(mv, EVENT_FIELD, OBJECT);
+                                loadField(mv, "sslEngine", SSL_ENGINE);
+                                mv.visitMethodInsn(
+                                        Opcodes.INVOKESTATIC,
+                                        "dev/psmolinski/kafka/ssl/JfrEvents",
+                                        "handshakeEnd",
+                                        "(ZLjava/lang/Object;Ljavax/net/ssl/SSLEngine;)Ljava/lang/Object;",
+                                        false);
+                                mv.visitFieldInsn(Opcodes.PUTFIELD, owner, EVENT_FIELD, OBJECT);
+                            }
+                        }
+                        super.visitInsn(opcode);
+                    }
+                };
+            }
+
+            if ("handshakeFailure".equals(name) && descriptor.startsWith("(Ljavax/net/ssl/SSLException;")) {
+                return new MethodVisitor(api, mv) {
+                    @Override
+                    public void visitCode() {
+                        super.visitCode();
+                        if (metrics) {
+                            mv.visitVarInsn(Opcodes.ALOAD, 1);
+                            mv.visitMethodInsn(
+                                    Opcodes.INVOKESTATIC,
+                                    "dev/psmolinski/kafka/ssl/HandshakeMetrics",
+                                    "failed",
+                                    "(Ljava/lang/Throwable;)V",
+                                    false);
+                        }
+                        if (jfrEvents) {
+                            loadField(mv, EVENT_FIELD, OBJECT);
+                            mv.visitVarInsn(Opcodes.ALOAD, 1);
+                            mv.visitMethodInsn(
+                                    Opcodes.INVOKESTATIC,
+                                    "dev/psmolinski/kafka/ssl/JfrEvents",
+                                    "handshakeFailed",
+                                    "(Ljava/lang/Object;Ljava/lang/Throwable;)V",
+                                    false);
+                            clearEvent(mv);
+                        }
+                    }
+                };
+            }
+
+            if ("write".equals(name) && "([Ljava/nio/ByteBuffer;II)J".equals(descriptor) && coalesce) {
+                return new MethodVisitor(api, mv) {
+                    @Override
+                    public void visitCode() {
+                        super.visitCode();
+                        mv.visitVarInsn(Opcodes.ALOAD, 0);
+                        loadArguments(mv, access, descriptor);
+                        mv.visitMethodInsn(
+                                Opcodes.INVOKESTATIC,
+                                "dev/psmolinski/kafka/ssl/WriteCoalescing",
+                                "write",
+                                "(Lorg/apache/kafka/common/network/TransportLayer;[Ljava/nio/ByteBuffer;II)J",
+                                false);
+                        // -1 means nothing to coalesce
+                        Label proceed = new Label();
+                        mv.visitInsn(Opcodes.DUP2);
+                        mv.visitInsn(Opcodes.LCONST_0);
+                        mv.visitInsn(Opcodes.LCMP);
+                        mv.visitJumpInsn(Opcodes.IFLT, proceed);
+                        mv.visitInsn(Opcodes.LRETURN);
+                        mv.visitLabel(proceed);
+                        if (version >= Opcodes.V1_6) {
+                            mv.visitFrame(Opcodes.F_SAME1, 0, null, 1, new Object[]{Opcodes.LONG});
+                        }
+                        mv.visitInsn(Opcodes.POP2);
+                    }
+                };
+            }
+
+            if ("runDelegatedTasks".equals(name) && descriptor.startsWith("()L") && (jfrEvents || offload && key)) {
+                return new MethodVisitor(api, mv) {
+                    @Override
+                    public void visitCode() {
+                        super.visitCode();
+                        if (offload && key) {
+                            loadField(mv, "channelId", STRING);
+                            loadField(mv, "sslEngine", SSL_ENGINE);
+                            loadField(mv, "key", SELECTION_KEY);
+                            mv.visitMethodInsn(
+                                    Opcodes.INVOKESTATIC,
+                                    "dev/psmolinski/kafka/ssl/DelegatedTaskExecutor",
+                                    "offload",
+                                    "(Ljava/lang/String;Ljavax/net/ssl/SSLEngine;Ljava/nio/channels/SelectionKey;)Ljava/lang/Object;",
+                                    false);
+                            // the tasks running in the background, the network thread returns NEED_TASK
+                            returnIfNotNull(mv, Type.getReturnType(descriptor));
+                        }
+                        if (!jfrEvents) {
+                            return;
+                        }
+                        loadField(mv, "channelId", STRING);
+                        mv.visitMethodInsn(
+                                Opcodes.INVOKESTATIC,
+                                "dev/psmolinski/kafka/ssl/JfrEvents",
+                                "delegatedTasksBegin",
+                                "(Ljava/lang/String;)V",
+                                false);
+                    }
+
+                    @Override
+                    public void visitInsn(int opcode) {
+                        if (opcode == Opcodes.ARETURN && jfrEvents) {
+                            mv.visitMethodInsn(
+                                    Opcodes.INVOKESTATIC,
+                                    "dev/psmolinski/kafka/ssl/JfrEvents",
+                                    "delegatedTasksEnd",
+                                    "(Ljava/lang/Object;)Ljava/lang/Object;",
+                                    false);
+                            mv.visitTypeInsn(Opcodes.CHECKCAST, Type.getReturnType(descriptor).getInternalName());
+                        }
+                        super.visitInsn(opcode);
+                    }
+                };
+            }
+
+            return mv;
+
+        }
+
+        @Override
+        public void visitEnd() {
+            if (channelId && sslEngine) {
+                if (metrics) {
+                    super.visitField(Opcodes.ACC_PRIVATE | Opcodes.ACC_TRANSIENT | Opcodes.ACC_SYNTHETIC,
+                            START_FIELD, "J", null, null).visitEnd();
+                }
+                if (jfrEvents) {
+                    super.visitField(Opcodes.ACC_PRIVATE | Opcodes.ACC_TRANSIENT | Opcodes.ACC_SYNTHETIC,
+                            EVENT_FIELD, OBJECT, null, null).visitEnd();
+                }
+            }
+            super.visitEnd();
+        }
+
+        private MethodVisitor poolBuffers(MethodVisitor mv, boolean allocate) {
+            return new MethodVisitor(api, mv) {
+                @Override
+                public void visitMethodInsn(int opcode, String owner, String name, String descriptor, boolean isInterface) {
+                    if (allocate
+                            && opcode == Opcodes.INVOKESTATIC
+                            && "java/nio/ByteBuffer".equals(owner)
+                            && "allocate".equals(name)) {
+                        super.visitMethodInsn(
+                                Opcodes.INVOKESTATIC,
+                                "dev/psmolinski/kafka/ssl/BufferPool",
+                                "acquire",
+                                "(I)Ljava/nio/ByteBuffer;",
+                                false);
+                        return;
+                    }
+                    super.visitMethodInsn(opcode, owner, name, descriptor, isInterface);
+                }
+
+                @Override
+                public void visitFieldInsn(int opcode, String owner, String name, String descriptor) {
+                    if (opcode == Opcodes.PUTFIELD
+                            && SslTransportLayerVisitor.this.owner.equals(owner)
+                            && BYTE_BUFFER.equals(descriptor)
+                            && ("netReadBuffer".equals(name) || "netWriteBuffer".equals(name) || "appReadBuffer".equals(name))) {
+                        // stack: this, next
+                        super.visitVarInsn(Opcodes.ALOAD, 0);
+                        super.visitFieldInsn(Opcodes.GETFIELD, owner, name, descriptor);
+                        super.visitInsn(Opcodes.SWAP);
+                        super.visitMethodInsn(
+                                Opcodes.INVOKESTATIC,
+                                "dev/psmolinski/kafka/ssl/BufferPool",
+                                "replace",
+                                "(Ljava/nio/ByteBuffer;Ljava/nio/ByteBuffer;)Ljava/nio/ByteBuffer;",
+                                false);
+                    }
+                    super.visitFieldInsn(opcode, owner, name, descriptor);
+                }
+            };
+        }
+
+        /**
+         * Attach the detached buffers on entry of the methods using them and detach
+         * the empty ones when the methods used by the established connection return.
+         */
+        private MethodVisitor detachBuffers(MethodVisitor mv, String name, String descriptor) {
+            boolean read = "read".equals(name) && "(Ljava/nio/ByteBuffer;)I".equals(descriptor);
+            boolean write = "write".equals(name) && "(Ljava/nio/ByteBuffer;)I".equals(descriptor);
+            boolean close = "close".equals(name) && "()V".equals(descriptor);
+            boolean handshake = "handshake".equals(name) && "()V".equals(descriptor);
+            if (!read && !write && !close && !handshake) {
+                return mv;
+            }
+            return new MethodVisitor(api, mv) {
+                @Override
+                public void visitCode() {
+                    super.visitCode();
+                    if (read) {
+                        attachBuffer(mv, "netReadBuffer", "netReadBufferSize", "attachRead");
+                        attachBuffer(mv, "appReadBuffer", "applicationBufferSize", "attachRead");
+                    }
+                    if (write || close) {
+                        attachBuffer(mv, "netWriteBuffer", "netWriteBufferSize", "attachWrite");
+                    }
+                }
+
+                @Override
+                public void visitInsn(int opcode) {
+                    if (opcode == Opcodes.IRETURN && (read || write) || opcode == Opcodes.RETURN && handshake) {
+                        if (read || handshake) {
+                            detachBuffer(mv, "netReadBuffer", "detachRead");
+                            detachBuffer(mv, "appReadBuffer", "detachRead");
+                        }
+                        if (write || handshake) {
+                            detachBuffer(mv, "netWriteBuffer", "detachWrite");
+                        }
+                    }
+                    super.visitInsn(opcode);
+                }
+            };
+        }
+
+        private void attachBuffer(MethodVisitor mv, String field, String sizeMethod, String helper) {
+            mv.visitVarInsn(Opcodes.ALOAD, 0);
+            loadField(mv, field, BYTE_BUFFER);
+            mv.visitVarInsn(Opcodes.ALOAD, 0);
+            mv.visitMethodInsn(Opcodes.INVOKEVIRTUAL, owner, sizeMethod, "()I", false);
+            mv.visitMethodInsn(
+                    Opcodes.INVOKESTATIC,
+                    "dev/psmolinski/kafka/ssl/BufferPool",
+                    helper,
+                    "(Ljava/nio/ByteBuffer;I)Ljava/nio/ByteBuffer;",
+                    false);
+            mv.visitFieldInsn(Opcodes.PUTFIELD, owner, field, BYTE_BUFFER);
+        }
+
+        private void detachBuffer(MethodVisitor mv, String field, String helper) {
+            mv.visitVarInsn(Opcodes.ALOAD, 0);
+            loadField(mv, field, BYTE_BUFFER);
+            // only the established connections; the handshake keeps using the buffers
+            mv.visitVarInsn(Opcodes.ALOAD, 0);
+            mv.visitMethodInsn(Opcodes.INVOKEVIRTUAL, owner, "ready", "()Z", false);
+            mv.visitMethodInsn(
+                    Opcodes.INVOKESTATIC,
+                    "dev/psmolinski/kafka/ssl/BufferPool",
+                    helper,
+                    "(Ljava/nio/ByteBuffer;Z)Ljava/nio/ByteBuffer;",
+                    false);
+            mv.visitFieldInsn(Opcodes.PUTFIELD, owner, field, BYTE_BUFFER);
+        }
+
+        private void loadField(MethodVisitor mv, String name, String descriptor) {
+            mv.visitVarInsn(Opcodes.ALOAD, 0);
+            mv.visitFieldInsn(Opcodes.GETFIELD, owner, name, descriptor);
+        }
+
+        private void loadReady(MethodVisitor mv) {
+            mv.visitVarInsn(Opcodes.ALOAD, 0);
+            mv.visitMethodInsn(Opcodes.INVOKEVIRTUAL, owner, "ready", "()Z", false);
+        }
+
+        private void clearEvent(MethodVisitor mv) {
+            mv.visitVarInsn(Opcodes.ALOAD, 0);
+            mv.visitInsn(Opcodes.ACONST_NULL);
+            mv.visitFieldInsn(Opcodes.PUTFIELD, owner, EVENT_FIELD, OBJECT);
+        }
+
+    }
+
+    /**
+     * Blank strings are treated as absent.
+     */
+    static boolean empty(String text) {
+        return text!=null && "".equals(text.trim());
+    }
+
+    /**
+     * Only the empty password is treated as absent; the whitespace may be a part of a valid password.
+     */
+    static boolean empty(Password password) {
+        return password!=null && "".equals(password.value());
+    }
+
+    /**
+     * Read on the first nullification, when the settings are installed.
+     */
+    private static class Nullifications {
+        static final boolean telemetry = AgentTelemetry.enabled(AgentConfig.current());
+    }
+
     public static String nullify(String text) {
-        if (text!=null && "".equals(text.trim())) {
+        if (empty(text)) {
+            if (Nullifications.telemetry) {
+                AgentTelemetry.stringNullified();
+            }
             return null;
         } else {
             return text;
@@ -149,7 +1603,10 @@ public class PatchDefaultSslEngineFactory implements ClassFileTransformer  {
     }
 
     public static Password nullify(Password password) {
-        if (password!=null && "".equals(password.value())) {
+        if (empty(password)) {
+            if (Nullifications.telemetry) {
+                AgentTelemetry.passwordNullified();
+            }
             return null;
         } else {
             return password;
@@ -0,0 +1,94 @@
+package dev.psmolinski.kafka.ssl;
+
+import java.io.ByteArrayOutputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Enumeration;
+import java.util.Set;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+import java.util.zip.ZipOutputStream;
+
+/**
+ * Offline variant of the agent. Rewrites the target classes inside a kafka-clients jar
+ * and writes a drop-in replacement, so that no {@code -javaagent} is needed at runtime.
+ * <pre>
+ * java -jar kafka-ssl-fix.jar kafka-clients.jar kafka-clients-patched.jar [key=value,key=value...]
+ * </pre>
+ * The options are the same as for the agent; the ones selecting the patches are applied
+ * at build time. The patched classes call into this library, so {@code kafka-ssl-fix.jar}
+ * must be on the application classpath.
+ */
+public class PatchJar {
+
+    public static void main(String...args) throws Exception {
+        if (args.length < 2) {
+            System.err.println("Usage: PatchJar <input jar> <output jar> [options]");
+            System.exit(1);
+        }
+        AgentConfig config = AgentConfig.parse(args.length > 2 ? args[2] : null);
+        int patched = patch(args[0], args[1], config);
+        System.out.println("Patched " + patched + " classes in " + args[1]);
+    }
+
+    /**
+     * @return number of patched classes
+     */
+    public static int patch(String input, String output, AgentConfig config) throws IOException {
+        PatchRules rules = PatchRules.load(config);
+        Set<String> targets = PatchDefaultSslEngineFactory.targets(config, rules);
+        int patched = 0;
+        try (ZipFile in = new ZipFile(input);
+             ZipOutputStream out = new ZipOutputStream(new FileOutputStream(output))) {
+            Enumeration<? extends ZipEntry> entries = in.entries();
+            while (entries.hasMoreElements()) {
+                ZipEntry entry = entries.nextElement();
+                byte[] data = read(in, entry);
+                String className = className(entry.getName());
+                if (className != null && targets.contains(className)) {
+                    data = PatchDefaultSslEngineFactory.patch(className, data, config, rules);
+                    patched++;
+                }
+                ZipEntry copy = new ZipEntry(entry.getName());
+                copy.setTime(entry.getTime());
+                out.putNextEntry(copy);
+                out.write(data);
+                out.closeEntry();
+            }
+        }
+        return patched;
+    }
+
+    private static String className(String entryName) {
+        if (!entryName.endsWith(".class")) {
+            return null;
+        }
+        String name = entryName.substring(0, entryName.length() - ".class".length());
+        // multi-release jar layout
+        if (name.startsWith("META-INF/versions/")) {
+            int slash = name.indexOf('/', "META-INF/versions/".length());
+            name = slash < 0 ? name : name.substring(slash + 1);
+        }
+        return name;
+    }
+
+    private static byte[] read(ZipFile zip, ZipEntry entry) throws IOException {
+        try (InputStream in = zip.getInputStream(entry)) {
+            ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+            copy(in, buffer);
+            return buffer.toByteArray();
+        }
+    }
+
+    private static void copy(InputStream in, OutputStream out) throws IOException {
+        byte[] buffer = new byte[8192];
+        for (;;) {
+            int r = in.read(buffer);
+            if (r < 0) break;
+            out.write(buffer, 0, r);
+        }
+    }
+
+}
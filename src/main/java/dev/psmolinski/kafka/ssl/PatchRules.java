@@ -0,0 +1,127 @@
+package dev.psmolinski.kafka.ssl;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.StringReader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Declarative parameter normalization rules. Each rule names a class, a method
+ * and the parameters whose empty values are replaced with null on method entry:
+ * <pre>
+ * # class                                                      method            parameters
+ * org.apache.kafka.common.security.ssl.DefaultSslEngineFactory createKeystore    1 2 3 4 5
+ * </pre>
+ * The method may be followed by its descriptor to select one overload. The parameters
+ * are zero-based positions in the method signature; the local variable slots are
+ * resolved from the descriptor when the class is patched. Parameters of type
+ * {@code String} and {@code Password} are supported.
+ * <p>
+ * Rules are read from the file given in the {@code rules} option and from the
+ * {@code rule.<name>} options. The built-in rules are used unless {@code rules.default=false}.
+ * The rules are indexed by the internal class name.
+ */
+public class PatchRules {
+
+    static final String DEFAULT_RULES = String.join("\n",
+            "org.apache.kafka.common.security.ssl.DefaultSslEngineFactory createKeystore   1 2 3 4 5",
+            "org.apache.kafka.common.security.ssl.DefaultSslEngineFactory createTruststore 1 2 3");
+
+    private final Map<String, List<Rule>> index;
+
+    private PatchRules(Map<String, List<Rule>> index) {
+        this.index = index;
+    }
+
+    public static PatchRules load(AgentConfig config) throws IOException {
+        List<Rule> rules = new ArrayList<>();
+        if (config.getBoolean("rules.default", true)) {
+            rules.addAll(parse(DEFAULT_RULES));
+        }
+        String file = config.getString("rules", null);
+        if (file != null) {
+            rules.addAll(parse(new String(Files.readAllBytes(Paths.get(file)), StandardCharsets.UTF_8)));
+        }
+        for (Map.Entry<String, String> e : config.settings().entrySet()) {
+            if (e.getKey().startsWith("rule.")) {
+                rules.addAll(parse(e.getValue()));
+            }
+        }
+        Map<String, List<Rule>> index = new HashMap<>();
+        for (Rule rule : rules) {
+            index.computeIfAbsent(rule.className, k -> new ArrayList<>()).add(rule);
+        }
+        return new PatchRules(index);
+    }
+
+    static List<Rule> parse(String text) throws IOException {
+        List<Rule> rules = new ArrayList<>();
+        BufferedReader reader = new BufferedReader(new StringReader(text));
+        for (String line; (line = reader.readLine()) != null; ) {
+            String trimmed = line.trim();
+            if (trimmed.isEmpty() || trimmed.startsWith("#")) {
+                continue;
+            }
+            String[] tokens = trimmed.split("\\s+");
+            if (tokens.length < 3) {
+                throw new IllegalArgumentException("Invalid rule: " + line);
+            }
+            String method = tokens[1];
+            int paren = method.indexOf('(');
+            int[] parameters = new int[tokens.length - 2];
+            for (int i = 0; i < parameters.length; i++) {
+                try {
+                    parameters[i] = Integer.parseInt(tokens[i + 2]);
+                } catch (NumberFormatException e) {
+                    throw new IllegalArgumentException("Invalid parameter in rule: " + line, e);
+                }
+            }
+            rules.add(new Rule(
+                    tokens[0].replace('.', '/'),
+                    paren < 0 ? method : method.substring(0, paren),
+                    paren < 0 ? null : method.substring(paren),
+                    parameters));
+        }
+        return rules;
+    }
+
+    /**
+     * @return the rules for the class or empty list
+     */
+    public List<Rule> forClass(String className) {
+        List<Rule> rules = index.get(className);
+        return rules != null ? rules : Collections.emptyList();
+    }
+
+    public Iterable<String> classNames() {
+        return index.keySet();
+    }
+
+    public static class Rule {
+
+        final String className;
+        final String methodName;
+        final String descriptor;
+        final int[] parameters;
+
+        Rule(String className, String methodName, String descriptor, int[] parameters) {
+            this.className = className;
+            this.methodName = methodName;
+            this.descriptor = descriptor;
+            this.parameters = parameters;
+        }
+
+        boolean matches(String name, String descriptor) {
+            return methodName.equals(name) && (this.descriptor == null || this.descriptor.equals(descriptor));
+        }
+
+    }
+
+}
@@ -0,0 +1,163 @@
+package dev.psmolinski.kafka.ssl;
+
+import org.apache.kafka.common.config.ConfigDef;
+import org.apache.kafka.common.security.ssl.DefaultSslEngineFactory;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Properties;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Builds the SSL factory of the client settings given in a properties file on a background
+ * thread started by {@code premain}, in parallel with the application startup.
+ * <p>
+ * The factory goes through the patched code, so the loaded stores land in the
+ * {@link SecurityStoreCache} and the context in the {@link SharedSslContextRegistry};
+ * the factories of the application configured with the same settings take them from
+ * there. A factory configured while the pre-build is running with the same stores waits
+ * for it, up to {@code prebuild.wait.ms}, instead of loading them in parallel; the factories
+ * of other stores, e.g. of the inter-broker listener, do not wait.
+ * <p>
+ * The {@link #await(Map)} method is invoked from the bytecode injected into {@code configure}.
+ */
+public class PreBuild implements Runnable {
+
+    static final String THREAD_NAME = "kafka-ssl-fix-prebuild";
+
+    /**
+     * Settings deciding whether a factory would load the same stores.
+     */
+    private static final String[] STORE_KEYS = {
+            "ssl.keystore.location",
+            "ssl.keystore.key",
+            "ssl.keystore.certificate.chain",
+            "ssl.truststore.location",
+            "ssl.truststore.certificates"
+    };
+
+    private static final long waitMs = AgentConfig.current().getLong("prebuild.wait.ms", 2_000L);
+
+    private static final CountDownLatch done = new CountDownLatch(1);
+
+    private static volatile Thread thread;
+    private static volatile long durationNanos = -1L;
+    private static volatile Throwable failure;
+
+    // the store settings of the pre-build, normalized like the registry keys
+    private static volatile Map<String, String> stores = Collections.emptyMap();
+
+    private final Properties properties;
+
+    PreBuild(Properties properties) {
+        this.properties = properties;
+    }
+
+    static boolean enabled(AgentConfig config) {
+        return config.getString("prebuild", null) != null;
+    }
+
+    /**
+     * Read the settings and start the pre-build.
+     * @return the pre-build thread or null if the settings cannot be read
+     */
+    static Thread start(AgentConfig config) {
+        Properties properties = new Properties();
+        try (InputStream in = Files.newInputStream(Paths.get(config.getString("prebuild", null)))) {
+            properties.load(in);
+        } catch (IOException | RuntimeException e) {
+            failure = e;
+            done.countDown();
+            return null;
+        }
+        Map<String, String> stores = new HashMap<>();
+        for (String key : STORE_KEYS) {
+            // the values are trimmed when the clients parse them
+            String value = properties.getProperty(key);
+            if (value != null && !PatchDefaultSslEngineFactory.empty(value)) {
+                stores.put(key, value.trim());
+            }
+        }
+        PreBuild.stores = stores;
+        Thread thread = new Thread(new PreBuild(properties), THREAD_NAME);
+        thread.setDaemon(true);
+        PreBuild.thread = thread;
+        thread.start();
+        return thread;
+    }
+
+    /**
+     * Wait for the pre-build to complete if it loads the same stores as the configured
+     * factory. Returns immediately when there is none, on the pre-build thread, after the
+     * pre-build has finished and for a factory of other stores.
+     */
+    public static void await(Map<String, ?> configs) {
+        Thread running = thread;
+        if (running == null || running == Thread.currentThread() || done.getCount() == 0 || !sameStores(configs)) {
+            return;
+        }
+        try {
+            done.await(waitMs, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    static boolean sameStores(Map<String, ?> configs) {
+        Map<String, String> stores = PreBuild.stores;
+        if (stores.isEmpty() || configs == null) {
+            return false;
+        }
+        for (String key : STORE_KEYS) {
+            if (!Objects.equals(stores.get(key), SharedSslContextRegistry.normalize(configs.get(key)))) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * @return duration of the completed pre-build or -1 if it has not finished
+     */
+    public static long durationNanos() {
+        return durationNanos;
+    }
+
+    /**
+     * @return the error of the pre-build or null
+     */
+    public static Throwable failure() {
+        return failure;
+    }
+
+    @Override
+    public void run() {
+        long start = System.nanoTime();
+        try {
+            // as the clients pass them to the factory: the SSL settings only, parsed, with the defaults
+            ConfigDef definition = new ConfigDef().withClientSslSupport();
+            Map<String, Object> configs = new HashMap<>(definition.parse(properties));
+            configs.keySet().retainAll(definition.names());
+            DefaultSslEngineFactory factory = new DefaultSslEngineFactory();
+            try {
+                factory.configure(configs);
+            } finally {
+                factory.close();
+            }
+        } catch (Throwable e) {
+            // e.g. kafka-clients not visible to the system class loader; the clients build as usual
+            failure = e;
+        } finally {
+            durationNanos = System.nanoTime() - start;
+            done.countDown();
+        }
+    }
+
+}
@@ -0,0 +1,132 @@
+package dev.psmolinski.kafka.ssl;
+
+import java.util.Map;
+import java.util.Objects;
+import java.util.WeakHashMap;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Spreads the rebuilds of the SSL factories caused by a store file rotation.
+ * <p>
+ * When {@code shouldBeRebuilt} detects a modified store, the factory gets a rebuild
+ * slot delayed by a random jitter and, with a rate limit, not earlier than the
+ * previous slot plus the minimum interval. The check waits until the slot is due and
+ * then reports the change. This way the factories in the JVM do not open the new TLS
+ * connections at the same moment.
+ * <p>
+ * The check is called only from {@code SslFactory.validateReconfiguration} and
+ * {@code SslFactory.reconfigure}, i.e. by the dynamic reconfiguration of the broker
+ * listeners; the clients never rebuild their factories. Nothing calls it again later,
+ * so the change is never reported as absent. The slot is kept until the original check
+ * no longer detects the change; the validation and the following reconfiguration share
+ * it and only the first of them waits. The waiting blocks the thread applying the dynamic
+ * configuration, so a slot is never scheduled later than {@code rebuild.max.wait.ms}
+ * after the check; the rebuilds beyond the rate limit are then no longer spread.
+ * <p>
+ * The requested configuration changes are never delayed. Combined with
+ * {@code keystore.cache} and {@code sslcontext.shared} the key material is loaded
+ * once and reused by all the delayed rebuilds.
+ * <p>
+ * The methods are invoked from the bytecode injected into {@code shouldBeRebuilt}.
+ */
+public class RebuildCoordinator {
+
+    private static final long jitterNanos =
+            TimeUnit.MILLISECONDS.toNanos(AgentConfig.current().getLong("rebuild.jitter.ms", 0L));
+    private static final long intervalNanos = interval(AgentConfig.current().getInt("rebuild.rate", 0));
+    private static final long maxWaitNanos =
+            TimeUnit.MILLISECONDS.toNanos(Math.max(0L, AgentConfig.current().getLong("rebuild.max.wait.ms", 1_000L)));
+
+    // factory -> due time of its rebuild
+    private static final Map<Object, Long> slots = new WeakHashMap<>();
+
+    private static long lastSlot = Long.MIN_VALUE;
+
+    private static long delayed;
+    private static long admitted;
+
+    private RebuildCoordinator() {
+    }
+
+    private static long interval(int rate) {
+        return rate > 0 ? TimeUnit.SECONDS.toNanos(1) / rate : 0L;
+    }
+
+    static boolean enabled(AgentConfig config) {
+        return config.getLong("rebuild.jitter.ms", 0L) > 0 || config.getInt("rebuild.rate", 0) > 0;
+    }
+
+    /**
+     * @param rebuild result of the original check
+     * @param factory the factory being checked
+     * @param nextConfigs requested configuration
+     * @param configs current configuration
+     * @return whether to rebuild the factory now
+     */
+    public static boolean admit(boolean rebuild, Object factory, Map<String, ?> nextConfigs, Map<String, ?> configs) {
+        if (!Objects.equals(nextConfigs, configs)) {
+            return rebuild;
+        }
+        long slot;
+        synchronized (slots) {
+            if (!rebuild) {
+                slots.remove(factory);
+                return false;
+            }
+            Long scheduled = slots.get(factory);
+            if (scheduled == null) {
+                scheduled = schedule(System.nanoTime());
+                slots.put(factory, scheduled);
+            }
+            slot = scheduled;
+            admitted++;
+            if (slot - System.nanoTime() > 0) {
+                delayed++;
+            }
+        }
+        awaitSlot(slot);
+        return true;
+    }
+
+    /**
+     * Wait for the slot outside of the lock. On interruption the rebuild is not delayed any further.
+     */
+    private static void awaitSlot(long slot) {
+        long remaining;
+        while ((remaining = slot - System.nanoTime()) > 0) {
+            if (Thread.currentThread().isInterrupted()) {
+                return;
+            }
+            LockSupport.parkNanos(RebuildCoordinator.class, remaining);
+        }
+    }
+
+    public static long delayed() {
+        synchronized (slots) {
+            return delayed;
+        }
+    }
+
+    public static long admitted() {
+        synchronized (slots) {
+            return admitted;
+        }
+    }
+
+    private static long schedule(long now) {
+        long jitter = jitterNanos;
+        long slot = now + (jitter > 0 ? ThreadLocalRandom.current().nextLong(jitter) : 0L);
+        if (intervalNanos > 0 && lastSlot != Long.MIN_VALUE && slot - (lastSlot + intervalNanos) < 0) {
+            slot = lastSlot + intervalNanos;
+        }
+        // the wait blocks the dynamic configuration of the broker
+        if (slot - (now + maxWaitNanos) > 0) {
+            slot = now + maxWaitNanos;
+        }
+        lastSlot = slot;
+        return slot;
+    }
+
+}
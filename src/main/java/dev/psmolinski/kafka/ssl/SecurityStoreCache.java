@@ -0,0 +1,185 @@
+package dev.psmolinski.kafka.ssl;
+
+import org.apache.kafka.common.config.types.Password;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Process-wide cache of the key and trust stores loaded by the patched
+ * {@code DefaultSslEngineFactory}.
+ * <p>
+ * For the file based stores the key consists of the store type, file path,
+ * modification time, content digest and password digests, so an unchanged store
+ * is parsed only once. The content digest is remembered with the modification time
+ * and size of the file, so the file is read again only when either of them changes.
+ * <p>
+ * For the stores defined inline (PEM private key with certificate chain or trusted
+ * certificates) the key consists of the digests of all the store parameters. The
+ * cached store holds the parsed certificates and the decrypted private key, so the
+ * PEM parsing and key decryption is done once per distinct value.
+ * <p>
+ * The methods are invoked from the bytecode injected into {@code createKeystore}
+ * and {@code createTruststore}.
+ */
+public class SecurityStoreCache {
+
+    private static final int capacity = AgentConfig.current().getInt("keystore.cache.size", 64);
+
+    private static final boolean fileStores = AgentConfig.current().getBoolean("keystore.cache", false);
+    private static final boolean inlineStores = AgentConfig.current().getBoolean("pem.cache", false);
+
+    private static final Map<String, Object> stores = Collections.synchronizedMap(
+            new LinkedHashMap<String, Object>(16, 0.75f, true) {
+                @Override
+                protected boolean removeEldestEntry(Map.Entry<String, Object> eldest) {
+                    return size() > capacity;
+                }
+            });
+
+    // absolute path -> content digest of the file as last seen
+    private static final Map<Path, FileDigest> digests = Collections.synchronizedMap(
+            new LinkedHashMap<Path, FileDigest>(16, 0.75f, true) {
+                @Override
+                protected boolean removeEldestEntry(Map.Entry<Path, FileDigest> eldest) {
+                    return size() > capacity;
+                }
+            });
+
+    // key computed on lookup, consumed when the loaded store is returned
+    private static final ThreadLocal<String> pending = new ThreadLocal<>();
+
+    private static final LongAdder hits = new LongAdder();
+    private static final LongAdder misses = new LongAdder();
+
+    private SecurityStoreCache() {
+    }
+
+    static boolean enabled(AgentConfig config) {
+        return config.getBoolean("keystore.cache", false) || config.getBoolean("pem.cache", false);
+    }
+
+    /**
+     * @return cached key store or null if it must be loaded
+     */
+    public static Object lookupKeystore(String type, String path, Password password, Password keyPassword,
+                                        Password privateKey, Password certificateChain) {
+        pending.remove();
+        if (privateKey != null || certificateChain != null) {
+            return inlineStores
+                    ? lookup("pem-keystore|" + type + "|" + path + "|" + Digests.sha256(password)
+                            + "|" + Digests.sha256(keyPassword) + "|" + Digests.sha256(privateKey)
+                            + "|" + Digests.sha256(certificateChain))
+                    : null;
+        }
+        return fileStores ? lookupFile("keystore", type, path, password, keyPassword) : null;
+    }
+
+    /**
+     * @return cached trust store or null if it must be loaded
+     */
+    public static Object lookupTruststore(String type, String path, Password password, Password trustStoreCerts) {
+        pending.remove();
+        if (trustStoreCerts != null) {
+            return inlineStores
+                    ? lookup("pem-truststore|" + type + "|" + path + "|" + Digests.sha256(password)
+                            + "|" + Digests.sha256(trustStoreCerts))
+                    : null;
+        }
+        return fileStores ? lookupFile("truststore", type, path, password, null) : null;
+    }
+
+    /**
+     * Remember the store returned by the original method.
+     */
+    public static Object store(Object store) {
+        String key = pending.get();
+        if (key != null) {
+            pending.remove();
+            if (store != null) {
+                stores.put(key, store);
+            }
+        }
+        return store;
+    }
+
+    public static long hits() {
+        return hits.sum();
+    }
+
+    public static long misses() {
+        return misses.sum();
+    }
+
+    public static int size() {
+        return stores.size();
+    }
+
+    private static Object lookupFile(String kind, String type, String path, Password password, Password keyPassword) {
+        if (path == null) {
+            return null;
+        }
+        String key = key(kind, type, path, password, keyPassword);
+        if (key == null) {
+            // unreadable file; let the original code report the problem
+            return null;
+        }
+        return lookup(key);
+    }
+
+    private static Object lookup(String key) {
+        Object store = stores.get(key);
+        if (store != null) {
+            hits.increment();
+            return store;
+        }
+        misses.increment();
+        pending.set(key);
+        return null;
+    }
+
+    private static String key(String kind, String type, String path, Password password, Password keyPassword) {
+        try {
+            Path file = Paths.get(path).toAbsolutePath();
+            FileDigest digest = digest(file);
+            return kind + "|" + type + "|" + file + "|" + digest.modified + "|" + digest.sha256
+                    + "|" + Digests.sha256(password) + "|" + Digests.sha256(keyPassword);
+        } catch (IOException | RuntimeException e) {
+            return null;
+        }
+    }
+
+    /**
+     * @return content digest of the file, computed again only when its modification time or size changed
+     */
+    private static FileDigest digest(Path file) throws IOException {
+        BasicFileAttributes attributes = Files.readAttributes(file, BasicFileAttributes.class);
+        long modified = attributes.lastModifiedTime().toMillis();
+        long size = attributes.size();
+        FileDigest digest = digests.get(file);
+        if (digest == null || digest.modified != modified || digest.size != size) {
+            digest = new FileDigest(modified, size, Digests.sha256(Files.readAllBytes(file)));
+            digests.put(file, digest);
+        }
+        return digest;
+    }
+
+    private static class FileDigest {
+        final long modified;
+        final long size;
+        final String sha256;
+        FileDigest(long modified, long size, String sha256) {
+            this.modified = modified;
+            this.size = size;
+            this.sha256 = sha256;
+        }
+    }
+
+}
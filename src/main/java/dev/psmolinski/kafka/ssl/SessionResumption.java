@@ -0,0 +1,211 @@
+package dev.psmolinski.kafka.ssl;
+
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLEngine;
+import javax.net.ssl.SSLEngineResult;
+import javax.net.ssl.SSLSession;
+import javax.net.ssl.SSLSessionContext;
+import java.lang.ref.WeakReference;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * TLS session resumption of the client connections.
+ * <p>
+ * The JDK resumes a session only when the engine is created with the peer host and port
+ * and from the same {@code SSLContext} as the connection that established the session.
+ * The client session cache of the contexts built by the factory is sized with
+ * {@code session.cache.size} and {@code session.timeout.s}; combined with
+ * {@code sslcontext.shared} the cache survives the factory rebuilds and is shared by
+ * the clients with the same configuration.
+ * <p>
+ * With {@code session.resumption} the client engines created by the factory are tracked
+ * and the completed handshakes are classified as resumed when the negotiated session
+ * predates the engine. The engines are inspected lazily, when the number of the tracked
+ * engines doubles since the last inspection or when the statistics are read, so that the
+ * cost per created engine stays constant. The factory versions creating the engines
+ * without the peer hints get them from the {@code createClientSslEngine} parameters.
+ * <p>
+ * The methods are invoked from the bytecode injected into {@code createSSLContext}
+ * and {@code createClientSslEngine}.
+ */
+public class SessionResumption {
+
+    private static final int cacheSize = AgentConfig.current().getInt("session.cache.size", -1);
+    private static final int timeoutSeconds = AgentConfig.current().getInt("session.timeout.s", -1);
+
+    private static final String NULL_CIPHER_SUITE = "SSL_NULL_WITH_NULL_NULL";
+
+    // engines waiting for the handshake to complete, oldest first
+    private static final int CAPACITY = 1024;
+    private static final Queue<Tracked> tracked = new ConcurrentLinkedQueue<>();
+    private static final AtomicInteger count = new AtomicInteger();
+
+    // the sweep runs when the tracked engines reach the threshold
+    private static final int MIN_SWEEP_THRESHOLD = 64;
+    private static volatile int sweepThreshold = MIN_SWEEP_THRESHOLD;
+    private static final ReentrantLock sweeping = new ReentrantLock();
+
+    // peer hints of the engine being created by the current thread
+    private static final ThreadLocal<Object[]> peer = new ThreadLocal<>();
+
+    private static final LongAdder resumed = new LongAdder();
+    private static final LongAdder full = new LongAdder();
+    private static final LongAdder untracked = new LongAdder();
+
+    private SessionResumption() {
+    }
+
+    static boolean configured(AgentConfig config) {
+        return config.getInt("session.cache.size", -1) >= 0 || config.getInt("session.timeout.s", -1) >= 0;
+    }
+
+    static boolean enabled(AgentConfig config) {
+        return config.getBoolean("session.resumption", false);
+    }
+
+    /**
+     * Apply the client session cache settings.
+     * @return the context
+     */
+    public static Object configure(Object context) {
+        if (context instanceof SSLContext) {
+            SSLSessionContext sessions = ((SSLContext) context).getClientSessionContext();
+            if (sessions != null) {
+                if (cacheSize >= 0) {
+                    sessions.setSessionCacheSize(cacheSize);
+                }
+                if (timeoutSeconds >= 0) {
+                    sessions.setSessionTimeout(timeoutSeconds);
+                }
+            }
+        }
+        return context;
+    }
+
+    /**
+     * Remember the peer of the client engine being created by the current thread.
+     */
+    public static void peer(String peerHost, int peerPort) {
+        peer.set(new Object[]{peerHost, peerPort});
+    }
+
+    /**
+     * Replacement of {@code SSLContext.createSSLEngine()} using the peer hints.
+     */
+    public static SSLEngine createSSLEngine(SSLContext context) {
+        Object[] hints = peer.get();
+        if (hints == null || hints[0] == null) {
+            return context.createSSLEngine();
+        }
+        return context.createSSLEngine((String) hints[0], (Integer) hints[1]);
+    }
+
+    /**
+     * Track the created client engine.
+     * @return the engine
+     */
+    public static Object client(Object engine) {
+        peer.remove();
+        if (engine instanceof SSLEngine) {
+            tracked.add(new Tracked((SSLEngine) engine, System.currentTimeMillis()));
+            // another thread sweeping will leave the threshold to be reached again
+            if (count.incrementAndGet() >= sweepThreshold && sweeping.tryLock()) {
+                try {
+                    sweep();
+                } finally {
+                    sweeping.unlock();
+                }
+            }
+        }
+        return engine;
+    }
+
+    public static long resumed() {
+        sweepNow();
+        return resumed.sum();
+    }
+
+    public static long full() {
+        sweepNow();
+        return full.sum();
+    }
+
+    /**
+     * @return fraction of the completed client handshakes that resumed a session, NaN if none completed
+     */
+    public static double hitRate() {
+        sweepNow();
+        long hits = resumed.sum();
+        long total = hits + full.sum();
+        return total > 0 ? (double) hits / total : Double.NaN;
+    }
+
+    private static void sweepNow() {
+        sweeping.lock();
+        try {
+            sweep();
+        } finally {
+            sweeping.unlock();
+        }
+    }
+
+    /**
+     * Classify the completed handshakes and drop the collected engines. The engines
+     * beyond the capacity are dropped oldest first; most likely connections that never completed.
+     * Called with the {@code sweeping} lock held.
+     */
+    private static void sweep() {
+        for (Iterator<Tracked> it = tracked.iterator(); it.hasNext(); ) {
+            Tracked t = it.next();
+            SSLEngine engine = t.get();
+            if (engine == null) {
+                untracked.increment();
+            } else if (!classify(engine, t.createdMs)) {
+                continue;
+            }
+            it.remove();
+            count.decrementAndGet();
+        }
+        while (count.get() > CAPACITY && tracked.poll() != null) {
+            count.decrementAndGet();
+            untracked.increment();
+        }
+        sweepThreshold = Math.max(MIN_SWEEP_THRESHOLD, 2 * count.get());
+    }
+
+    /**
+     * @return true if the handshake of the engine completed and was counted
+     */
+    private static boolean classify(SSLEngine engine, long createdMs) {
+        if (engine.getHandshakeStatus() != SSLEngineResult.HandshakeStatus.NOT_HANDSHAKING) {
+            return false;
+        }
+        SSLSession session = engine.getSession();
+        if (!session.isValid() || NULL_CIPHER_SUITE.equals(session.getCipherSuite())) {
+            return false;
+        }
+        if (session.getCreationTime() < createdMs) {
+            resumed.increment();
+        } else {
+            full.increment();
+        }
+        return true;
+    }
+
+    private static class Tracked extends WeakReference<SSLEngine> {
+
+        final long createdMs;
+
+        Tracked(SSLEngine engine, long createdMs) {
+            super(engine);
+            this.createdMs = createdMs;
+        }
+
+    }
+
+}
@@ -0,0 +1,227 @@
+package dev.psmolinski.kafka.ssl;
+
+import org.apache.kafka.common.config.ConfigDef;
+import org.apache.kafka.common.config.types.Password;
+
+import java.io.File;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.WeakHashMap;
+
+/**
+ * JVM-wide registry of {@code SSLContext} instances built by the patched
+ * {@code DefaultSslEngineFactory}. Factories configured with the same effective SSL
+ * settings share one context, including the key material loaded for it.
+ * <p>
+ * The entries are reference counted by the factories using them. Entries no longer
+ * referenced are kept for reuse and evicted in the LRU order when there are more
+ * than {@code capacity} of them.
+ * <p>
+ * The methods are invoked from the bytecode injected into {@code createSSLContext}
+ * and {@code close}.
+ */
+public class SharedSslContextRegistry {
+
+    private static final String[] LOCATION_KEYS = {"ssl.keystore.location", "ssl.truststore.location"};
+
+    /**
+     * Settings the factory reads: the client SSL settings, including {@code ssl.engine.factory.class},
+     * the client authentication of the broker listeners and the security providers. The clients pass
+     * their whole configuration, so the other entries, e.g. the generated {@code client.id}, are ignored.
+     */
+    private static final Set<String> KEY_NAMES = keyNames();
+
+    private static final int capacity = AgentConfig.current().getInt("sslcontext.shared.capacity", 16);
+
+    // access order gives LRU iteration
+    private static final LinkedHashMap<String, Entry> entries = new LinkedHashMap<>(16, 0.75f, true);
+
+    // factory -> key of the context it uses
+    private static final Map<Object, String> owners = new WeakHashMap<>();
+
+    // key computed by the missed lookup, consumed by the register call of the same factory
+    private static final ThreadLocal<String> pending = new ThreadLocal<>();
+
+    private static long hits;
+    private static long misses;
+
+    private SharedSslContextRegistry() {
+    }
+
+    /**
+     * Look up the context for the factory configuration.
+     * @return shared context or null if the factory has to build it
+     */
+    public static Object acquire(Object factory, Map<String, ?> configs) {
+        String key = key(configs);
+        synchronized (entries) {
+            Entry entry = entries.get(key);
+            if (entry == null) {
+                // the factory owns nothing until it registers the built context,
+                // so that a failed build is not released against another factory's entry
+                pending.set(key);
+                misses++;
+                return null;
+            }
+            pending.remove();
+            hits++;
+            entry.references++;
+            own(factory, key);
+            return entry.context;
+        }
+    }
+
+    /**
+     * Register the context built by the factory. If another factory registered the
+     * context for the same configuration in the meantime, that one is returned.
+     */
+    public static Object register(Object context, Object factory, Map<String, ?> configs) {
+        String key = pending.get();
+        pending.remove();
+        if (key == null) {
+            key = key(configs);
+        }
+        synchronized (entries) {
+            Entry entry = entries.get(key);
+            if (entry == null) {
+                entry = new Entry(context);
+                entries.put(key, entry);
+            }
+            entry.references++;
+            own(factory, key);
+            return entry.context;
+        }
+    }
+
+    /**
+     * Release the context used by the closed factory.
+     */
+    public static void release(Object factory) {
+        synchronized (entries) {
+            String key = owners.remove(factory);
+            if (key == null) {
+                return;
+            }
+            unreference(key);
+            evictIdle();
+        }
+    }
+
+    /**
+     * Record the referenced entry of the factory, dropping the reference to the one it used before.
+     */
+    private static void own(Object factory, String key) {
+        String previous = owners.put(factory, key);
+        if (previous != null) {
+            unreference(previous);
+        }
+    }
+
+    private static void unreference(String key) {
+        Entry entry = entries.get(key);
+        if (entry != null && entry.references > 0) {
+            entry.references--;
+        }
+    }
+
+    public static int size() {
+        synchronized (entries) {
+            return entries.size();
+        }
+    }
+
+    public static long hits() {
+        synchronized (entries) {
+            return hits;
+        }
+    }
+
+    public static long misses() {
+        synchronized (entries) {
+            return misses;
+        }
+    }
+
+    private static void evictIdle() {
+        int idle = 0;
+        for (Entry entry : entries.values()) {
+            if (entry.references == 0) {
+                idle++;
+            }
+        }
+        Iterator<Entry> it = entries.values().iterator();
+        while (idle > capacity && it.hasNext()) {
+            if (it.next().references == 0) {
+                it.remove();
+                idle--;
+            }
+        }
+    }
+
+    /**
+     * Digest of the normalized SSL settings of the configuration. Empty values are treated
+     * as absent, by the same rules as the parameter nullification. The timestamps and sizes of the
+     * store files are included, so that a changed store is not served from the registry.
+     */
+    static String key(Map<String, ?> configs) {
+        Map<String, String> normalized = new TreeMap<>();
+        for (Map.Entry<String, ?> e : configs.entrySet()) {
+            if (!KEY_NAMES.contains(e.getKey())) {
+                continue;
+            }
+            String value = normalize(e.getValue());
+            if (value != null) {
+                normalized.put(e.getKey(), value);
+            }
+        }
+        for (String locationKey : LOCATION_KEYS) {
+            String location = normalized.get(locationKey);
+            if (location != null) {
+                File file = new File(location);
+                normalized.put(locationKey + "#stat", file.lastModified() + "/" + file.length());
+            }
+        }
+        return Digests.sha256(normalized.toString());
+    }
+
+    private static Set<String> keyNames() {
+        Set<String> names = new HashSet<>(new ConfigDef().withClientSslSupport().names());
+        names.add("ssl.client.auth");
+        names.add("security.providers");
+        return names;
+    }
+
+    static String normalize(Object value) {
+        String text;
+        if (value == null) {
+            return null;
+        } else if (value instanceof Password) {
+            return PatchDefaultSslEngineFactory.empty((Password) value) ? null : ((Password) value).value();
+        } else if (value instanceof Class) {
+            text = ((Class<?>) value).getName();
+        } else if (value instanceof Collection) {
+            StringBuilder sb = new StringBuilder();
+            for (Object item : (Collection<?>) value) {
+                sb.append(normalize(item)).append('\u0000');
+            }
+            text = sb.toString();
+        } else {
+            text = String.valueOf(value);
+        }
+        return PatchDefaultSslEngineFactory.empty(text) ? null : text;
+    }
+
+    private static class Entry {
+        final Object context;
+        int references;
+        Entry(Object context) {
+            this.context = context;
+        }
+    }
+
+}
@@ -0,0 +1,151 @@
+package dev.psmolinski.kafka.ssl;
+
+import java.io.IOException;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Shared change tracker of the key and trust store files. A single watcher thread
+ * observes the directories of the stores in use and keeps the modification time
+ * of each file in memory. The rebuild checks of the patched {@code FileBasedStore.modified()}
+ * read these values instead of accessing the file system.
+ * <p>
+ * Any event in a watched directory re-reads the state of all the tracked files in it.
+ * This covers the replacement of files by renames and symlink swaps used by the
+ * Kubernetes secret mounts.
+ */
+public class StoreChangeTracker {
+
+    private static final Map<Path, Tracked> files = new ConcurrentHashMap<>();
+
+    private static final Map<Path, WatchKey> directories = new ConcurrentHashMap<>();
+
+    private static WatchService watchService;
+
+    private static volatile boolean failed;
+
+    private StoreChangeTracker() {
+    }
+
+    /**
+     * Check if the store file changed since it was loaded.
+     * @param path store location
+     * @param loadedModifiedMs modification time recorded by the store when loaded
+     * @return the result or null if the file is not tracked and the original check has to run
+     */
+    public static Boolean modified(String path, Long loadedModifiedMs) {
+        if (path == null || failed) {
+            return null;
+        }
+        Tracked tracked = track(Paths.get(path).toAbsolutePath().normalize());
+        if (tracked == null) {
+            return null;
+        }
+        Long modifiedMs = tracked.modifiedMs;
+        return modifiedMs != null && !modifiedMs.equals(loadedModifiedMs);
+    }
+
+    public static int trackedFiles() {
+        return files.size();
+    }
+
+    private static Tracked track(Path file) {
+        Tracked tracked = files.get(file);
+        if (tracked != null) {
+            return tracked;
+        }
+        synchronized (StoreChangeTracker.class) {
+            tracked = files.get(file);
+            if (tracked != null) {
+                return tracked;
+            }
+            Path directory = file.getParent();
+            try {
+                if (watchService == null) {
+                    watchService = FileSystems.getDefault().newWatchService();
+                    Thread thread = new Thread(StoreChangeTracker::watch, "kafka-ssl-fix-store-watcher");
+                    thread.setDaemon(true);
+                    thread.start();
+                }
+                if (!directories.containsKey(directory)) {
+                    directories.put(directory, directory.register(watchService,
+                            StandardWatchEventKinds.ENTRY_CREATE,
+                            StandardWatchEventKinds.ENTRY_MODIFY,
+                            StandardWatchEventKinds.ENTRY_DELETE));
+                }
+            } catch (IOException | RuntimeException e) {
+                // fall back to the original check for good
+                failed = true;
+                return null;
+            }
+            tracked = new Tracked(file);
+            files.put(file, tracked);
+            return tracked;
+        }
+    }
+
+    private static void watch() {
+        try {
+            for (;;) {
+                WatchKey key = watchService.take();
+                // the events are not inspected; the file may be replaced by renames or symlink swaps
+                key.pollEvents();
+                Path directory = (Path) key.watchable();
+                for (Tracked tracked : files.values()) {
+                    if (directory.equals(tracked.file.getParent())) {
+                        tracked.refresh();
+                    }
+                }
+                if (!key.reset()) {
+                    directories.remove(directory);
+                    // the directory is gone; the files cannot be tracked anymore
+                    for (Tracked tracked : files.values()) {
+                        if (directory.equals(tracked.file.getParent())) {
+                            files.remove(tracked.file);
+                        }
+                    }
+                }
+            }
+        } catch (InterruptedException | RuntimeException e) {
+            // including ClosedWatchServiceException; nothing refreshes the tracked state anymore
+        } finally {
+            // fall back to the original check for good
+            failed = true;
+        }
+    }
+
+    private static class Tracked {
+
+        final Path file;
+        volatile Long modifiedMs;
+
+        Tracked(Path file) {
+            this.file = file;
+            this.modifiedMs = stat(file);
+        }
+
+        void refresh() {
+            Long current = stat(file);
+            if (current == null ? modifiedMs != null : !current.equals(modifiedMs)) {
+                modifiedMs = current;
+            }
+        }
+
+        private static Long stat(Path file) {
+            try {
+                return Files.getLastModifiedTime(file).toMillis();
+            } catch (IOException e) {
+                return null;
+            }
+        }
+
+    }
+
+}
@@ -0,0 +1,57 @@
+package dev.psmolinski.kafka.ssl;
+
+import javax.net.ssl.TrustManager;
+import javax.net.ssl.TrustManagerFactory;
+import javax.net.ssl.X509ExtendedTrustManager;
+
+/**
+ * Decorates the trust managers the factory passes to {@code SSLContext.init}.
+ * <p>
+ * The method is invoked from the bytecode injected into {@code createSSLContext}
+ * in place of {@code TrustManagerFactory.getTrustManagers()}.
+ */
+public class TrustManagers {
+
+    private static final boolean index = AgentConfig.current().getBoolean("truststore.index", false);
+    private static final boolean cache = AgentConfig.current().getBoolean("trust.cache", false);
+    private static final int cacheSize = AgentConfig.current().getInt("trust.cache.size", 256);
+    private static final long cacheTtlMs = AgentConfig.current().getLong("trust.cache.ttl.ms", 3_600_000L);
+
+    private TrustManagers() {
+    }
+
+    static boolean enabled(AgentConfig config) {
+        return config.getBoolean("truststore.index", false) || config.getBoolean("trust.cache", false);
+    }
+
+    public static TrustManager[] wrap(TrustManagerFactory factory) {
+        TrustManager[] trustManagers = factory.getTrustManagers();
+        for (int i = 0; i < trustManagers.length; i++) {
+            if (trustManagers[i] instanceof X509ExtendedTrustManager) {
+                trustManagers[i] = wrap(factory, (X509ExtendedTrustManager) trustManagers[i]);
+            }
+        }
+        return trustManagers;
+    }
+
+    static X509ExtendedTrustManager wrap(TrustManagerFactory factory, X509ExtendedTrustManager trustManager) {
+        if (index) {
+            trustManager = new IndexedTrustManager(trustManager, factory.getAlgorithm(), factory.getProvider());
+        }
+        // outermost, so that a cached chain is not looked up in the index
+        if (cache && !revocationChecking()) {
+            trustManager = new CachingTrustManager(trustManager, cacheSize, cacheTtlMs);
+        }
+        return trustManager;
+    }
+
+    /**
+     * The trust manager of the JSSE {@code PKIX} factory, initialized with a key store as the
+     * factory does, checks the revocation status (OCSP, CRL) only with this property. A revoked
+     * certificate must be rejected on the next handshake, so such validations are not cached.
+     */
+    static boolean revocationChecking() {
+        return Boolean.getBoolean("com.sun.net.ssl.checkRevocation");
+    }
+
+}
@@ -0,0 +1,169 @@
+package dev.psmolinski.kafka.ssl;
+
+import javax.net.ssl.KeyManagerFactory;
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLEngine;
+import javax.net.ssl.SSLEngineResult;
+import javax.net.ssl.SSLException;
+import javax.net.ssl.TrustManagerFactory;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.security.KeyStore;
+import java.security.SecureRandom;
+import java.security.Security;
+
+/**
+ * Warm-up of the JSSE started by {@code premain} on a background thread, so that it runs
+ * in parallel with the application startup instead of on the path of the first connection.
+ * <p>
+ * Resolves the providers, initializes the key and trust manager factories (the latter
+ * with the JDK default trust store), seeds the {@link SecureRandom} and loads the key
+ * store types. Optionally runs in-memory handshakes with the configured protocol, using
+ * a throwaway self-signed key bundled with the agent, so that the handshake code is
+ * loaded and compiled.
+ * <p>
+ * Failures are ignored; the warm-up only shifts the work, it never changes the outcome.
+ */
+public class Warmup implements Runnable {
+
+    static final String THREAD_NAME = "kafka-ssl-fix-warmup";
+
+    static final String KEYSTORE = "warmup.p12";
+    static final char[] PASSWORD = "warmup".toCharArray();
+
+    private static volatile long durationNanos = -1L;
+
+    private final String protocol;
+    private final int handshakes;
+
+    Warmup(String protocol, int handshakes) {
+        this.protocol = protocol;
+        this.handshakes = handshakes;
+    }
+
+    static boolean enabled(AgentConfig config) {
+        return config.getBoolean("warmup", false);
+    }
+
+    static Thread start(AgentConfig config) {
+        Warmup warmup = new Warmup(
+                config.getString("warmup.protocol", "TLSv1.3"),
+                config.getInt("warmup.handshakes", 1));
+        Thread thread = new Thread(warmup, THREAD_NAME);
+        thread.setDaemon(true);
+        // do not compete with the application startup
+        thread.setPriority(Thread.MIN_PRIORITY);
+        thread.start();
+        return thread;
+    }
+
+    /**
+     * @return duration of the completed warm-up or -1 if it has not finished
+     */
+    public static long durationNanos() {
+        return durationNanos;
+    }
+
+    @Override
+    public void run() {
+        long start = System.nanoTime();
+        try {
+            Security.getProviders();
+            new SecureRandom().nextBytes(new byte[32]);
+            KeyStore.getInstance("PKCS12");
+            KeyStore.getInstance("JKS");
+
+            KeyManagerFactory kmf = KeyManagerFactory.getInstance(KeyManagerFactory.getDefaultAlgorithm());
+            TrustManagerFactory tmf = TrustManagerFactory.getInstance(TrustManagerFactory.getDefaultAlgorithm());
+            tmf.init((KeyStore) null);
+
+            SSLContext.getInstance(protocol);
+
+            if (handshakes > 0) {
+                KeyStore keystore = KeyStore.getInstance("PKCS12");
+                try (InputStream in = Warmup.class.getResourceAsStream(KEYSTORE)) {
+                    if (in == null) {
+                        return;
+                    }
+                    keystore.load(in, PASSWORD);
+                }
+                kmf.init(keystore, PASSWORD);
+                tmf = TrustManagerFactory.getInstance(TrustManagerFactory.getDefaultAlgorithm());
+                tmf.init(keystore);
+
+                SSLContext server = SSLContext.getInstance(protocol);
+                server.init(kmf.getKeyManagers(), null, null);
+                SSLContext client = SSLContext.getInstance(protocol);
+                client.init(null, tmf.getTrustManagers(), null);
+
+                for (int i = 0; i < handshakes; i++) {
+                    SSLEngine clientEngine = client.createSSLEngine();
+                    clientEngine.setUseClientMode(true);
+                    SSLEngine serverEngine = server.createSSLEngine();
+                    serverEngine.setUseClientMode(false);
+                    handshake(clientEngine, serverEngine);
+                }
+            }
+        } catch (Exception e) {
+            // nothing warmed up beyond this point
+        } finally {
+            durationNanos = System.nanoTime() - start;
+        }
+    }
+
+    /**
+     * Run the handshake between two engines exchanging the records in memory.
+     */
+    static void handshake(SSLEngine client, SSLEngine server) throws SSLException {
+        int packetSize = Math.max(client.getSession().getPacketBufferSize(), server.getSession().getPacketBufferSize());
+        int applicationSize = Math.max(client.getSession().getApplicationBufferSize(), server.getSession().getApplicationBufferSize());
+        ByteBuffer clientToServer = ByteBuffer.allocate(packetSize);
+        ByteBuffer serverToClient = ByteBuffer.allocate(packetSize);
+        ByteBuffer application = ByteBuffer.allocate(applicationSize);
+        client.beginHandshake();
+        server.beginHandshake();
+        for (int i = 0; i < 1000; i++) {
+            boolean progress = step(client, serverToClient, clientToServer, application)
+                    | step(server, clientToServer, serverToClient, application);
+            if (!progress) {
+                return;
+            }
+        }
+    }
+
+    private static boolean step(SSLEngine engine, ByteBuffer in, ByteBuffer out, ByteBuffer application) throws SSLException {
+        switch (engine.getHandshakeStatus()) {
+            case NEED_WRAP: {
+                SSLEngineResult result = engine.wrap(ByteBuffer.allocate(0), out);
+                return result.bytesProduced() > 0 || result.getHandshakeStatus() != SSLEngineResult.HandshakeStatus.NEED_WRAP;
+            }
+            case NEED_TASK: {
+                for (Runnable task; (task = engine.getDelegatedTask()) != null; ) {
+                    task.run();
+                }
+                return true;
+            }
+            case NOT_HANDSHAKING:
+            case FINISHED:
+                if (in.position() == 0) {
+                    return false;
+                }
+                return unwrap(engine, in, application);
+            default:
+                return unwrap(engine, in, application);
+        }
+    }
+
+    private static boolean unwrap(SSLEngine engine, ByteBuffer in, ByteBuffer application) throws SSLException {
+        in.flip();
+        try {
+            SSLEngineResult result = engine.unwrap(in, application);
+            application.clear();
+            return result.bytesConsumed() > 0 || result.getStatus() == SSLEngineResult.Status.OK
+                    && result.getHandshakeStatus() != SSLEngineResult.HandshakeStatus.NEED_UNWRAP;
+        } finally {
+            in.compact();
+        }
+    }
+
+}
@@ -0,0 +1,163 @@
+package dev.psmolinski.kafka.ssl;
+
+import org.apache.kafka.common.network.TransportLayer;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Gathering write of {@code SslTransportLayer} producing full TLS records.
+ * <p>
+ * The transport layer wraps every buffer of a send separately, so a request made of
+ * the size prefix and a small payload goes out as two records, one of them carrying
+ * 4 bytes of data and the full record overhead. Here the small buffers are first
+ * copied into a staging buffer of the maximum record size and wrapped together; a
+ * larger buffer following them tops up the record.
+ * <p>
+ * Only the buffers of one send are coalesced: the send is complete when all of them
+ * are wrapped, so the records are never held back waiting for the next send.
+ * <p>
+ * The method is invoked from the bytecode injected into {@code write(ByteBuffer[], int, int)}.
+ */
+public class WriteCoalescing {
+
+    /**
+     * Maximum plaintext length of a TLS record.
+     */
+    static final int MAX_RECORD_SIZE = 16384;
+
+    // the writes of a transport layer are done by the selector thread
+    private static final ThreadLocal<ByteBuffer> staging = ThreadLocal.withInitial(() -> ByteBuffer.allocate(MAX_RECORD_SIZE));
+
+    private static final LongAdder records = new LongAdder();
+    private static final LongAdder buffers = new LongAdder();
+
+    private WriteCoalescing() {
+    }
+
+    static boolean enabled(AgentConfig config) {
+        return config.getBoolean("write.coalesce", false);
+    }
+
+    /**
+     * Replacement of {@code SslTransportLayer.write(ByteBuffer[], int, int)}.
+     * @return number of bytes written or -1 if there is nothing to coalesce
+     *         and the original method should run
+     */
+    public static long write(TransportLayer channel, ByteBuffer[] srcs, int offset, int length) throws IOException {
+        // invalid arguments are reported by the original method
+        if (offset < 0 || length < 0 || offset > srcs.length - length) {
+            return -1L;
+        }
+        int end = offset + length;
+        if (!coalescible(srcs, offset, end)) {
+            return -1L;
+        }
+        long totalWritten = 0L;
+        int i = offset;
+        while (i < end) {
+            if (coalescible(srcs, i, end)) {
+                ByteBuffer staged = stage(srcs, i, end);
+                int written = channel.write(staged);
+                totalWritten += written;
+                i = consume(srcs, i, written);
+                if (staged.hasRemaining() || channel.hasPendingWrites()) {
+                    break;
+                }
+            } else {
+                // the step of the original loop
+                if (srcs[i].hasRemaining() || channel.hasPendingWrites()) {
+                    int written = channel.write(srcs[i]);
+                    if (written > 0) {
+                        totalWritten += written;
+                    }
+                }
+                if (!srcs[i].hasRemaining() && !channel.hasPendingWrites()) {
+                    i++;
+                } else {
+                    break;
+                }
+            }
+        }
+        return totalWritten;
+    }
+
+    /**
+     * @return true if the first non empty buffer is smaller than a record and
+     *         is followed by another non empty buffer
+     */
+    static boolean coalescible(ByteBuffer[] srcs, int from, int end) {
+        int i = from;
+        while (i < end && !srcs[i].hasRemaining()) {
+            i++;
+        }
+        if (i == end || srcs[i].remaining() >= MAX_RECORD_SIZE) {
+            return false;
+        }
+        for (i++; i < end; i++) {
+            if (srcs[i].hasRemaining()) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Copy the data of the buffers up to the record size. The buffers are not consumed.
+     */
+    private static ByteBuffer stage(ByteBuffer[] srcs, int from, int end) {
+        ByteBuffer staged = staging.get();
+        staged.clear();
+        int count = 0;
+        for (int i = from; i < end && staged.hasRemaining(); i++) {
+            ByteBuffer src = srcs[i];
+            if (!src.hasRemaining()) {
+                continue;
+            }
+            ByteBuffer slice = src.duplicate();
+            if (slice.remaining() > staged.remaining()) {
+                slice.limit(slice.position() + staged.remaining());
+            }
+            staged.put(slice);
+            count++;
+        }
+        staged.flip();
+        records.increment();
+        buffers.add(count);
+        return staged;
+    }
+
+    /**
+     * Advance the buffers by the number of bytes the transport layer took from the staging buffer.
+     * @return index of the first buffer with remaining data
+     */
+    private static int consume(ByteBuffer[] srcs, int from, int written) {
+        int i = from;
+        while (written > 0) {
+            ByteBuffer src = srcs[i];
+            int n = Math.min(written, src.remaining());
+            src.position(src.position() + n);
+            written -= n;
+            if (!src.hasRemaining()) {
+                i++;
+            }
+        }
+        return i;
+    }
+
+    /**
+     * @return number of the records built from more than one buffer
+     */
+    public static long records() {
+        return records.sum();
+    }
+
+    /**
+     * @return number of the buffers copied into those records
+     */
+    public static long buffers() {
+        return buffers.sum();
+    }
+
+}
@@ -82,3 +82,17 @@
 -deststoretype PKCS12 \
 -deststorepass changeit \
 && echo "kafka.jks generated"
+
+[ ! -f bundle.crt ] \
+&& for i in $(seq -w 1 500); do \
+openssl req -x509 \
+-newkey ec \
+-pkeyopt ec_paramgen_curve:P-256 \
+-nodes \
+-keyout /dev/null \
+-days 3650 \
+-sha256 \
+-subj "/O=Bundle/CN=CA $i" \
+2>/dev/null; \
+done > bundle.crt \
+&& echo "bundle.crt generated"
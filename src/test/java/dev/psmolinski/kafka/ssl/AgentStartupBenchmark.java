@@ -0,0 +1,115 @@
+package dev.psmolinski.kafka.ssl;
+
+import org.objectweb.asm.ClassWriter;
+import org.objectweb.asm.MethodVisitor;
+import org.objectweb.asm.Opcodes;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.net.URL;
+import java.net.URLClassLoader;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.jar.JarEntry;
+import java.util.jar.JarOutputStream;
+
+/**
+ * Startup overhead of the agent. A synthetic jar with many classes is generated
+ * and loaded in a fresh JVM with and without {@code -javaagent}.
+ * <p>
+ * Run after {@code mvn package}:
+ * <pre>
+ * java -cp target/test-classes:target/classes:... dev.psmolinski.kafka.ssl.AgentStartupBenchmark [classes] [rounds]
+ * </pre>
+ */
+public class AgentStartupBenchmark {
+
+    public static void main(String...args) throws Exception {
+
+        int classes = args.length > 0 ? Integer.parseInt(args[0]) : 20000;
+        int rounds = args.length > 1 ? Integer.parseInt(args[1]) : 5;
+        String agent = args.length > 2 ? args[2] : "target/kafka-ssl-fix.jar";
+
+        File jar = File.createTempFile("synthetic", ".jar");
+        jar.deleteOnExit();
+        generate(jar, classes);
+
+        List<Long> plain = new ArrayList<>();
+        List<Long> patched = new ArrayList<>();
+        for (int i = 0; i < rounds; i++) {
+            plain.add(run(null, jar, classes));
+            patched.add(run(agent, jar, classes));
+        }
+
+        System.out.printf("classes=%d rounds=%d%n", classes, rounds);
+        System.out.printf("without agent: median %d ms %s%n", median(plain), plain);
+        System.out.printf("with agent:    median %d ms %s%n", median(patched), patched);
+
+    }
+
+    /**
+     * Child JVM entry point: load all the classes from the synthetic jar.
+     */
+    public static class Load {
+        public static void main(String...args) throws Exception {
+            int classes = Integer.parseInt(args[1]);
+            try (URLClassLoader loader = new URLClassLoader(new URL[]{new File(args[0]).toURI().toURL()})) {
+                for (int i = 0; i < classes; i++) {
+                    Class.forName(className(i).replace('/', '.'), true, loader);
+                }
+            }
+        }
+    }
+
+    private static long run(String agent, File jar, int classes) throws Exception {
+        List<String> command = new ArrayList<>();
+        command.add(System.getProperty("java.home") + File.separator + "bin" + File.separator + "java");
+        if (agent != null) {
+            command.add("-javaagent:" + agent);
+        }
+        command.addAll(Arrays.asList("-cp", System.getProperty("java.class.path"),
+                Load.class.getName(), jar.getAbsolutePath(), String.valueOf(classes)));
+        long start = System.nanoTime();
+        Process process = new ProcessBuilder(command).inheritIO().start();
+        if (process.waitFor() != 0) {
+            throw new IllegalStateException("Child JVM failed: " + command);
+        }
+        return (System.nanoTime() - start) / 1_000_000L;
+    }
+
+    private static void generate(File jar, int classes) throws Exception {
+        try (JarOutputStream out = new JarOutputStream(new FileOutputStream(jar))) {
+            for (int i = 0; i < classes; i++) {
+                out.putNextEntry(new JarEntry(className(i) + ".class"));
+                out.write(generateClass(className(i)));
+                out.closeEntry();
+            }
+        }
+    }
+
+    private static byte[] generateClass(String name) {
+        ClassWriter cw = new ClassWriter(ClassWriter.COMPUTE_MAXS);
+        cw.visit(Opcodes.V1_8, Opcodes.ACC_PUBLIC, name, null, "java/lang/Object", null);
+        MethodVisitor mv = cw.visitMethod(Opcodes.ACC_PUBLIC, "<init>", "()V", null, null);
+        mv.visitCode();
+        mv.visitVarInsn(Opcodes.ALOAD, 0);
+        mv.visitMethodInsn(Opcodes.INVOKESPECIAL, "java/lang/Object", "<init>", "()V", false);
+        mv.visitInsn(Opcodes.RETURN);
+        mv.visitMaxs(0, 0);
+        mv.visitEnd();
+        cw.visitEnd();
+        return cw.toByteArray();
+    }
+
+    private static String className(int i) {
+        return "synthetic/p" + (i % 100) + "/C" + i;
+    }
+
+    private static long median(List<Long> values) {
+        List<Long> sorted = new ArrayList<>(values);
+        sorted.sort(null);
+        return sorted.get(sorted.size() / 2);
+    }
+
+}
@@ -0,0 +1,262 @@
+package dev.psmolinski.kafka.ssl;
+
+import org.assertj.core.api.Assertions;
+import org.junit.jupiter.api.Test;
+
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLEngine;
+import javax.net.ssl.SSLParameters;
+import javax.net.ssl.TrustManagerFactory;
+import javax.net.ssl.X509ExtendedTrustManager;
+import java.io.InputStream;
+import java.net.Socket;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.security.AlgorithmConstraints;
+import java.security.AlgorithmParameters;
+import java.security.CryptoPrimitive;
+import java.security.Key;
+import java.security.KeyStore;
+import java.security.Security;
+import java.security.cert.CertificateException;
+import java.security.cert.CertificateFactory;
+import java.security.cert.X509Certificate;
+import java.util.Set;
+
+public class CachingTrustManagerTest {
+
+    @Test
+    public void testRepeatedValidationIsCached() throws Exception {
+
+        CountingTrustManager delegate = new CountingTrustManager();
+        CachingTrustManager trustManager = new CachingTrustManager(delegate, 16, 60_000L);
+        X509Certificate[] chain = chain();
+
+        long hits = CachingTrustManager.hits();
+
+        trustManager.checkServerTrusted(chain, "RSA");
+        trustManager.checkServerTrusted(chain, "RSA");
+        // the client side is validated separately
+        trustManager.checkClientTrusted(chain, "RSA");
+
+        Assertions.assertThat(delegate.checks).isEqualTo(2);
+        Assertions.assertThat(CachingTrustManager.hits() - hits).isEqualTo(1);
+
+    }
+
+    @Test
+    public void testFailureIsNotCached() throws Exception {
+
+        CountingTrustManager delegate = new CountingTrustManager();
+        delegate.failure = new CertificateException("untrusted");
+        CachingTrustManager trustManager = new CachingTrustManager(delegate, 16, 60_000L);
+        X509Certificate[] chain = chain();
+
+        for (int i = 0; i < 2; i++) {
+            Assertions.assertThatThrownBy(() -> trustManager.checkServerTrusted(chain, "RSA"))
+                    .isSameAs(delegate.failure);
+        }
+        Assertions.assertThat(delegate.checks).isEqualTo(2);
+
+    }
+
+    @Test
+    public void testEntryExpires() throws Exception {
+
+        CountingTrustManager delegate = new CountingTrustManager();
+        CachingTrustManager trustManager = new CachingTrustManager(delegate, 16, 1L);
+        X509Certificate[] chain = chain();
+
+        trustManager.checkServerTrusted(chain, "RSA");
+        Thread.sleep(10L);
+        trustManager.checkServerTrusted(chain, "RSA");
+
+        Assertions.assertThat(delegate.checks).isEqualTo(2);
+
+    }
+
+    @Test
+    public void testOtherHostIsValidatedAgain() throws Exception {
+
+        CountingTrustManager delegate = new CountingTrustManager();
+        CachingTrustManager trustManager = new CachingTrustManager(delegate, 16, 60_000L);
+        X509Certificate[] chain = chain();
+        SSLContext context = SSLContext.getInstance("TLS");
+        context.init(null, null, null);
+
+        trustManager.checkServerTrusted(chain, "RSA", engine(context, "broker-1"));
+        trustManager.checkServerTrusted(chain, "RSA", engine(context, "broker-1"));
+        trustManager.checkServerTrusted(chain, "RSA", engine(context, "broker-2"));
+
+        Assertions.assertThat(delegate.checks).isEqualTo(2);
+
+    }
+
+    @Test
+    public void testChangedConstraintsAreCheckedAgain() throws Exception {
+
+        CountingTrustManager delegate = new CountingTrustManager();
+        CachingTrustManager trustManager = new CachingTrustManager(delegate, 16, 60_000L);
+        X509Certificate[] chain = chain();
+
+        String disabled = Security.getProperty("jdk.certpath.disabledAlgorithms");
+        try {
+            trustManager.checkServerTrusted(chain, "RSA");
+            Security.setProperty("jdk.certpath.disabledAlgorithms", disabled + ", SHA256withRSA");
+            trustManager.checkServerTrusted(chain, "RSA");
+            trustManager.checkServerTrusted(chain, "RSA");
+        } finally {
+            Security.setProperty("jdk.certpath.disabledAlgorithms", disabled);
+        }
+
+        Assertions.assertThat(delegate.checks).isEqualTo(2);
+
+    }
+
+    @Test
+    public void testOwnConstraintsAreNotCached() throws Exception {
+
+        CountingTrustManager delegate = new CountingTrustManager();
+        CachingTrustManager trustManager = new CachingTrustManager(delegate, 16, 60_000L);
+        X509Certificate[] chain = chain();
+        SSLContext context = SSLContext.getInstance("TLS");
+        context.init(null, null, null);
+
+        for (int i = 0; i < 2; i++) {
+            SSLEngine engine = engine(context, "broker-1");
+            SSLParameters parameters = engine.getSSLParameters();
+            parameters.setAlgorithmConstraints(new PermitAll());
+            engine.setSSLParameters(parameters);
+            trustManager.checkServerTrusted(chain, "RSA", engine);
+        }
+
+        Assertions.assertThat(delegate.checks).isEqualTo(2);
+
+    }
+
+    @Test
+    public void testRevocationCheckingIsNotCached() throws Exception {
+
+        AgentConfig.install(AgentConfig.parse("trust.cache"));
+        TrustManagerFactory factory = TrustManagerFactory.getInstance("PKIX");
+        factory.init((KeyStore) null);
+        CountingTrustManager delegate = new CountingTrustManager();
+
+        Assertions.assertThat(TrustManagers.wrap(factory, delegate)).isInstanceOf(CachingTrustManager.class);
+
+        System.setProperty("com.sun.net.ssl.checkRevocation", "true");
+        try {
+            Assertions.assertThat(TrustManagers.wrap(factory, delegate)).isSameAs(delegate);
+        } finally {
+            System.clearProperty("com.sun.net.ssl.checkRevocation");
+        }
+
+    }
+
+    @Test
+    public void testCapacity() throws Exception {
+
+        CountingTrustManager delegate = new CountingTrustManager();
+        CachingTrustManager trustManager = new CachingTrustManager(delegate, 1, 60_000L);
+        X509Certificate[] chain = chain();
+
+        trustManager.checkServerTrusted(chain, "RSA");
+        trustManager.checkServerTrusted(chain, "ECDHE_RSA");
+        // evicted by the second entry
+        trustManager.checkServerTrusted(chain, "RSA");
+
+        Assertions.assertThat(delegate.checks).isEqualTo(3);
+
+    }
+
+    private static SSLEngine engine(SSLContext context, String host) {
+        SSLEngine engine = context.createSSLEngine(host, 9093);
+        engine.setUseClientMode(true);
+        return engine;
+    }
+
+    static X509Certificate[] chain() throws Exception {
+        return new X509Certificate[]{
+                certificate(SslTestSupport.CERTIFICATES + "/kafka.crt"),
+                certificate(SslTestSupport.CERTIFICATES + "/ca.crt")
+        };
+    }
+
+    static X509Certificate certificate(String file) throws Exception {
+        try (InputStream in = Files.newInputStream(Paths.get(file))) {
+            return (X509Certificate) CertificateFactory.getInstance("X.509").generateCertificate(in);
+        }
+    }
+
+    static class PermitAll implements AlgorithmConstraints {
+
+        @Override
+        public boolean permits(Set<CryptoPrimitive> primitives, String algorithm, AlgorithmParameters parameters) {
+            return true;
+        }
+
+        @Override
+        public boolean permits(Set<CryptoPrimitive> primitives, Key key) {
+            return true;
+        }
+
+        @Override
+        public boolean permits(Set<CryptoPrimitive> primitives, String algorithm, Key key, AlgorithmParameters parameters) {
+            return true;
+        }
+
+    }
+
+    /**
+     * Delegate counting the checks, accepting or failing all of them.
+     */
+    static class CountingTrustManager extends X509ExtendedTrustManager {
+
+        int checks;
+        CertificateException failure;
+
+        private void check() throws CertificateException {
+            checks++;
+            if (failure != null) {
+                throw failure;
+            }
+        }
+
+        @Override
+        public void checkClientTrusted(X509Certificate[] chain, String authType, Socket socket) throws CertificateException {
+            check();
+        }
+
+        @Override
+        public void checkServerTrusted(X509Certificate[] chain, String authType, Socket socket) throws CertificateException {
+            check();
+        }
+
+        @Override
+        public void checkClientTrusted(X509Certificate[] chain, String authType, SSLEngine engine) throws CertificateException {
+            check();
+        }
+
+        @Override
+        public void checkServerTrusted(X509Certificate[] chain, String authType, SSLEngine engine) throws CertificateException {
+            check();
+        }
+
+        @Override
+        public void checkClientTrusted(X509Certificate[] chain, String authType) throws CertificateException {
+            check();
+        }
+
+        @Override
+        public void checkServerTrusted(X509Certificate[] chain, String authType) throws CertificateException {
+            check();
+        }
+
+        @Override
+        public X509Certificate[] getAcceptedIssuers() {
+            return new X509Certificate[0];
+        }
+
+    }
+
+}
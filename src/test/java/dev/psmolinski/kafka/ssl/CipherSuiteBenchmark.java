@@ -0,0 +1,128 @@
+package dev.psmolinski.kafka.ssl;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import javax.net.ssl.KeyManagerFactory;
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLEngine;
+import javax.net.ssl.SSLEngineResult;
+import javax.net.ssl.TrustManagerFactory;
+import java.io.FileInputStream;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.security.KeyStore;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * JMH bulk encryption throughput of the AEAD cipher suites, i.e. a 16 KiB record wrapped
+ * by the client and unwrapped by the server, as the reference for the figures measured at
+ * startup with {@code cipher.ranking}. The score in ops/ms multiplied by 16.4 is the
+ * throughput in MB/s. The figures measured by the agent code are printed first:
+ * <pre>
+ * java -cp target/test-classes:target/classes:... dev.psmolinski.kafka.ssl.CipherSuiteBenchmark
+ * </pre>
+ */
+@State(Scope.Benchmark)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class CipherSuiteBenchmark {
+
+    private static final int RECORD_SIZE = 16384;
+
+    @Param({
+            "TLS_AES_128_GCM_SHA256",
+            "TLS_AES_256_GCM_SHA384",
+            "TLS_CHACHA20_POLY1305_SHA256",
+            "TLS_ECDHE_RSA_WITH_AES_128_GCM_SHA256",
+            "TLS_ECDHE_RSA_WITH_AES_256_GCM_SHA384",
+            "TLS_ECDHE_RSA_WITH_CHACHA20_POLY1305_SHA256",
+    })
+    public String suite;
+
+    private SSLEngine clientEngine;
+    private SSLEngine serverEngine;
+
+    private ByteBuffer plain;
+    private ByteBuffer encrypted;
+    private ByteBuffer decrypted;
+
+    @Setup(Level.Trial)
+    public void setup() throws Exception {
+        KeyManagerFactory kmf = KeyManagerFactory.getInstance(KeyManagerFactory.getDefaultAlgorithm());
+        kmf.init(load(SslTestSupport.CERTIFICATES + "/kafka.jks"), "changeit".toCharArray());
+        TrustManagerFactory tmf = TrustManagerFactory.getInstance(TrustManagerFactory.getDefaultAlgorithm());
+        tmf.init(load(SslTestSupport.CERTIFICATES + "/ca.jks"));
+
+        SSLContext server = SSLContext.getInstance("TLS");
+        server.init(kmf.getKeyManagers(), null, null);
+        SSLContext client = SSLContext.getInstance("TLS");
+        client.init(null, tmf.getTrustManagers(), null);
+
+        String protocol = suite.contains("_WITH_") ? "TLSv1.2" : "TLSv1.3";
+        clientEngine = client.createSSLEngine("kafka", 9093);
+        clientEngine.setUseClientMode(true);
+        clientEngine.setEnabledProtocols(new String[]{protocol});
+        clientEngine.setEnabledCipherSuites(new String[]{suite});
+        serverEngine = server.createSSLEngine();
+        serverEngine.setUseClientMode(false);
+        serverEngine.setEnabledProtocols(new String[]{protocol});
+        serverEngine.setEnabledCipherSuites(new String[]{suite});
+        SslTestSupport.handshake(clientEngine, serverEngine);
+
+        plain = ByteBuffer.allocate(RECORD_SIZE);
+        encrypted = ByteBuffer.allocate(clientEngine.getSession().getPacketBufferSize());
+        decrypted = ByteBuffer.allocate(serverEngine.getSession().getApplicationBufferSize());
+    }
+
+    @Benchmark
+    @BenchmarkMode(Mode.Throughput)
+    @OutputTimeUnit(TimeUnit.MILLISECONDS)
+    public ByteBuffer bulk() throws Exception {
+        plain.clear();
+        encrypted.clear();
+        decrypted.clear();
+        SSLEngineResult wrapped = clientEngine.wrap(plain, encrypted);
+        encrypted.flip();
+        SSLEngineResult unwrapped = serverEngine.unwrap(encrypted, decrypted);
+        if (wrapped.getStatus() != SSLEngineResult.Status.OK || unwrapped.getStatus() != SSLEngineResult.Status.OK) {
+            throw new IllegalStateException(wrapped + " " + unwrapped);
+        }
+        return decrypted;
+    }
+
+    private static KeyStore load(String path) throws Exception {
+        KeyStore keystore = KeyStore.getInstance("PKCS12");
+        try (InputStream in = new FileInputStream(path)) {
+            keystore.load(in, "changeit".toCharArray());
+        }
+        return keystore;
+    }
+
+    public static void main(String...args) throws Exception {
+        Thread ranking = new Thread(new CipherSuiteRanking(null, 200L));
+        ranking.start();
+        ranking.join();
+        for (Map.Entry<String, Double> e : CipherSuiteRanking.throughput().entrySet()) {
+            System.out.printf("### %-50s %8.1f MB/s%n", e.getKey(), e.getValue());
+        }
+        new Runner(new OptionsBuilder()
+                .include(CipherSuiteBenchmark.class.getName())
+                .build()).run();
+    }
+
+}
@@ -0,0 +1,131 @@
+package dev.psmolinski.kafka.ssl;
+
+import org.apache.kafka.clients.admin.AdminClientConfig;
+import org.apache.kafka.common.metrics.Metrics;
+import org.apache.kafka.common.network.ChannelBuilder;
+import org.apache.kafka.common.network.ChannelBuilders;
+import org.apache.kafka.common.network.Selectable;
+import org.apache.kafka.common.network.Selector;
+import org.apache.kafka.common.security.JaasContext;
+import org.apache.kafka.common.security.auth.SecurityProtocol;
+import org.apache.kafka.common.utils.LogContext;
+import org.apache.kafka.common.utils.Time;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.InputStreamReader;
+import java.lang.management.BufferPoolMXBean;
+import java.lang.management.ManagementFactory;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Memory held by idle SSL connections of the Kafka network layer. Opens the connections
+ * with the client {@code Selector} and {@code SslTransportLayer} to a {@link LoopbackBroker}
+ * running in a separate JVM and reports the heap and direct memory per connection once
+ * all the handshakes are complete:
+ * <pre>
+ * java [-javaagent:target/kafka-ssl-fix.jar=buffers.pool] -cp ... dev.psmolinski.kafka.ssl.ConnectionMemoryBenchmark [connections]
+ * </pre>
+ */
+public class ConnectionMemoryBenchmark {
+
+    public static void main(String...args) throws Exception {
+
+        int connections = args.length > 0 ? Integer.parseInt(args[0]) : 1000;
+
+        Process broker = new ProcessBuilder(
+                System.getProperty("java.home") + File.separator + "bin" + File.separator + "java",
+                "-cp", System.getProperty("java.class.path"),
+                LoopbackBroker.class.getName())
+                .redirectError(ProcessBuilder.Redirect.INHERIT)
+                .start();
+
+        try {
+
+            BufferedReader reader = new BufferedReader(new InputStreamReader(broker.getInputStream(), StandardCharsets.UTF_8));
+            InetSocketAddress address = new InetSocketAddress("localhost", Integer.parseInt(reader.readLine().trim()));
+
+            Map<String, Object> settings = new HashMap<>();
+            settings.put("bootstrap.servers", "localhost:" + address.getPort());
+            settings.put("security.protocol", "SSL");
+            settings.put("ssl.truststore.type", "PEM");
+            settings.put("ssl.truststore.certificates", SslTestSupport.readFile(SslTestSupport.CERTIFICATES + "/ca.crt"));
+            settings.put("ssl.endpoint.identification.algorithm", "");
+
+            LogContext logContext = new LogContext();
+            ChannelBuilder channelBuilder = ChannelBuilders.clientChannelBuilder(
+                    SecurityProtocol.SSL,
+                    JaasContext.Type.CLIENT,
+                    new AdminClientConfig(settings),
+                    null,
+                    null,
+                    Time.SYSTEM,
+                    false,
+                    logContext);
+
+            try (Metrics metrics = new Metrics();
+                 Selector selector = new Selector(600_000L, metrics, Time.SYSTEM, "benchmark", channelBuilder, logContext)) {
+
+                long heap0 = heapUsed();
+                long direct0 = directUsed();
+
+                int ready = 0;
+                int connected = 0;
+                long deadline = System.currentTimeMillis() + 300_000L;
+                while (ready < connections && System.currentTimeMillis() < deadline) {
+                    // stay within the listen backlog of the broker
+                    while (connected < connections && connected - ready < 500) {
+                        selector.connect(String.valueOf(connected++), address,
+                                Selectable.USE_DEFAULT_BUFFER_SIZE, Selectable.USE_DEFAULT_BUFFER_SIZE);
+                    }
+                    selector.poll(100L);
+                    if (!selector.disconnected().isEmpty()) {
+                        throw new IllegalStateException("Disconnected: " + selector.disconnected().keySet());
+                    }
+                    ready = 0;
+                    for (int i = 0; i < connected; i++) {
+                        if (selector.isChannelReady(String.valueOf(i))) {
+                            ready++;
+                        }
+                    }
+                }
+
+                long heap1 = heapUsed();
+                long direct1 = directUsed();
+
+                System.out.printf("connections:           %d%n", ready);
+                System.out.printf("heap per connection:   %d bytes%n", (heap1 - heap0) / Math.max(ready, 1));
+                System.out.printf("direct per connection: %d bytes%n", (direct1 - direct0) / Math.max(ready, 1));
+                System.out.printf("buffer pool:           allocated=%d reused=%d released=%d free=%d bytes%n",
+                        BufferPool.allocated(), BufferPool.reused(), BufferPool.released(), BufferPool.freeBytes());
+
+            }
+
+        } finally {
+            broker.getOutputStream().close();
+            broker.waitFor();
+        }
+
+    }
+
+    private static long heapUsed() throws InterruptedException {
+        for (int i = 0; i < 3; i++) {
+            System.gc();
+            Thread.sleep(100L);
+        }
+        return ManagementFactory.getMemoryMXBean().getHeapMemoryUsage().getUsed();
+    }
+
+    private static long directUsed() {
+        for (BufferPoolMXBean pool : ManagementFactory.getPlatformMXBeans(BufferPoolMXBean.class)) {
+            if ("direct".equals(pool.getName())) {
+                return pool.getMemoryUsed();
+            }
+        }
+        return 0L;
+    }
+
+}
@@ -0,0 +1,214 @@
+package dev.psmolinski.kafka.ssl;
+
+import org.apache.kafka.clients.admin.AdminClientConfig;
+import org.apache.kafka.common.metrics.Metrics;
+import org.apache.kafka.common.network.ByteBufferSend;
+import org.apache.kafka.common.network.ChannelBuilder;
+import org.apache.kafka.common.network.ChannelBuilders;
+import org.apache.kafka.common.network.NetworkReceive;
+import org.apache.kafka.common.network.NetworkSend;
+import org.apache.kafka.common.network.Selectable;
+import org.apache.kafka.common.network.Selector;
+import org.apache.kafka.common.security.JaasContext;
+import org.apache.kafka.common.security.auth.SecurityProtocol;
+import org.apache.kafka.common.utils.LogContext;
+import org.apache.kafka.common.utils.Time;
+
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Latency of the established connections of a client {@code Selector} while the same
+ * network thread runs a storm of handshakes. The established connections send ApiVersions
+ * requests one after another to one {@link LoopbackBroker}; the storm keeps a number of
+ * handshakes in progress against another one, closing every connection once it is ready
+ * and opening a new one. Reports the request latency percentiles without and with the
+ * storm, and the handshakes per second:
+ * <pre>
+ * java [-javaagent:target/kafka-ssl-fix.jar=tasks.offload] -cp ... dev.psmolinski.kafka.ssl.DelegatedTaskBenchmark [connections] [storm] [seconds]
+ * </pre>
+ */
+public class DelegatedTaskBenchmark {
+
+    public static void main(String...args) throws Exception {
+
+        int connections = args.length > 0 ? Integer.parseInt(args[0]) : 10;
+        int storm = args.length > 1 ? Integer.parseInt(args[1]) : 200;
+        int seconds = args.length > 2 ? Integer.parseInt(args[2]) : 30;
+
+        try (LoopbackBroker established = new LoopbackBroker(SslTestSupport.server(), 0);
+             LoopbackBroker handshakes = new LoopbackBroker(SslTestSupport.server(), 0)) {
+
+            Map<String, Object> settings = new HashMap<>();
+            settings.put("bootstrap.servers", established.bootstrapServers());
+            settings.put("security.protocol", "SSL");
+            settings.put("ssl.truststore.type", "PEM");
+            settings.put("ssl.truststore.certificates", SslTestSupport.readFile(SslTestSupport.CERTIFICATES + "/ca.crt"));
+            settings.put("ssl.endpoint.identification.algorithm", "");
+
+            LogContext logContext = new LogContext();
+            ChannelBuilder channelBuilder = ChannelBuilders.clientChannelBuilder(
+                    SecurityProtocol.SSL,
+                    JaasContext.Type.CLIENT,
+                    new AdminClientConfig(settings),
+                    null,
+                    null,
+                    Time.SYSTEM,
+                    false,
+                    logContext);
+
+            try (Metrics metrics = new Metrics();
+                 Selector selector = new Selector(600_000L, metrics, Time.SYSTEM, "benchmark", channelBuilder, logContext)) {
+
+                Run run = new Run(selector, connections,
+                        new InetSocketAddress("localhost", established.port()),
+                        new InetSocketAddress("localhost", handshakes.port()));
+
+                // warm up both paths
+                run.run(0, 5);
+                run.run(storm, 5);
+
+                run.run(0, seconds);
+                run.report("quiet");
+                run.run(storm, seconds);
+                run.report("storm " + storm);
+
+                System.out.printf("delegated tasks:      %d offloaded, %d inline%n",
+                        DelegatedTaskExecutor.offloaded(), DelegatedTaskExecutor.inline());
+
+            }
+
+        }
+
+    }
+
+    private static class Run {
+
+        final Selector selector;
+        final int connections;
+        final InetSocketAddress stormAddress;
+
+        final long[] sentNanos;
+        final Set<String> storming = new HashSet<>();
+        int nextStormId;
+        int correlationId;
+
+        long[] latencies = new long[1024];
+        int requests;
+        long handshakes;
+        long elapsedNanos;
+
+        Run(Selector selector, int connections, InetSocketAddress address, InetSocketAddress stormAddress) throws Exception {
+            this.selector = selector;
+            this.connections = connections;
+            this.stormAddress = stormAddress;
+            this.sentNanos = new long[connections];
+            for (int i = 0; i < connections; i++) {
+                selector.connect(String.valueOf(i), address,
+                        Selectable.USE_DEFAULT_BUFFER_SIZE, Selectable.USE_DEFAULT_BUFFER_SIZE);
+            }
+        }
+
+        void run(int storm, int seconds) throws Exception {
+            requests = 0;
+            handshakes = 0L;
+            long start = System.nanoTime();
+            long end = start + seconds * 1_000_000_000L;
+            for (long now = start; now < end; now = System.nanoTime()) {
+                for (int i = 0; i < connections; i++) {
+                    String id = String.valueOf(i);
+                    if (sentNanos[i] == 0L && selector.isChannelReady(id)) {
+                        selector.send(new NetworkSend(id, ByteBufferSend.sizePrefixed(apiVersionsRequest(correlationId++))));
+                        sentNanos[i] = System.nanoTime();
+                    }
+                }
+                List<String> ready = new ArrayList<>();
+                for (String id : storming) {
+                    if (selector.isChannelReady(id)) {
+                        ready.add(id);
+                    }
+                }
+                for (String id : ready) {
+                    selector.close(id);
+                    storming.remove(id);
+                    handshakes++;
+                }
+                while (storming.size() < storm) {
+                    String id = "storm-" + nextStormId++;
+                    selector.connect(id, stormAddress,
+                            Selectable.USE_DEFAULT_BUFFER_SIZE, Selectable.USE_DEFAULT_BUFFER_SIZE);
+                    storming.add(id);
+                }
+                selector.poll(100L);
+                for (String id : selector.disconnected().keySet()) {
+                    if (!storming.remove(id)) {
+                        throw new IllegalStateException("Disconnected: " + id);
+                    }
+                }
+                long received = System.nanoTime();
+                for (NetworkReceive receive : selector.completedReceives()) {
+                    int i = Integer.parseInt(receive.source());
+                    record(received - sentNanos[i]);
+                    sentNanos[i] = 0L;
+                }
+            }
+            // let the storm go before the next run
+            for (String id : storming) {
+                selector.close(id);
+            }
+            storming.clear();
+            elapsedNanos = System.nanoTime() - start;
+        }
+
+        void record(long latency) {
+            if (requests == latencies.length) {
+                latencies = Arrays.copyOf(latencies, requests * 2);
+            }
+            latencies[requests++] = latency;
+        }
+
+        void report(String label) {
+            long[] sorted = Arrays.copyOf(latencies, requests);
+            Arrays.sort(sorted);
+            System.out.printf("%-12s requests/s: %8.0f  latency p50: %6.2f ms  p99: %6.2f ms  max: %6.2f ms  handshakes/s: %6.0f%n",
+                    label,
+                    requests * 1e9 / elapsedNanos,
+                    percentile(sorted, 0.50) / 1e6,
+                    percentile(sorted, 0.99) / 1e6,
+                    percentile(sorted, 1.00) / 1e6,
+                    handshakes * 1e9 / elapsedNanos);
+        }
+
+        static long percentile(long[] sorted, double p) {
+            if (sorted.length == 0) {
+                return 0L;
+            }
+            return sorted[Math.max(0, (int) Math.ceil(p * sorted.length) - 1)];
+        }
+
+    }
+
+    /**
+     * ApiVersions v0 with the request header v1; the size prefix is added by the send.
+     */
+    private static ByteBuffer apiVersionsRequest(int correlationId) {
+        byte[] clientId = "benchmark".getBytes(StandardCharsets.UTF_8);
+        ByteBuffer buffer = ByteBuffer.allocate(10 + clientId.length);
+        buffer.putShort(LoopbackBroker.API_VERSIONS);
+        buffer.putShort((short) 0);
+        buffer.putInt(correlationId);
+        buffer.putShort((short) clientId.length);
+        buffer.put(clientId);
+        buffer.flip();
+        return buffer;
+    }
+
+}
@@ -0,0 +1,126 @@
+package dev.psmolinski.kafka.ssl;
+
+import org.apache.kafka.clients.consumer.KafkaConsumer;
+import org.apache.kafka.common.serialization.ByteArrayDeserializer;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Time to the first response of a fresh client JVM against three in-process
+ * {@link LoopbackBroker}s, without and with {@code eager.handshake}. The child JVM creates
+ * a {@code KafkaConsumer} over SSL, continues the application startup (simulated by a sleep)
+ * and lists the topics, i.e. connects to one of the bootstrap brokers with handshake,
+ * ApiVersions and Metadata. The time to the first response is reported from the client
+ * creation and from the end of the startup, together with the resumed handshakes of the
+ * consumer connections:
+ * <pre>
+ * java -cp ... dev.psmolinski.kafka.ssl.EagerHandshakeBenchmark [agent jar] [startup ms] [runs]
+ * </pre>
+ */
+public class EagerHandshakeBenchmark {
+
+    private static final int BROKERS = 3;
+
+    public static void main(String...args) throws Exception {
+
+        if (args.length > 0 && "connect".equals(args[0])) {
+            connect(args[1], Long.parseLong(args[2]));
+            return;
+        }
+
+        String agent = args.length > 0 ? args[0] : "target/kafka-ssl-fix.jar";
+        long startupMs = args.length > 1 ? Long.parseLong(args[1]) : 200L;
+        int runs = args.length > 2 ? Integer.parseInt(args[2]) : 5;
+
+        List<LoopbackBroker> brokers = new ArrayList<>();
+        try {
+            StringBuilder bootstrap = new StringBuilder();
+            for (int i = 0; i < BROKERS; i++) {
+                LoopbackBroker broker = new LoopbackBroker(SslTestSupport.server(), 0);
+                brokers.add(broker);
+                bootstrap.append(i > 0 ? "," : "").append(broker.bootstrapServers());
+            }
+            String[] variants = {
+                    "-javaagent:" + agent + "=session.resumption",
+                    "-javaagent:" + agent + "=session.resumption,eager.handshake",
+            };
+            for (String variant : variants) {
+                long total = 0L;
+                long afterStartup = 0L;
+                String resumed = null;
+                for (int i = 0; i < runs; i++) {
+                    String[] result = run(variant, bootstrap.toString(), startupMs);
+                    total += Long.parseLong(result[0]);
+                    afterStartup += Long.parseLong(result[1]);
+                    resumed = result[2];
+                }
+                System.out.printf("%-70s first response: %d ms, after startup: %d ms, resumed: %s%n",
+                        variant, total / runs, afterStartup / runs, resumed);
+            }
+        } finally {
+            for (LoopbackBroker broker : brokers) {
+                broker.close();
+            }
+        }
+
+    }
+
+    private static String[] run(String jvmArg, String bootstrap, long startupMs) throws Exception {
+        List<String> command = new ArrayList<>();
+        command.add(System.getProperty("java.home") + File.separator + "bin" + File.separator + "java");
+        command.add(jvmArg);
+        command.add("-cp");
+        command.add(System.getProperty("java.class.path"));
+        command.add(EagerHandshakeBenchmark.class.getName());
+        command.add("connect");
+        command.add(bootstrap);
+        command.add(String.valueOf(startupMs));
+        Process process = new ProcessBuilder(command)
+                .redirectError(ProcessBuilder.Redirect.INHERIT)
+                .start();
+        BufferedReader reader = new BufferedReader(new InputStreamReader(process.getInputStream(), StandardCharsets.UTF_8));
+        // the client logs go to the standard output as well; the result is the last line
+        String line = null;
+        for (String next; (next = reader.readLine()) != null; ) {
+            line = next;
+        }
+        if (process.waitFor() != 0 || line == null) {
+            throw new IllegalStateException("Connection failed: " + command);
+        }
+        return line.trim().split(" ");
+    }
+
+    /**
+     * Child JVM: print the times to the first response in milliseconds and the resumed connections.
+     */
+    private static void connect(String bootstrap, long startupMs) throws Exception {
+        Map<String, Object> settings = new HashMap<>();
+        settings.put("bootstrap.servers", bootstrap);
+        settings.put("security.protocol", "SSL");
+        settings.put("ssl.truststore.type", "PEM");
+        settings.put("ssl.truststore.certificates", SslTestSupport.readFile(SslTestSupport.CERTIFICATES + "/ca.crt"));
+        settings.put("ssl.endpoint.identification.algorithm", "");
+        settings.put("key.deserializer", ByteArrayDeserializer.class);
+        settings.put("value.deserializer", ByteArrayDeserializer.class);
+        long start = System.nanoTime();
+        long started;
+        long elapsed;
+        try (KafkaConsumer<byte[], byte[]> consumer = new KafkaConsumer<>(settings)) {
+            Thread.sleep(startupMs);
+            started = System.nanoTime();
+            consumer.listTopics(Duration.ofSeconds(30L));
+            elapsed = System.nanoTime() - start;
+        }
+        System.out.println(elapsed / 1_000_000L + " " + (start + elapsed - started) / 1_000_000L + " "
+                + SessionResumption.resumed() + "/" + (SessionResumption.resumed() + SessionResumption.full()));
+    }
+
+}
@@ -0,0 +1,61 @@
+package dev.psmolinski.kafka.ssl;
+
+import org.apache.kafka.common.network.Mode;
+import org.assertj.core.api.Assertions;
+import org.junit.jupiter.api.Test;
+
+import javax.net.ssl.SSLEngine;
+import java.net.InetSocketAddress;
+import java.util.Collections;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+public class EagerHandshakesTest {
+
+    private static final InetSocketAddress ADDRESS = new InetSocketAddress("localhost", 9093);
+
+    @Test
+    public void testOnlyClientFactoryConnects() throws Exception {
+
+        RecordingFactory server = new RecordingFactory();
+        RecordingFactory client = new RecordingFactory();
+
+        EagerHandshakes.bootstrap(Collections.singletonList(ADDRESS));
+        EagerHandshakes.configured(Mode.SERVER, server, Collections.emptyMap());
+        EagerHandshakes.configured(Mode.CLIENT, client, Collections.emptyMap());
+        EagerHandshakes.clear();
+
+        Assertions.assertThat(client.created.await(10L, TimeUnit.SECONDS)).isTrue();
+        Assertions.assertThat(server.created.getCount()).isEqualTo(1L);
+
+    }
+
+    @Test
+    public void testClearedAddressesAreNotUsed() throws Exception {
+
+        RecordingFactory client = new RecordingFactory();
+
+        EagerHandshakes.bootstrap(Collections.singletonList(ADDRESS));
+        // the client constructor has exited without configuring a factory
+        EagerHandshakes.clear();
+        EagerHandshakes.configured(Mode.CLIENT, client, Collections.emptyMap());
+
+        Assertions.assertThat(client.created.await(200L, TimeUnit.MILLISECONDS)).isFalse();
+
+    }
+
+    /**
+     * Engine factory recording the engine creation and failing it, so that nothing connects.
+     */
+    public static class RecordingFactory {
+
+        final CountDownLatch created = new CountDownLatch(1);
+
+        public SSLEngine createClientSslEngine(String peerHost, int peerPort, String endpointIdentification) {
+            created.countDown();
+            throw new IllegalStateException("not connecting");
+        }
+
+    }
+
+}
@@ -0,0 +1,100 @@
+package dev.psmolinski.kafka.ssl;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Properties;
+
+/**
+ * Time to the first TLS connection of a fresh JVM: factory configuration, connect,
+ * handshake and ApiVersions exchange with the in-process {@link LoopbackBroker}.
+ * Every measurement runs in a new JVM, which first sleeps for the simulated application
+ * startup, without the agent, with the agent, with the agent warm-up and with the client
+ * SSL settings pre-built from a properties file:
+ * <pre>
+ * java -cp ... dev.psmolinski.kafka.ssl.FirstConnectionBenchmark [agent jar] [startup ms] [runs]
+ * </pre>
+ */
+public class FirstConnectionBenchmark {
+
+    public static void main(String...args) throws Exception {
+
+        if (args.length > 0 && "connect".equals(args[0])) {
+            connect(Integer.parseInt(args[1]), Long.parseLong(args[2]));
+            return;
+        }
+
+        String agent = args.length > 0 ? args[0] : "target/kafka-ssl-fix.jar";
+        long startupMs = args.length > 1 ? Long.parseLong(args[1]) : 1000L;
+        int runs = args.length > 2 ? Integer.parseInt(args[2]) : 5;
+
+        File settings = File.createTempFile("client", ".properties");
+        settings.deleteOnExit();
+        // the settings of SslTestSupport.clientPem()
+        Properties properties = new Properties();
+        properties.setProperty("ssl.truststore.type", "PEM");
+        properties.setProperty("ssl.truststore.certificates", SslTestSupport.readFile(SslTestSupport.CERTIFICATES + "/ca.crt"));
+        properties.setProperty("ssl.endpoint.identification.algorithm", "");
+        try (OutputStream out = new FileOutputStream(settings)) {
+            properties.store(out, null);
+        }
+
+        try (LoopbackBroker broker = new LoopbackBroker(SslTestSupport.server(), 0)) {
+            String[][] variants = {
+                    {},
+                    {"-javaagent:" + agent},
+                    {"-javaagent:" + agent + "=warmup"},
+                    {"-javaagent:" + agent + "=prebuild=" + settings.getAbsolutePath()},
+            };
+            for (String[] variant : variants) {
+                long total = 0L;
+                for (int i = 0; i < runs; i++) {
+                    total += run(variant, broker.port(), startupMs);
+                }
+                System.out.printf("%-50s first connection: %d ms%n",
+                        variant.length == 0 ? "without agent" : variant[0], total / runs);
+            }
+        }
+
+    }
+
+    private static long run(String[] jvmArgs, int port, long startupMs) throws Exception {
+        List<String> command = new ArrayList<>();
+        command.add(System.getProperty("java.home") + File.separator + "bin" + File.separator + "java");
+        for (String jvmArg : jvmArgs) {
+            command.add(jvmArg);
+        }
+        command.add("-cp");
+        command.add(System.getProperty("java.class.path"));
+        command.add(FirstConnectionBenchmark.class.getName());
+        command.add("connect");
+        command.add(String.valueOf(port));
+        command.add(String.valueOf(startupMs));
+        Process process = new ProcessBuilder(command)
+                .redirectError(ProcessBuilder.Redirect.INHERIT)
+                .start();
+        BufferedReader reader = new BufferedReader(new InputStreamReader(process.getInputStream(), StandardCharsets.UTF_8));
+        String line = reader.readLine();
+        if (process.waitFor() != 0 || line == null) {
+            throw new IllegalStateException("Connection failed: " + command);
+        }
+        return Long.parseLong(line.trim());
+    }
+
+    /**
+     * Child JVM: print the time of the first connection in milliseconds.
+     */
+    private static void connect(int port, long startupMs) throws Exception {
+        Thread.sleep(startupMs);
+        long start = System.nanoTime();
+        new LoopbackLoadGenerator(SslTestSupport.clientPem(), new InetSocketAddress("localhost", port), 1, 1).run();
+        System.out.println((System.nanoTime() - start) / 1_000_000L);
+    }
+
+}
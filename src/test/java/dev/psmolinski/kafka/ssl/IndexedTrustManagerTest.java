@@ -0,0 +1,103 @@
+package dev.psmolinski.kafka.ssl;
+
+import org.assertj.core.api.Assertions;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+
+import javax.net.ssl.TrustManager;
+import javax.net.ssl.TrustManagerFactory;
+import javax.net.ssl.X509ExtendedTrustManager;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.security.KeyStore;
+import java.security.cert.Certificate;
+import java.security.cert.CertificateException;
+import java.security.cert.CertificateFactory;
+import java.security.cert.X509Certificate;
+import java.util.ArrayList;
+import java.util.List;
+
+public class IndexedTrustManagerTest {
+
+    private static X509Certificate ca;
+    private static List<X509Certificate> bundle;
+
+    @BeforeAll
+    public static void load() throws Exception {
+        ca = CachingTrustManagerTest.certificate(SslTestSupport.CERTIFICATES + "/ca.crt");
+        bundle = new ArrayList<>();
+        try (InputStream in = Files.newInputStream(Paths.get(SslTestSupport.CERTIFICATES, "bundle.crt"))) {
+            for (Certificate certificate : CertificateFactory.getInstance("X.509").generateCertificates(in)) {
+                bundle.add((X509Certificate) certificate);
+            }
+        }
+    }
+
+    @Test
+    public void testChainIssuedByIndexedAnchor() throws Exception {
+
+        IndexedTrustManager trustManager = trustManager();
+        long hits = IndexedTrustManager.hits();
+
+        trustManager.checkServerTrusted(CachingTrustManagerTest.chain(), "RSA");
+        // the peer sends the anchor itself
+        trustManager.checkServerTrusted(new X509Certificate[]{bundle.get(0)}, "ECDHE_ECDSA");
+
+        Assertions.assertThat(IndexedTrustManager.hits() - hits).isEqualTo(2);
+
+    }
+
+    @Test
+    public void testUnknownIssuerIsRejectedByDelegate() throws Exception {
+
+        IndexedTrustManager trustManager = trustManager();
+        long misses = IndexedTrustManager.misses();
+
+        // the last certificate of the bundle is not in the trust store
+        X509Certificate[] chain = {bundle.get(bundle.size() - 1)};
+        Assertions.assertThatThrownBy(() -> trustManager.checkServerTrusted(chain, "ECDHE_ECDSA"))
+                .isInstanceOf(CertificateException.class);
+
+        Assertions.assertThat(IndexedTrustManager.misses() - misses).isEqualTo(1);
+
+    }
+
+    @Test
+    public void testKeyIdentifier() {
+
+        X509Certificate certificate = bundle.get(0);
+
+        byte[] subject = IndexedTrustManager.keyIdentifier(certificate.getExtensionValue("2.5.29.14"), (byte) 0x04);
+        byte[] authority = IndexedTrustManager.keyIdentifier(certificate.getExtensionValue("2.5.29.35"), (byte) 0x80);
+
+        // SHA-1 of the public key, the same for the self-signed certificate
+        Assertions.assertThat(subject).hasSize(20);
+        Assertions.assertThat(authority).isEqualTo(subject);
+
+        Assertions.assertThat(IndexedTrustManager.keyIdentifier(null, (byte) 0x04)).isNull();
+        Assertions.assertThat(IndexedTrustManager.keyIdentifier(new byte[]{0x04, 0x01, 0x30}, (byte) 0x04)).isNull();
+
+    }
+
+    /**
+     * Trust manager of the CA and all but the last certificate of the bundle.
+     */
+    private static IndexedTrustManager trustManager() throws Exception {
+        KeyStore truststore = KeyStore.getInstance(KeyStore.getDefaultType());
+        truststore.load(null, null);
+        truststore.setCertificateEntry("ca", ca);
+        for (int i = 0; i < bundle.size() - 1; i++) {
+            truststore.setCertificateEntry("bundle-" + i, bundle.get(i));
+        }
+        TrustManagerFactory factory = TrustManagerFactory.getInstance(TrustManagerFactory.getDefaultAlgorithm());
+        factory.init(truststore);
+        for (TrustManager trustManager : factory.getTrustManagers()) {
+            if (trustManager instanceof X509ExtendedTrustManager) {
+                return new IndexedTrustManager((X509ExtendedTrustManager) trustManager, factory.getAlgorithm(), null);
+            }
+        }
+        throw new IllegalStateException("No X509ExtendedTrustManager");
+    }
+
+}
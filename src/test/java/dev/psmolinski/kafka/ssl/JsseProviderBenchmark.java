@@ -0,0 +1,151 @@
+package dev.psmolinski.kafka.ssl;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import javax.net.ssl.KeyManagerFactory;
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLEngine;
+import javax.net.ssl.SSLEngineResult;
+import javax.net.ssl.TrustManagerFactory;
+import java.io.FileInputStream;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.security.KeyStore;
+import java.security.Provider;
+import java.security.Security;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * JMH comparison of the JSSE providers installed in the JVM, as candidates for
+ * {@code sslcontext.provider}: in-memory handshake and bulk encryption,
+ * i.e. a 16 KiB record wrapped by the client and unwrapped by the server. The bulk score
+ * in ops/ms multiplied by 16 is the throughput in MB/s.
+ * <pre>
+ * java -cp target/test-classes:target/classes:... dev.psmolinski.kafka.ssl.JsseProviderBenchmark [protocol]
+ * </pre>
+ */
+@State(Scope.Benchmark)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class JsseProviderBenchmark {
+
+    private static final int RECORD_SIZE = 16384;
+
+    @Param({"SunJSSE"})
+    public String provider;
+
+    @Param({"TLSv1.3"})
+    public String protocol;
+
+    private SSLContext client;
+    private SSLContext server;
+
+    private SSLEngine clientEngine;
+    private SSLEngine serverEngine;
+
+    private ByteBuffer plain;
+    private ByteBuffer encrypted;
+    private ByteBuffer decrypted;
+
+    private int port = 10000;
+
+    @Setup(Level.Trial)
+    public void setup() throws Exception {
+        Provider jsse = Security.getProvider(provider);
+
+        KeyManagerFactory kmf = KeyManagerFactory.getInstance(KeyManagerFactory.getDefaultAlgorithm());
+        kmf.init(load(SslTestSupport.CERTIFICATES + "/kafka.jks"), "changeit".toCharArray());
+        TrustManagerFactory tmf = TrustManagerFactory.getInstance(TrustManagerFactory.getDefaultAlgorithm());
+        tmf.init(load(SslTestSupport.CERTIFICATES + "/ca.jks"));
+
+        server = SSLContext.getInstance(protocol, jsse);
+        server.init(kmf.getKeyManagers(), null, null);
+        client = SSLContext.getInstance(protocol, jsse);
+        client.init(null, tmf.getTrustManagers(), null);
+
+        clientEngine = clientEngine(9093);
+        serverEngine = serverEngine();
+        SslTestSupport.handshake(clientEngine, serverEngine);
+
+        plain = ByteBuffer.allocate(RECORD_SIZE);
+        encrypted = ByteBuffer.allocate(clientEngine.getSession().getPacketBufferSize());
+        decrypted = ByteBuffer.allocate(serverEngine.getSession().getApplicationBufferSize());
+    }
+
+    @Benchmark
+    @BenchmarkMode(Mode.AverageTime)
+    @OutputTimeUnit(TimeUnit.MICROSECONDS)
+    public SSLEngine handshake() throws Exception {
+        // a new peer port every time, so that the session is not resumed
+        SSLEngine engine = clientEngine(port++);
+        SslTestSupport.handshake(engine, serverEngine());
+        return engine;
+    }
+
+    @Benchmark
+    @BenchmarkMode(Mode.Throughput)
+    @OutputTimeUnit(TimeUnit.MILLISECONDS)
+    public ByteBuffer bulk() throws Exception {
+        plain.clear();
+        encrypted.clear();
+        decrypted.clear();
+        SSLEngineResult wrapped = clientEngine.wrap(plain, encrypted);
+        encrypted.flip();
+        SSLEngineResult unwrapped = serverEngine.unwrap(encrypted, decrypted);
+        if (wrapped.getStatus() != SSLEngineResult.Status.OK || unwrapped.getStatus() != SSLEngineResult.Status.OK) {
+            throw new IllegalStateException(wrapped + " " + unwrapped);
+        }
+        return decrypted;
+    }
+
+    private SSLEngine clientEngine(int port) {
+        SSLEngine engine = client.createSSLEngine("kafka", port);
+        engine.setUseClientMode(true);
+        return engine;
+    }
+
+    private SSLEngine serverEngine() {
+        SSLEngine engine = server.createSSLEngine();
+        engine.setUseClientMode(false);
+        return engine;
+    }
+
+    private static KeyStore load(String path) throws Exception {
+        KeyStore keystore = KeyStore.getInstance("PKCS12");
+        try (InputStream in = new FileInputStream(path)) {
+            keystore.load(in, "changeit".toCharArray());
+        }
+        return keystore;
+    }
+
+    public static void main(String...args) throws Exception {
+        String protocol = args.length > 0 ? args[0] : "TLSv1.3";
+        List<String> providers = new ArrayList<>();
+        for (Provider provider : Security.getProviders("SSLContext." + protocol)) {
+            providers.add(provider.getName());
+        }
+        System.out.println("### providers of " + protocol + ": " + providers);
+        new Runner(new OptionsBuilder()
+                .include(JsseProviderBenchmark.class.getName())
+                .param("provider", providers.toArray(new String[0]))
+                .param("protocol", protocol)
+                .build()).run();
+    }
+
+}
@@ -0,0 +1,235 @@
+package dev.psmolinski.kafka.ssl;
+
+import org.apache.kafka.common.security.ssl.DefaultSslEngineFactory;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * In-process stand-in of a single broker with an SSL listener. It speaks just enough
+ * of the Kafka protocol for the clients to connect: ApiVersions (v0) and Metadata (v1)
+ * describing a cluster of one broker and no topics.
+ * <p>
+ * Requests with newer ApiVersions are answered with {@code UNSUPPORTED_VERSION} and the
+ * supported range, as the real brokers do, so the clients retry with v0.
+ */
+public class LoopbackBroker implements Closeable {
+
+    static final short API_VERSIONS = 18;
+    static final short METADATA = 3;
+
+    private static final short UNSUPPORTED_VERSION = 35;
+
+    private final DefaultSslEngineFactory factory;
+    private final Selector selector;
+    private final ServerSocketChannel server;
+    private final Thread thread;
+
+    private final AtomicLong handshakes = new AtomicLong();
+    private final AtomicLong requests = new AtomicLong();
+    private final AtomicLong bytesReceived = new AtomicLong();
+    private final AtomicLong recordsReceived = new AtomicLong();
+
+    private volatile boolean running = true;
+
+    public LoopbackBroker(Map<String, Object> configs, int port) throws IOException {
+        this.factory = new DefaultSslEngineFactory();
+        this.factory.configure(configs);
+        this.selector = Selector.open();
+        this.server = ServerSocketChannel.open();
+        this.server.bind(new InetSocketAddress("localhost", port), 1024);
+        this.server.configureBlocking(false);
+        this.server.register(selector, SelectionKey.OP_ACCEPT);
+        this.thread = new Thread(this::run, "loopback-broker");
+        this.thread.setDaemon(true);
+        this.thread.start();
+    }
+
+    /**
+     * Run the broker in a separate JVM. Prints the port and runs until the standard input is closed.
+     */
+    public static void main(String...args) throws Exception {
+        int port = args.length > 0 ? Integer.parseInt(args[0]) : 0;
+        try (LoopbackBroker broker = new LoopbackBroker(SslTestSupport.server(), port)) {
+            System.out.println(broker.port());
+            System.out.flush();
+            while (System.in.read() >= 0) {
+                // wait for the parent
+            }
+        }
+    }
+
+    public int port() {
+        return server.socket().getLocalPort();
+    }
+
+    public String bootstrapServers() {
+        return "localhost:" + port();
+    }
+
+    public long handshakes() {
+        return handshakes.get();
+    }
+
+    public long requests() {
+        return requests.get();
+    }
+
+    /**
+     * @return bytes received on the wire, i.e. including the TLS overhead
+     */
+    public long bytesReceived() {
+        return bytesReceived.get();
+    }
+
+    /**
+     * @return TLS records with application data received
+     */
+    public long recordsReceived() {
+        return recordsReceived.get();
+    }
+
+    @Override
+    public void close() throws IOException {
+        running = false;
+        selector.wakeup();
+        try {
+            thread.join(5000L);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        for (SelectionKey key : selector.keys()) {
+            key.channel().close();
+        }
+        selector.close();
+        factory.close();
+    }
+
+    private void run() {
+        while (running) {
+            try {
+                selector.select(100L);
+            } catch (IOException e) {
+                return;
+            }
+            Iterator<SelectionKey> it = selector.selectedKeys().iterator();
+            while (it.hasNext()) {
+                SelectionKey key = it.next();
+                it.remove();
+                try {
+                    if (key.isAcceptable()) {
+                        accept();
+                    } else {
+                        process(key, (TlsChannel) key.attachment());
+                    }
+                } catch (IOException | RuntimeException e) {
+                    key.cancel();
+                    if (key.attachment() != null) {
+                        ((TlsChannel) key.attachment()).close();
+                    }
+                }
+            }
+        }
+    }
+
+    private void accept() throws IOException {
+        SocketChannel channel;
+        while ((channel = server.accept()) != null) {
+            channel.configureBlocking(false);
+            channel.socket().setTcpNoDelay(true);
+            InetSocketAddress peer = (InetSocketAddress) channel.getRemoteAddress();
+            TlsChannel tls = new TlsChannel(channel, factory.createServerSslEngine(peer.getHostString(), peer.getPort()));
+            tls.engine().beginHandshake();
+            channel.register(selector, SelectionKey.OP_READ, tls);
+        }
+    }
+
+    private void process(SelectionKey key, TlsChannel tls) throws IOException {
+        if (!tls.handshakeDone()) {
+            if (!tls.handshake()) {
+                tls.interestOps(key);
+                return;
+            }
+            handshakes.incrementAndGet();
+        }
+        tls.flush();
+        long bytes = tls.bytesRead();
+        long records = tls.recordsRead();
+        ByteBuffer in = tls.read();
+        bytesReceived.addAndGet(tls.bytesRead() - bytes);
+        recordsReceived.addAndGet(tls.recordsRead() - records);
+        in.flip();
+        try {
+            while (in.remaining() >= 4 && in.remaining() >= 4 + in.getInt(in.position())) {
+                int size = in.getInt();
+                ByteBuffer request = in.slice();
+                request.limit(size);
+                in.position(in.position() + size);
+                ByteBuffer response = respond(request);
+                if (response == null) {
+                    tls.close();
+                    return;
+                }
+                requests.incrementAndGet();
+                tls.write(response);
+            }
+        } finally {
+            in.compact();
+        }
+        tls.interestOps(key);
+    }
+
+    /**
+     * @return size delimited response or null for unsupported requests
+     */
+    private ByteBuffer respond(ByteBuffer request) {
+        short apiKey = request.getShort();
+        short apiVersion = request.getShort();
+        int correlationId = request.getInt();
+        ByteBuffer body = ByteBuffer.allocate(256);
+        if (apiKey == API_VERSIONS) {
+            // response header v0 for all the versions; v0 body
+            body.putShort(apiVersion == 0 ? 0 : UNSUPPORTED_VERSION);
+            body.putInt(2);
+            body.putShort(API_VERSIONS).putShort((short) 0).putShort((short) 0);
+            body.putShort(METADATA).putShort((short) 1).putShort((short) 1);
+        } else if (apiKey == METADATA && apiVersion == 1) {
+            // brokers
+            body.putInt(1);
+            body.putInt(0);
+            putString(body, "localhost");
+            body.putInt(port());
+            body.putShort((short) -1); // rack
+            // controller id
+            body.putInt(0);
+            // topics
+            body.putInt(0);
+        } else {
+            return null;
+        }
+        body.flip();
+        ByteBuffer response = ByteBuffer.allocate(8 + body.remaining());
+        response.putInt(4 + body.remaining());
+        response.putInt(correlationId);
+        response.put(body);
+        response.flip();
+        return response;
+    }
+
+    private static void putString(ByteBuffer buffer, String value) {
+        byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+        buffer.putShort((short) bytes.length);
+        buffer.put(bytes);
+    }
+
+}
@@ -0,0 +1,207 @@
+package dev.psmolinski.kafka.ssl;
+
+import org.apache.kafka.common.security.ssl.DefaultSslEngineFactory;
+
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.Map;
+
+/**
+ * Load generator opening many TLS client connections to the {@link LoopbackBroker}.
+ * Every connection completes the handshake, exchanges ApiVersions and is closed.
+ * The client engines come from a {@code DefaultSslEngineFactory}, so running it with
+ * the agent measures the patched factory:
+ * <pre>
+ * java [-javaagent:target/kafka-ssl-fix.jar=...] -cp ... dev.psmolinski.kafka.ssl.LoopbackLoadGenerator [connections] [concurrency]
+ * </pre>
+ * The CPU time per handshake is the process CPU time and includes the broker side.
+ */
+public class LoopbackLoadGenerator {
+
+    private final DefaultSslEngineFactory factory;
+    private final boolean ownFactory;
+    private final InetSocketAddress address;
+    private final int connections;
+    private final int concurrency;
+
+    private final long[] latencies;
+    private int started;
+    private int completed;
+    private int failed;
+
+    public LoopbackLoadGenerator(Map<String, Object> configs, InetSocketAddress address, int connections, int concurrency) {
+        this(new DefaultSslEngineFactory(), true, address, connections, concurrency);
+        this.factory.configure(configs);
+    }
+
+    /**
+     * Connect with the engines of a configured factory, e.g. to resume its sessions.
+     * The factory is not closed.
+     */
+    public LoopbackLoadGenerator(DefaultSslEngineFactory factory, InetSocketAddress address, int connections, int concurrency) {
+        this(factory, false, address, connections, concurrency);
+    }
+
+    private LoopbackLoadGenerator(DefaultSslEngineFactory factory, boolean ownFactory, InetSocketAddress address, int connections, int concurrency) {
+        this.factory = factory;
+        this.ownFactory = ownFactory;
+        this.address = address;
+        this.connections = connections;
+        this.concurrency = concurrency;
+        this.latencies = new long[connections];
+    }
+
+    public static void main(String...args) throws Exception {
+        int connections = args.length > 0 ? Integer.parseInt(args[0]) : 5000;
+        int concurrency = args.length > 1 ? Integer.parseInt(args[1]) : 500;
+        try (LoopbackBroker broker = new LoopbackBroker(SslTestSupport.server(), 0)) {
+            InetSocketAddress address = new InetSocketAddress("localhost", broker.port());
+            // warm up
+            new LoopbackLoadGenerator(SslTestSupport.clientPem(), address, Math.min(connections, 500), concurrency).run();
+            LoopbackLoadGenerator generator = new LoopbackLoadGenerator(SslTestSupport.clientPem(), address, connections, concurrency);
+            long cpu0 = processCpuTime();
+            long t0 = System.nanoTime();
+            generator.run();
+            long elapsed = System.nanoTime() - t0;
+            long cpu = processCpuTime() - cpu0;
+            generator.report(elapsed, cpu);
+        }
+    }
+
+    public void run() throws IOException {
+        try (Selector selector = Selector.open()) {
+            while (completed + failed < connections) {
+                while (started < connections && started - completed - failed < concurrency) {
+                    connect(selector);
+                }
+                selector.select(1000L);
+                Iterator<SelectionKey> it = selector.selectedKeys().iterator();
+                while (it.hasNext()) {
+                    SelectionKey key = it.next();
+                    it.remove();
+                    Connection connection = (Connection) key.attachment();
+                    try {
+                        if (connection.process(key)) {
+                            latencies[completed++] = System.nanoTime() - connection.startNanos;
+                            key.cancel();
+                            connection.tls.close();
+                        }
+                    } catch (IOException | RuntimeException e) {
+                        failed++;
+                        key.cancel();
+                        connection.tls.close();
+                    }
+                }
+            }
+        }
+        if (ownFactory) {
+            factory.close();
+        }
+    }
+
+    private void connect(Selector selector) throws IOException {
+        started++;
+        long startNanos = System.nanoTime();
+        SocketChannel channel = SocketChannel.open();
+        channel.configureBlocking(false);
+        channel.socket().setTcpNoDelay(true);
+        channel.connect(address);
+        TlsChannel tls = new TlsChannel(channel, factory.createClientSslEngine(address.getHostString(), address.getPort(), ""));
+        channel.register(selector, SelectionKey.OP_CONNECT, new Connection(tls, startNanos));
+    }
+
+    private void report(long elapsedNanos, long cpuNanos) {
+        long[] sorted = Arrays.copyOf(latencies, completed);
+        Arrays.sort(sorted);
+        System.out.printf("connections:       %d (%d failed)%n", completed, failed);
+        System.out.printf("handshakes/sec:    %.0f%n", completed * 1e9 / elapsedNanos);
+        System.out.printf("connect p50:       %.2f ms%n", percentile(sorted, 0.50) / 1e6);
+        System.out.printf("connect p99:       %.2f ms%n", percentile(sorted, 0.99) / 1e6);
+        if (cpuNanos >= 0 && completed > 0) {
+            System.out.printf("cpu per handshake: %.3f ms (client and broker)%n", cpuNanos / 1e6 / completed);
+        }
+        double resumed = SessionResumption.hitRate();
+        if (!Double.isNaN(resumed)) {
+            System.out.printf("resumed:           %.1f %%%n", resumed * 100);
+        }
+    }
+
+    private static long percentile(long[] sorted, double p) {
+        return sorted.length == 0 ? 0L : sorted[Math.min(sorted.length - 1, (int) (sorted.length * p))];
+    }
+
+    private static long processCpuTime() {
+        java.lang.management.OperatingSystemMXBean os = ManagementFactory.getOperatingSystemMXBean();
+        if (os instanceof com.sun.management.OperatingSystemMXBean) {
+            return ((com.sun.management.OperatingSystemMXBean) os).getProcessCpuTime();
+        }
+        return -1L;
+    }
+
+    /**
+     * Client side of a single connection: connect, handshake, ApiVersions v0.
+     */
+    private static class Connection {
+
+        private static final byte[] CLIENT_ID = "loadgen".getBytes(StandardCharsets.UTF_8);
+
+        final TlsChannel tls;
+        final long startNanos;
+
+        boolean requestSent;
+
+        Connection(TlsChannel tls, long startNanos) {
+            this.tls = tls;
+            this.startNanos = startNanos;
+        }
+
+        /**
+         * @return true when the ApiVersions response was received
+         */
+        boolean process(SelectionKey key) throws IOException {
+            if (key.isConnectable()) {
+                if (!tls.channel().finishConnect()) {
+                    return false;
+                }
+                tls.engine().beginHandshake();
+            }
+            if (!tls.handshakeDone() && !tls.handshake()) {
+                tls.interestOps(key);
+                return false;
+            }
+            if (!requestSent) {
+                tls.write(request());
+                requestSent = true;
+            }
+            tls.flush();
+            ByteBuffer in = tls.read();
+            if (in.position() >= 4 && in.position() >= 4 + in.getInt(0)) {
+                return true;
+            }
+            tls.interestOps(key);
+            return false;
+        }
+
+        private static ByteBuffer request() {
+            ByteBuffer request = ByteBuffer.allocate(4 + 10 + CLIENT_ID.length);
+            request.putInt(10 + CLIENT_ID.length);
+            request.putShort(LoopbackBroker.API_VERSIONS);
+            request.putShort((short) 0);
+            request.putInt(1);
+            request.putShort((short) CLIENT_ID.length);
+            request.put(CLIENT_ID);
+            request.flip();
+            return request;
+        }
+
+    }
+
+}
@@ -0,0 +1,117 @@
+package dev.psmolinski.kafka.ssl;
+
+import org.apache.kafka.common.security.ssl.DefaultSslEngineFactory;
+import org.assertj.core.api.Assertions;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.objectweb.asm.ClassReader;
+import org.slf4j.LoggerFactory;
+
+import java.io.ByteArrayOutputStream;
+import java.io.InputStream;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.net.URL;
+import java.net.URLClassLoader;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+
+public class PatchJarTest {
+
+    private static final String ENTRY = PatchDefaultSslEngineFactory.DEFAULT_SSL_ENGINE_FACTORY + ".class";
+
+    @Test
+    public void testOfflinePatchMatchesAgent(@TempDir Path tmp) throws Exception {
+
+        Path clients = location(DefaultSslEngineFactory.class);
+        Path patched = tmp.resolve("kafka-clients-patched.jar");
+        AgentConfig config = AgentConfig.parse("transformer.retain");
+
+        Assertions.assertThat(PatchJar.patch(clients.toString(), patched.toString(), config)).isEqualTo(1);
+
+        byte[] agent = new PatchDefaultSslEngineFactory(null, config).transform(
+                getClass().getClassLoader(),
+                PatchDefaultSslEngineFactory.DEFAULT_SSL_ENGINE_FACTORY,
+                null,
+                null,
+                read(clients, ENTRY));
+
+        Assertions.assertThat(read(patched, ENTRY)).isEqualTo(agent);
+
+    }
+
+    @Test
+    public void testOfflinePatchAcceptsEmptySettings(@TempDir Path tmp) throws Exception {
+
+        Path clients = location(DefaultSslEngineFactory.class);
+        Path patched = tmp.resolve("kafka-clients-patched.jar");
+        PatchJar.patch(clients.toString(), patched.toString(), AgentConfig.parse(null));
+
+        // same settings as PatchDefaultSslEngineFactoryExample.Test1
+        Map<String, Object> settings = new HashMap<>();
+        settings.put("ssl.truststore.type", "PEM");
+        settings.put("ssl.truststore.location", "");
+        settings.put("ssl.truststore.certificates", new String(Files.readAllBytes(Paths.get("src/test/certificates/ca.crt"))));
+
+        Assertions.assertThatThrownBy(() -> configure(clients, settings))
+                .isInstanceOf(InvocationTargetException.class);
+
+        configure(patched, settings);
+
+    }
+
+    /**
+     * Configure the factory loaded from the given kafka-clients jar in an isolated class loader.
+     */
+    private static void configure(Path clients, Map<String, Object> settings) throws Exception {
+        URL[] urls = {
+                clients.toUri().toURL(),
+                location(PatchDefaultSslEngineFactory.class).toUri().toURL(),
+                location(ClassReader.class).toUri().toURL()
+        };
+        try (URLClassLoader loader = new URLClassLoader(urls, null) {
+            @Override
+            protected Class<?> loadClass(String name, boolean resolve) throws ClassNotFoundException {
+                // the logging of the test, instead of an unbound slf4j-api falling back to NOP
+                if (name.startsWith("org.slf4j.")) {
+                    return LoggerFactory.class.getClassLoader().loadClass(name);
+                }
+                return super.loadClass(name, resolve);
+            }
+        }) {
+            Class<?> configDefClass = loader.loadClass("org.apache.kafka.common.config.ConfigDef");
+            Object configDef = configDefClass.getMethod("withClientSslSupport").invoke(configDefClass.getDeclaredConstructor().newInstance());
+            Object configs = configDefClass.getMethod("parse", Map.class).invoke(configDef, settings);
+            Class<?> factoryClass = loader.loadClass(PatchDefaultSslEngineFactory.DEFAULT_SSL_ENGINE_FACTORY.replace('/', '.'));
+            Object factory = factoryClass.getDeclaredConstructor().newInstance();
+            Method configure = factoryClass.getMethod("configure", Map.class);
+            configure.invoke(factory, configs);
+        }
+    }
+
+    private static Path location(Class<?> type) throws Exception {
+        return Paths.get(type.getProtectionDomain().getCodeSource().getLocation().toURI());
+    }
+
+    private static byte[] read(Path jar, String entry) throws Exception {
+        try (ZipFile zip = new ZipFile(jar.toFile())) {
+            ZipEntry zipEntry = zip.getEntry(entry);
+            try (InputStream in = zip.getInputStream(zipEntry)) {
+                ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+                byte[] chunk = new byte[8192];
+                for (;;) {
+                    int r = in.read(chunk);
+                    if (r < 0) break;
+                    buffer.write(chunk, 0, r);
+                }
+                return buffer.toByteArray();
+            }
+        }
+    }
+
+}
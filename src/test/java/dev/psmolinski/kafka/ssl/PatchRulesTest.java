@@ -0,0 +1,82 @@
+package dev.psmolinski.kafka.ssl;
+
+import org.assertj.core.api.Assertions;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+
+public class PatchRulesTest {
+
+    @Test
+    public void testParse() throws Exception {
+
+        List<PatchRules.Rule> rules = PatchRules.parse(String.join("\n",
+                "# class method parameters",
+                "",
+                "  org.example.Target   configure   0 2  ",
+                "org.example.Target configure(Ljava/lang/String;Ljava/lang/String;)V 1"));
+
+        Assertions.assertThat(rules).hasSize(2);
+
+        PatchRules.Rule any = rules.get(0);
+        Assertions.assertThat(any.className).isEqualTo("org/example/Target");
+        Assertions.assertThat(any.methodName).isEqualTo("configure");
+        Assertions.assertThat(any.descriptor).isNull();
+        Assertions.assertThat(any.parameters).containsExactly(0, 2);
+        Assertions.assertThat(any.matches("configure", "(Ljava/util/Map;)V")).isTrue();
+        Assertions.assertThat(any.matches("close", "()V")).isFalse();
+
+        PatchRules.Rule overload = rules.get(1);
+        Assertions.assertThat(overload.methodName).isEqualTo("configure");
+        Assertions.assertThat(overload.descriptor).isEqualTo("(Ljava/lang/String;Ljava/lang/String;)V");
+        Assertions.assertThat(overload.parameters).containsExactly(1);
+        Assertions.assertThat(overload.matches("configure", "(Ljava/lang/String;Ljava/lang/String;)V")).isTrue();
+        Assertions.assertThat(overload.matches("configure", "(Ljava/util/Map;)V")).isFalse();
+
+    }
+
+    @Test
+    public void testParseRejectsInvalidRules() {
+
+        Assertions.assertThatThrownBy(() -> PatchRules.parse("org.example.Target configure"))
+                .isInstanceOf(IllegalArgumentException.class);
+
+        Assertions.assertThatThrownBy(() -> PatchRules.parse("org.example.Target configure first"))
+                .isInstanceOf(IllegalArgumentException.class)
+                .hasCauseInstanceOf(NumberFormatException.class);
+
+    }
+
+    @Test
+    public void testLoadDefaultRules() throws Exception {
+
+        PatchRules rules = PatchRules.load(AgentConfig.parse(null));
+
+        Assertions.assertThat(rules.classNames()).containsExactly(PatchDefaultSslEngineFactory.DEFAULT_SSL_ENGINE_FACTORY);
+        Assertions.assertThat(rules.forClass(PatchDefaultSslEngineFactory.DEFAULT_SSL_ENGINE_FACTORY))
+                .extracting(rule -> rule.methodName)
+                .containsExactly("createKeystore", "createTruststore");
+        Assertions.assertThat(rules.forClass("org/example/Target")).isEmpty();
+
+    }
+
+    @Test
+    public void testLoadFileAndOptionRules(@TempDir Path tmp) throws Exception {
+
+        Path file = tmp.resolve("rules.txt");
+        Files.write(file, "org.example.FromFile configure 0\n".getBytes(StandardCharsets.UTF_8));
+
+        PatchRules rules = PatchRules.load(AgentConfig.parse(
+                "rules.default=false,rules=" + file + ",rule.option=org.example.FromOption configure 1"));
+
+        Assertions.assertThat(rules.classNames())
+                .containsExactlyInAnyOrder("org/example/FromFile", "org/example/FromOption");
+        Assertions.assertThat(rules.forClass(PatchDefaultSslEngineFactory.DEFAULT_SSL_ENGINE_FACTORY)).isEmpty();
+
+    }
+
+}
@@ -0,0 +1,127 @@
+package dev.psmolinski.kafka.ssl;
+
+import org.apache.kafka.common.security.ssl.DefaultSslEngineFactory;
+import org.assertj.core.api.Assertions;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.objectweb.asm.ClassReader;
+import org.slf4j.LoggerFactory;
+
+import java.lang.reflect.Method;
+import java.net.URL;
+import java.net.URLClassLoader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.HashMap;
+import java.util.Map;
+
+public class PreBuildTest {
+
+    @Test
+    public void testOnlySameStoresWait(@TempDir Path tmp) throws Exception {
+
+        Path settings = tmp.resolve("client.properties");
+        Files.write(settings, (
+                "ssl.truststore.type=PKCS12\n" +
+                "ssl.truststore.location=" + SslTestSupport.CERTIFICATES + "/ca.jks \n" +
+                "ssl.truststore.password=changeit\n").getBytes(StandardCharsets.UTF_8));
+
+        Thread thread = PreBuild.start(AgentConfig.parse("prebuild=" + settings));
+        Assertions.assertThat(thread).isNotNull();
+
+        Assertions.assertThat(PreBuild.sameStores(SslTestSupport.clientPkcs12())).isTrue();
+        Assertions.assertThat(PreBuild.sameStores(SslTestSupport.clientPem())).isFalse();
+        Assertions.assertThat(PreBuild.sameStores(SslTestSupport.server())).isFalse();
+
+        thread.join(10_000L);
+
+    }
+
+    @Test
+    public void testClientGetsPreBuiltContext(@TempDir Path tmp) throws Exception {
+
+        Path settings = tmp.resolve("client.properties");
+        Files.write(settings, (
+                "ssl.truststore.type=PKCS12\n" +
+                "ssl.truststore.location=" + SslTestSupport.CERTIFICATES + "/ca.jks\n" +
+                "ssl.truststore.password=changeit\n" +
+                "ssl.endpoint.identification.algorithm=\n").getBytes(StandardCharsets.UTF_8));
+
+        // the patched factory in a class loader of its own, with the registry state of its own
+        Path clients = location(DefaultSslEngineFactory.class);
+        Path patched = tmp.resolve("kafka-clients-patched.jar");
+        PatchJar.patch(clients.toString(), patched.toString(), AgentConfig.parse("sslcontext.shared"));
+
+        try (URLClassLoader loader = isolated(patched)) {
+
+            Class<?> configClass = loader.loadClass(AgentConfig.class.getName());
+            Object config = configClass.getMethod("parse", String.class).invoke(null, "prebuild=" + settings);
+            Method start = loader.loadClass(PreBuild.class.getName()).getDeclaredMethod("start", configClass);
+            start.setAccessible(true);
+            Thread thread = (Thread) start.invoke(null, config);
+            thread.join(10_000L);
+
+            // a producer configured after the pre-build, with the whole client configuration
+            Map<String, Object> properties = new HashMap<>();
+            properties.put("bootstrap.servers", "localhost:9093");
+            properties.put("security.protocol", "SSL");
+            properties.put("ssl.truststore.type", "PKCS12");
+            properties.put("ssl.truststore.location", SslTestSupport.CERTIFICATES + "/ca.jks");
+            properties.put("ssl.truststore.password", "changeit");
+            properties.put("ssl.endpoint.identification.algorithm", "");
+            properties.put("key.serializer", "org.apache.kafka.common.serialization.StringSerializer");
+            properties.put("value.serializer", "org.apache.kafka.common.serialization.StringSerializer");
+            Object producerConfig = loader.loadClass("org.apache.kafka.clients.producer.ProducerConfig")
+                    .getConstructor(Map.class)
+                    .newInstance(properties);
+            Object values = producerConfig.getClass().getMethod("values").invoke(producerConfig);
+
+            Class<?> factoryClass = loader.loadClass(DefaultSslEngineFactory.class.getName());
+            Object factory = factoryClass.getDeclaredConstructor().newInstance();
+            factoryClass.getMethod("configure", Map.class).invoke(factory, values);
+
+            Class<?> registry = loader.loadClass(SharedSslContextRegistry.class.getName());
+            Assertions.assertThat(registry.getMethod("misses").invoke(null)).isEqualTo(1L);
+            Assertions.assertThat(registry.getMethod("hits").invoke(null)).isEqualTo(1L);
+
+            factoryClass.getMethod("close").invoke(factory);
+
+        }
+
+    }
+
+    @Test
+    public void testMissingSettings(@TempDir Path tmp) {
+
+        Assertions.assertThat(PreBuild.start(AgentConfig.parse("prebuild=" + tmp.resolve("missing.properties")))).isNull();
+        Assertions.assertThat(PreBuild.failure()).isNotNull();
+
+    }
+
+    /**
+     * Class loader of the given kafka-clients jar and the agent classes, sharing the test logging.
+     */
+    private static URLClassLoader isolated(Path clients) throws Exception {
+        URL[] urls = {
+                clients.toUri().toURL(),
+                location(PatchDefaultSslEngineFactory.class).toUri().toURL(),
+                location(ClassReader.class).toUri().toURL()
+        };
+        return new URLClassLoader(urls, null) {
+            @Override
+            protected Class<?> loadClass(String name, boolean resolve) throws ClassNotFoundException {
+                if (name.startsWith("org.slf4j.")) {
+                    return LoggerFactory.class.getClassLoader().loadClass(name);
+                }
+                return super.loadClass(name, resolve);
+            }
+        };
+    }
+
+    private static Path location(Class<?> type) throws Exception {
+        return Paths.get(type.getProtectionDomain().getCodeSource().getLocation().toURI());
+    }
+
+}
@@ -0,0 +1,102 @@
+package dev.psmolinski.kafka.ssl;
+
+import org.assertj.core.api.Assertions;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+
+import java.util.Collections;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+public class RebuildCoordinatorTest {
+
+    private static final Map<String, ?> CONFIGS = Collections.singletonMap("ssl.keystore.location", "/tmp/keystore.p12");
+
+    @BeforeAll
+    public static void install() {
+        // one rebuild every 200 ms, no jitter, waiting up to 1 s
+        AgentConfig.install(AgentConfig.parse("rebuild.rate=5,rebuild.max.wait.ms=1000"));
+    }
+
+    @Test
+    public void testDelayedRebuildIsApplied() {
+
+        long start = System.nanoTime();
+
+        Assertions.assertThat(RebuildCoordinator.admit(true, new Object(), CONFIGS, CONFIGS)).isTrue();
+        // the second factory waits for its slot instead of losing the change
+        Assertions.assertThat(RebuildCoordinator.admit(true, new Object(), CONFIGS, CONFIGS)).isTrue();
+
+        Assertions.assertThat(System.nanoTime() - start).isGreaterThanOrEqualTo(TimeUnit.MILLISECONDS.toNanos(200));
+        Assertions.assertThat(RebuildCoordinator.delayed()).isGreaterThanOrEqualTo(1);
+
+    }
+
+    @Test
+    public void testValidationAndReconfigurationShareTheSlot() {
+
+        Object factory = new Object();
+
+        // validateReconfiguration waits for the slot
+        Assertions.assertThat(RebuildCoordinator.admit(true, factory, CONFIGS, CONFIGS)).isTrue();
+
+        // reconfigure finds it due
+        long start = System.nanoTime();
+        Assertions.assertThat(RebuildCoordinator.admit(true, factory, CONFIGS, CONFIGS)).isTrue();
+        Assertions.assertThat(System.nanoTime() - start).isLessThan(TimeUnit.MILLISECONDS.toNanos(100));
+
+        // no change detected anymore
+        Assertions.assertThat(RebuildCoordinator.admit(false, factory, CONFIGS, CONFIGS)).isFalse();
+
+    }
+
+    @Test
+    public void testConfigurationChangeIsNotDelayed() {
+
+        Map<String, ?> nextConfigs = Collections.singletonMap("ssl.keystore.location", "/tmp/other.p12");
+
+        long start = System.nanoTime();
+        Assertions.assertThat(RebuildCoordinator.admit(true, new Object(), nextConfigs, CONFIGS)).isTrue();
+        Assertions.assertThat(RebuildCoordinator.admit(false, new Object(), nextConfigs, CONFIGS)).isFalse();
+        Assertions.assertThat(System.nanoTime() - start).isLessThan(TimeUnit.MILLISECONDS.toNanos(100));
+
+    }
+
+    @Test
+    public void testInterruptedWaitRebuildsNow() {
+
+        // make sure the next slot is in the future
+        RebuildCoordinator.admit(true, new Object(), CONFIGS, CONFIGS);
+
+        Thread.currentThread().interrupt();
+        try {
+            long start = System.nanoTime();
+            Assertions.assertThat(RebuildCoordinator.admit(true, new Object(), CONFIGS, CONFIGS)).isTrue();
+            Assertions.assertThat(System.nanoTime() - start).isLessThan(TimeUnit.MILLISECONDS.toNanos(100));
+            Assertions.assertThat(Thread.currentThread().isInterrupted()).isTrue();
+        } finally {
+            Thread.interrupted();
+        }
+
+    }
+
+    @Test
+    public void testWaitIsBounded() {
+
+        // the interrupted checks leave ten slots, i.e. 2 s, scheduled ahead
+        Thread.currentThread().interrupt();
+        try {
+            for (int i = 0; i < 10; i++) {
+                RebuildCoordinator.admit(true, new Object(), CONFIGS, CONFIGS);
+            }
+        } finally {
+            Thread.interrupted();
+        }
+
+        long start = System.nanoTime();
+        Assertions.assertThat(RebuildCoordinator.admit(true, new Object(), CONFIGS, CONFIGS)).isTrue();
+        Assertions.assertThat(System.nanoTime() - start).isLessThan(TimeUnit.MILLISECONDS.toNanos(1_500));
+
+    }
+
+}
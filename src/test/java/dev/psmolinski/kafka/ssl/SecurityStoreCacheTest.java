@@ -0,0 +1,91 @@
+package dev.psmolinski.kafka.ssl;
+
+import org.apache.kafka.common.config.types.Password;
+import org.assertj.core.api.Assertions;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.FileTime;
+
+public class SecurityStoreCacheTest {
+
+    private static final Password PASSWORD = new Password("changeit");
+
+    @BeforeAll
+    public static void install() {
+        AgentConfig.install(AgentConfig.parse("keystore.cache,pem.cache"));
+    }
+
+    @Test
+    public void testFileStoreIsCached(@TempDir Path tmp) throws Exception {
+
+        Path file = Files.copy(Paths.get(SslTestSupport.CERTIFICATES, "ca.jks"), tmp.resolve("ca.jks"));
+        Object store = new Object();
+
+        long hits = SecurityStoreCache.hits();
+        long misses = SecurityStoreCache.misses();
+
+        Assertions.assertThat(SecurityStoreCache.lookupTruststore("PKCS12", file.toString(), PASSWORD, null)).isNull();
+        Assertions.assertThat(SecurityStoreCache.store(store)).isSameAs(store);
+
+        Assertions.assertThat(SecurityStoreCache.lookupTruststore("PKCS12", file.toString(), PASSWORD, null)).isSameAs(store);
+        // the password is a part of the key
+        Assertions.assertThat(SecurityStoreCache.lookupTruststore("PKCS12", file.toString(), new Password("other"), null)).isNull();
+
+        Assertions.assertThat(SecurityStoreCache.hits() - hits).isEqualTo(1);
+        Assertions.assertThat(SecurityStoreCache.misses() - misses).isEqualTo(2);
+
+    }
+
+    @Test
+    public void testChangedFileIsLoadedAgain(@TempDir Path tmp) throws Exception {
+
+        Path file = Files.copy(Paths.get(SslTestSupport.CERTIFICATES, "ca.jks"), tmp.resolve("ca.jks"));
+
+        Assertions.assertThat(SecurityStoreCache.lookupTruststore("PKCS12", file.toString(), PASSWORD, null)).isNull();
+        SecurityStoreCache.store(new Object());
+
+        // the rotated store
+        Files.copy(Paths.get(SslTestSupport.CERTIFICATES, "kafka.jks"), file, StandardCopyOption.REPLACE_EXISTING);
+        Files.setLastModifiedTime(file, FileTime.fromMillis(Files.getLastModifiedTime(file).toMillis() + 10_000L));
+        Assertions.assertThat(SecurityStoreCache.lookupTruststore("PKCS12", file.toString(), PASSWORD, null)).isNull();
+
+        Object rotated = new Object();
+        SecurityStoreCache.store(rotated);
+        Assertions.assertThat(SecurityStoreCache.lookupTruststore("PKCS12", file.toString(), PASSWORD, null)).isSameAs(rotated);
+
+    }
+
+    @Test
+    public void testInlineStoreIsCached() throws Exception {
+
+        Password certificates = new Password(SslTestSupport.readFile(SslTestSupport.CERTIFICATES + "/ca.crt"));
+        Object store = new Object();
+
+        Assertions.assertThat(SecurityStoreCache.lookupTruststore("PEM", null, null, certificates)).isNull();
+        SecurityStoreCache.store(store);
+
+        Assertions.assertThat(SecurityStoreCache.lookupTruststore("PEM", null, null, certificates)).isSameAs(store);
+        Assertions.assertThat(SecurityStoreCache.lookupTruststore("PEM", null, null,
+                new Password(SslTestSupport.readFile(SslTestSupport.CERTIFICATES + "/kafka.crt")))).isNull();
+
+    }
+
+    @Test
+    public void testUnreadableFileIsNotCached(@TempDir Path tmp) {
+
+        String missing = tmp.resolve("missing.jks").toString();
+
+        Assertions.assertThat(SecurityStoreCache.lookupKeystore("PKCS12", missing, PASSWORD, PASSWORD, null, null)).isNull();
+        Object store = new Object();
+        Assertions.assertThat(SecurityStoreCache.store(store)).isSameAs(store);
+        Assertions.assertThat(SecurityStoreCache.lookupKeystore("PKCS12", missing, PASSWORD, PASSWORD, null, null)).isNull();
+
+    }
+
+}
@@ -0,0 +1,141 @@
+package dev.psmolinski.kafka.ssl;
+
+import org.apache.kafka.clients.consumer.ConsumerConfig;
+import org.apache.kafka.clients.producer.ProducerConfig;
+import org.apache.kafka.common.config.types.Password;
+import org.apache.kafka.common.serialization.StringDeserializer;
+import org.apache.kafka.common.serialization.StringSerializer;
+import org.assertj.core.api.Assertions;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+
+public class SharedSslContextRegistryTest {
+
+    @BeforeAll
+    public static void install() {
+        // a single idle context is retained
+        AgentConfig.install(AgentConfig.parse("sslcontext.shared.capacity=1"));
+    }
+
+    @Test
+    public void testSameConfigurationSharesContext() {
+
+        Map<String, ?> configs = configs("same");
+        Object context = new Object();
+        Object first = new Object();
+        Object second = new Object();
+
+        Assertions.assertThat(SharedSslContextRegistry.acquire(first, configs)).isNull();
+        Assertions.assertThat(SharedSslContextRegistry.register(context, first, configs)).isSameAs(context);
+
+        Assertions.assertThat(SharedSslContextRegistry.acquire(second, configs)).isSameAs(context);
+
+        // the idle context is retained for reuse
+        SharedSslContextRegistry.release(first);
+        SharedSslContextRegistry.release(second);
+        Assertions.assertThat(SharedSslContextRegistry.acquire(new Object(), configs)).isSameAs(context);
+
+    }
+
+    @Test
+    public void testConcurrentBuildReturnsRegisteredContext() {
+
+        Map<String, ?> configs = configs("concurrent");
+        Object first = new Object();
+        Object second = new Object();
+
+        Assertions.assertThat(SharedSslContextRegistry.acquire(first, configs)).isNull();
+        Assertions.assertThat(SharedSslContextRegistry.acquire(second, configs)).isNull();
+
+        Object context = new Object();
+        Assertions.assertThat(SharedSslContextRegistry.register(context, second, configs)).isSameAs(context);
+        Assertions.assertThat(SharedSslContextRegistry.register(new Object(), first, configs)).isSameAs(context);
+
+    }
+
+    @Test
+    public void testFailedBuildDoesNotReleaseOtherFactory() {
+
+        Map<String, ?> configs = configs("failed");
+        Object failing = new Object();
+        Object building = new Object();
+        Object context = new Object();
+
+        Assertions.assertThat(SharedSslContextRegistry.acquire(failing, configs)).isNull();
+        Assertions.assertThat(SharedSslContextRegistry.acquire(building, configs)).isNull();
+        SharedSslContextRegistry.register(context, building, configs);
+
+        // createSSLContext of the first factory threw; it is closed without registering
+        SharedSslContextRegistry.release(failing);
+
+        // another idle context would evict the shared one if it lost its reference
+        Map<String, ?> other = configs("failed-other");
+        Object idle = new Object();
+        SharedSslContextRegistry.acquire(idle, other);
+        SharedSslContextRegistry.register(new Object(), idle, other);
+        SharedSslContextRegistry.release(idle);
+
+        Assertions.assertThat(SharedSslContextRegistry.acquire(new Object(), configs)).isSameAs(context);
+
+    }
+
+    @Test
+    public void testEmptyValuesAreAbsent() {
+
+        Map<String, Object> empty = new HashMap<>(configs("empty"));
+        empty.put("ssl.keystore.type", " ");
+        empty.put("ssl.keystore.password", new Password(""));
+        Assertions.assertThat(SharedSslContextRegistry.key(empty)).isEqualTo(SharedSslContextRegistry.key(configs("empty")));
+
+        // as in the parameter nullification, a blank password is kept
+        Map<String, Object> blank = new HashMap<>(configs("empty"));
+        blank.put("ssl.keystore.password", new Password(" "));
+        Assertions.assertThat(SharedSslContextRegistry.key(blank)).isNotEqualTo(SharedSslContextRegistry.key(configs("empty")));
+
+    }
+
+    @Test
+    public void testClientConfigurationsShareKey() {
+
+        // the client configurations as passed to the factory, with the generated client ids
+        Map<String, ?> producer = new ProducerConfig(client(StringSerializer.class, "key.serializer", "value.serializer")).values();
+        Map<String, ?> other = new ProducerConfig(client(StringSerializer.class, "key.serializer", "value.serializer")).values();
+        Map<String, ?> consumer = new ConsumerConfig(client(StringDeserializer.class, "key.deserializer", "value.deserializer")).values();
+        Assertions.assertThat(producer.get("client.id")).isNotEqualTo(other.get("client.id"));
+
+        String key = SharedSslContextRegistry.key(producer);
+        Assertions.assertThat(SharedSslContextRegistry.key(other)).isEqualTo(key);
+        Assertions.assertThat(SharedSslContextRegistry.key(consumer)).isEqualTo(key);
+
+        // the key of the SSL settings alone, as used by the pre-build
+        Assertions.assertThat(SharedSslContextRegistry.key(SslTestSupport.clientPkcs12())).isEqualTo(key);
+
+        Map<String, Object> server = new HashMap<>(producer);
+        server.putAll(SslTestSupport.server());
+        Assertions.assertThat(SharedSslContextRegistry.key(server)).isNotEqualTo(key);
+
+    }
+
+    private static Map<String, Object> client(Class<?> serde, String... serdeKeys) {
+        Map<String, Object> settings = new HashMap<>();
+        settings.put("bootstrap.servers", "localhost:9093");
+        settings.put("security.protocol", "SSL");
+        settings.put("ssl.truststore.type", "PKCS12");
+        settings.put("ssl.truststore.location", SslTestSupport.CERTIFICATES + "/ca.jks");
+        settings.put("ssl.truststore.password", "changeit");
+        settings.put("ssl.endpoint.identification.algorithm", "");
+        for (String serdeKey : serdeKeys) {
+            settings.put(serdeKey, serde);
+        }
+        return settings;
+    }
+
+    private static Map<String, ?> configs(String name) {
+        return Collections.singletonMap("ssl.endpoint.identification.algorithm", name);
+    }
+
+}
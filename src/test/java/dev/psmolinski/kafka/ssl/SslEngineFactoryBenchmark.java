@@ -0,0 +1,107 @@
+package dev.psmolinski.kafka.ssl;
+
+import org.apache.kafka.common.security.ssl.DefaultSslEngineFactory;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.options.ChainedOptionsBuilder;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import javax.net.ssl.SSLEngine;
+import javax.net.ssl.SSLSession;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * JMH benchmarks of the SSL factory: configuration with PEM and PKCS12 trust store,
+ * engine creation and in-memory handshake. Each benchmark runs without and with the agent.
+ * <p>
+ * Run after {@code mvn package}:
+ * <pre>
+ * java -cp target/test-classes:target/classes:... dev.psmolinski.kafka.ssl.SslEngineFactoryBenchmark [agent jar] [agent options]
+ * </pre>
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class SslEngineFactoryBenchmark {
+
+    private Map<String, Object> pem;
+    private Map<String, Object> pkcs12;
+
+    private DefaultSslEngineFactory client;
+    private DefaultSslEngineFactory server;
+
+    @Setup
+    public void setup() throws Exception {
+        pem = SslTestSupport.clientPem();
+        pkcs12 = SslTestSupport.clientPkcs12();
+        client = new DefaultSslEngineFactory();
+        client.configure(pkcs12);
+        server = new DefaultSslEngineFactory();
+        server.configure(SslTestSupport.server());
+    }
+
+    @TearDown
+    public void tearDown() throws Exception {
+        client.close();
+        server.close();
+    }
+
+    @Benchmark
+    public DefaultSslEngineFactory configurePem() throws Exception {
+        return configure(pem);
+    }
+
+    @Benchmark
+    public DefaultSslEngineFactory configurePkcs12() throws Exception {
+        return configure(pkcs12);
+    }
+
+    @Benchmark
+    public SSLEngine createClientEngine() {
+        return client.createClientSslEngine("kafka", 9093, "");
+    }
+
+    @Benchmark
+    public SSLSession handshake() throws Exception {
+        SSLEngine clientEngine = client.createClientSslEngine("kafka", 9093, "");
+        SSLEngine serverEngine = server.createServerSslEngine("client", 40000);
+        SslTestSupport.handshake(clientEngine, serverEngine);
+        return clientEngine.getSession();
+    }
+
+    private static DefaultSslEngineFactory configure(Map<String, Object> configs) throws Exception {
+        DefaultSslEngineFactory factory = new DefaultSslEngineFactory();
+        factory.configure(configs);
+        factory.close();
+        return factory;
+    }
+
+    public static void main(String...args) throws Exception {
+        String agent = args.length > 0 ? args[0] : "target/kafka-ssl-fix.jar";
+        String options = args.length > 1 ? "=" + args[1] : "";
+        for (boolean patched : new boolean[]{false, true}) {
+            ChainedOptionsBuilder builder = new OptionsBuilder()
+                    .include(SslEngineFactoryBenchmark.class.getName());
+            if (patched) {
+                builder.jvmArgsAppend("-javaagent:" + agent + options);
+            }
+            System.out.println(patched ? "### with agent " + agent + options : "### without agent");
+            new Runner(builder.build()).run();
+        }
+    }
+
+}
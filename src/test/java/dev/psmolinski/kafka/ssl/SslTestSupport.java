@@ -0,0 +1,142 @@
+package dev.psmolinski.kafka.ssl;
+
+import org.apache.kafka.common.config.ConfigDef;
+
+import javax.net.ssl.SSLEngine;
+import javax.net.ssl.SSLEngineResult;
+import javax.net.ssl.SSLException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * SSL settings based on the test certificates and an in-memory TLS handshake
+ * for the benchmarks and load tests.
+ */
+public class SslTestSupport {
+
+    public static final String CERTIFICATES = "src/test/certificates";
+
+    private SslTestSupport() {
+    }
+
+    /**
+     * Client settings with the CA in a PKCS12 trust store.
+     */
+    public static Map<String, Object> clientPkcs12() {
+        Map<String, Object> settings = new HashMap<>();
+        settings.put("ssl.truststore.type", "PKCS12");
+        settings.put("ssl.truststore.location", CERTIFICATES + "/ca.jks");
+        settings.put("ssl.truststore.password", "changeit");
+        settings.put("ssl.endpoint.identification.algorithm", "");
+        return parse(settings);
+    }
+
+    /**
+     * Client settings with the CA given inline in PEM format.
+     */
+    public static Map<String, Object> clientPem() throws IOException {
+        Map<String, Object> settings = new HashMap<>();
+        settings.put("ssl.truststore.type", "PEM");
+        settings.put("ssl.truststore.certificates", readFile(CERTIFICATES + "/ca.crt"));
+        settings.put("ssl.endpoint.identification.algorithm", "");
+        return parse(settings);
+    }
+
+    /**
+     * Broker side settings with the kafka key store.
+     */
+    public static Map<String, Object> server() {
+        Map<String, Object> settings = new HashMap<>();
+        settings.put("ssl.keystore.type", "PKCS12");
+        settings.put("ssl.keystore.location", CERTIFICATES + "/kafka.jks");
+        settings.put("ssl.keystore.password", "changeit");
+        settings.put("ssl.key.password", "changeit");
+        return parse(settings);
+    }
+
+    /**
+     * Settings completed with the defaults, as the clients pass them to the factory.
+     */
+    public static Map<String, Object> parse(Map<String, Object> settings) {
+        return new HashMap<>(new ConfigDef().withClientSslSupport().parse(settings));
+    }
+
+    /**
+     * Run the handshake between two engines exchanging the records in memory.
+     */
+    public static void handshake(SSLEngine client, SSLEngine server) throws SSLException {
+        int packetSize = Math.max(client.getSession().getPacketBufferSize(), server.getSession().getPacketBufferSize());
+        int applicationSize = Math.max(client.getSession().getApplicationBufferSize(), server.getSession().getApplicationBufferSize());
+        ByteBuffer clientToServer = ByteBuffer.allocate(packetSize);
+        ByteBuffer serverToClient = ByteBuffer.allocate(packetSize);
+        ByteBuffer clientApplication = ByteBuffer.allocate(applicationSize);
+        ByteBuffer serverApplication = ByteBuffer.allocate(applicationSize);
+        client.beginHandshake();
+        server.beginHandshake();
+        for (int i = 0; i < 1000; i++) {
+            boolean clientProgress = step(client, serverToClient, clientToServer, clientApplication);
+            boolean serverProgress = step(server, clientToServer, serverToClient, serverApplication);
+            if (!clientProgress && !serverProgress) {
+                if (finished(client) && finished(server)) {
+                    return;
+                }
+                throw new SSLException("Handshake stalled: client " + client.getHandshakeStatus()
+                        + ", server " + server.getHandshakeStatus());
+            }
+        }
+        throw new SSLException("Handshake did not finish");
+    }
+
+    private static boolean step(SSLEngine engine, ByteBuffer in, ByteBuffer out, ByteBuffer application) throws SSLException {
+        switch (engine.getHandshakeStatus()) {
+            case NEED_WRAP: {
+                SSLEngineResult result = engine.wrap(ByteBuffer.allocate(0), out);
+                return result.bytesProduced() > 0 || result.getHandshakeStatus() != SSLEngineResult.HandshakeStatus.NEED_WRAP;
+            }
+            case NEED_TASK: {
+                for (Runnable task; (task = engine.getDelegatedTask()) != null; ) {
+                    task.run();
+                }
+                return true;
+            }
+            case NOT_HANDSHAKING:
+            case FINISHED:
+                if (in.position() == 0) {
+                    return false;
+                }
+                // post-handshake messages, e.g. TLSv1.3 session tickets
+                return unwrap(engine, in, application);
+            default:
+                // NEED_UNWRAP and NEED_UNWRAP_AGAIN
+                return unwrap(engine, in, application);
+        }
+    }
+
+    private static boolean unwrap(SSLEngine engine, ByteBuffer in, ByteBuffer application) throws SSLException {
+        in.flip();
+        try {
+            SSLEngineResult result = engine.unwrap(in, application);
+            application.clear();
+            return result.bytesConsumed() > 0 || result.getStatus() == SSLEngineResult.Status.OK
+                    && result.getHandshakeStatus() != SSLEngineResult.HandshakeStatus.NEED_UNWRAP;
+        } finally {
+            in.compact();
+        }
+    }
+
+    private static boolean finished(SSLEngine engine) {
+        SSLEngineResult.HandshakeStatus status = engine.getHandshakeStatus();
+        return status == SSLEngineResult.HandshakeStatus.NOT_HANDSHAKING
+                || status == SSLEngineResult.HandshakeStatus.FINISHED;
+    }
+
+    public static String readFile(String file) throws IOException {
+        return new String(Files.readAllBytes(Paths.get(file)), StandardCharsets.UTF_8);
+    }
+
+}
@@ -0,0 +1,81 @@
+package dev.psmolinski.kafka.ssl;
+
+import org.assertj.core.api.Assertions;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.FileTime;
+
+public class StoreChangeTrackerTest {
+
+    private static final long TIMEOUT_MS = 10_000L;
+
+    @Test
+    public void testUnchangedFile(@TempDir Path tmp) throws Exception {
+
+        Path file = write(tmp.resolve("keystore.p12"), "v1");
+        long loadedMs = Files.getLastModifiedTime(file).toMillis();
+
+        Assertions.assertThat(StoreChangeTracker.modified(file.toString(), loadedMs)).isFalse();
+        Assertions.assertThat(StoreChangeTracker.trackedFiles()).isGreaterThanOrEqualTo(1);
+
+    }
+
+    @Test
+    public void testModifiedFile(@TempDir Path tmp) throws Exception {
+
+        Path file = write(tmp.resolve("keystore.p12"), "v1");
+        long loadedMs = Files.getLastModifiedTime(file).toMillis();
+        Assertions.assertThat(StoreChangeTracker.modified(file.toString(), loadedMs)).isFalse();
+
+        write(file, "v2");
+        Files.setLastModifiedTime(file, FileTime.fromMillis(loadedMs + 10_000L));
+
+        Assertions.assertThat(awaitModified(file, loadedMs)).isTrue();
+
+    }
+
+    @Test
+    public void testReplacedByRename(@TempDir Path tmp) throws Exception {
+
+        Path file = write(tmp.resolve("truststore.p12"), "v1");
+        long loadedMs = Files.getLastModifiedTime(file).toMillis();
+        Assertions.assertThat(StoreChangeTracker.modified(file.toString(), loadedMs)).isFalse();
+
+        // the way the Kubernetes secret mounts are updated
+        Path next = write(tmp.resolve("..truststore.p12.tmp"), "v2");
+        Files.setLastModifiedTime(next, FileTime.fromMillis(loadedMs + 10_000L));
+        Files.move(next, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+
+        Assertions.assertThat(awaitModified(file, loadedMs)).isTrue();
+
+    }
+
+    @Test
+    public void testNoLocation() {
+
+        Assertions.assertThat(StoreChangeTracker.modified(null, null)).isNull();
+
+    }
+
+    private static Path write(Path file, String content) throws Exception {
+        return Files.write(file, content.getBytes(StandardCharsets.UTF_8));
+    }
+
+    /**
+     * The watcher thread picks up the change asynchronously.
+     */
+    private static boolean awaitModified(Path file, long loadedMs) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + TIMEOUT_MS;
+        while (!Boolean.TRUE.equals(StoreChangeTracker.modified(file.toString(), loadedMs))
+                && System.currentTimeMillis() < deadline) {
+            Thread.sleep(50L);
+        }
+        return Boolean.TRUE.equals(StoreChangeTracker.modified(file.toString(), loadedMs));
+    }
+
+}
@@ -0,0 +1,238 @@
+package dev.psmolinski.kafka.ssl;
+
+import javax.net.ssl.SSLEngine;
+import javax.net.ssl.SSLEngineResult;
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+
+/**
+ * Minimal non-blocking TLS connection used by the loopback broker and the load generator.
+ * <p>
+ * {@code netIn} and {@code appIn} are kept in write mode, {@code netOut} in read mode.
+ */
+public class TlsChannel {
+
+    private static final ByteBuffer EMPTY = ByteBuffer.allocate(0);
+
+    private final SocketChannel channel;
+    private final SSLEngine engine;
+
+    private ByteBuffer netIn;
+    private ByteBuffer netOut;
+    private ByteBuffer appIn;
+
+    private boolean handshakeDone;
+
+    private long bytesRead;
+    private long recordsRead;
+
+    public TlsChannel(SocketChannel channel, SSLEngine engine) {
+        this.channel = channel;
+        this.engine = engine;
+        int packetSize = engine.getSession().getPacketBufferSize();
+        this.netIn = ByteBuffer.allocate(packetSize);
+        this.netOut = ByteBuffer.allocate(packetSize);
+        this.netOut.flip();
+        this.appIn = ByteBuffer.allocate(engine.getSession().getApplicationBufferSize());
+    }
+
+    public SocketChannel channel() {
+        return channel;
+    }
+
+    public SSLEngine engine() {
+        return engine;
+    }
+
+    public boolean handshakeDone() {
+        return handshakeDone;
+    }
+
+    /**
+     * Make progress with the handshake as far as possible without blocking.
+     * @return true when the handshake is complete
+     */
+    public boolean handshake() throws IOException {
+        if (handshakeDone) {
+            return true;
+        }
+        if (!flush()) {
+            return false;
+        }
+        for (;;) {
+            switch (engine.getHandshakeStatus()) {
+                case NEED_WRAP: {
+                    netOut.compact();
+                    SSLEngineResult result = engine.wrap(EMPTY, netOut);
+                    netOut.flip();
+                    if (result.getStatus() == SSLEngineResult.Status.BUFFER_OVERFLOW) {
+                        netOut = grow(netOut, netOut.capacity() + engine.getSession().getPacketBufferSize(), true);
+                    } else if (result.getStatus() == SSLEngineResult.Status.CLOSED) {
+                        throw new EOFException("Engine closed during handshake");
+                    }
+                    if (!flush()) {
+                        return false;
+                    }
+                    break;
+                }
+                case NEED_TASK: {
+                    for (Runnable task; (task = engine.getDelegatedTask()) != null; ) {
+                        task.run();
+                    }
+                    break;
+                }
+                case NOT_HANDSHAKING:
+                case FINISHED: {
+                    if (!flush()) {
+                        return false;
+                    }
+                    handshakeDone = true;
+                    return true;
+                }
+                default: {
+                    // NEED_UNWRAP and NEED_UNWRAP_AGAIN
+                    if (!unwrapOnce()) {
+                        if (fill() == 0 || !unwrapOnce()) {
+                            return false;
+                        }
+                    }
+                    break;
+                }
+            }
+        }
+    }
+
+    /**
+     * Encrypt and send the application data. The records not accepted by the socket
+     * stay buffered and are sent by {@link #flush()}.
+     * @return true if everything was written to the socket
+     */
+    public boolean write(ByteBuffer data) throws IOException {
+        while (data.hasRemaining()) {
+            netOut.compact();
+            SSLEngineResult result = engine.wrap(data, netOut);
+            netOut.flip();
+            if (result.getStatus() == SSLEngineResult.Status.BUFFER_OVERFLOW) {
+                netOut = grow(netOut, netOut.capacity() + engine.getSession().getPacketBufferSize(), true);
+            } else if (result.getStatus() == SSLEngineResult.Status.CLOSED) {
+                throw new EOFException("Engine closed");
+            }
+        }
+        return flush();
+    }
+
+    /**
+     * Read and decrypt the available data.
+     * @return buffer with the decrypted data in write mode; the caller consumes it
+     *         with flip/compact
+     */
+    public ByteBuffer read() throws IOException {
+        fill();
+        while (netIn.position() > 0 && unwrapOnce()) {
+            // keep unwrapping complete records
+        }
+        return appIn;
+    }
+
+    /**
+     * Send the pending records.
+     * @return true if there is nothing more to send
+     */
+    public boolean flush() throws IOException {
+        while (netOut.hasRemaining()) {
+            if (channel.write(netOut) == 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * @return bytes read from the socket, including the handshake
+     */
+    public long bytesRead() {
+        return bytesRead;
+    }
+
+    /**
+     * @return application data records decrypted
+     */
+    public long recordsRead() {
+        return recordsRead;
+    }
+
+    public boolean pendingWrites() {
+        return netOut.hasRemaining();
+    }
+
+    public void interestOps(SelectionKey key) {
+        key.interestOps(pendingWrites() ? SelectionKey.OP_READ | SelectionKey.OP_WRITE : SelectionKey.OP_READ);
+    }
+
+    public void close() {
+        try {
+            channel.close();
+        } catch (IOException e) {
+            // ignore
+        }
+    }
+
+    private int fill() throws IOException {
+        int read = channel.read(netIn);
+        if (read < 0) {
+            throw new EOFException("Connection closed by peer");
+        }
+        bytesRead += read;
+        return read;
+    }
+
+    /**
+     * @return true if a record was consumed
+     */
+    private boolean unwrapOnce() throws IOException {
+        netIn.flip();
+        SSLEngineResult result;
+        try {
+            result = engine.unwrap(netIn, appIn);
+        } finally {
+            netIn.compact();
+        }
+        switch (result.getStatus()) {
+            case BUFFER_OVERFLOW:
+                appIn = grow(appIn, appIn.capacity() * 2, false);
+                return true;
+            case BUFFER_UNDERFLOW:
+                if (netIn.position() == netIn.capacity()) {
+                    netIn = grow(netIn, netIn.capacity() * 2, false);
+                }
+                return false;
+            case CLOSED:
+                throw new EOFException("Engine closed");
+            default:
+                if (handshakeDone && result.bytesProduced() > 0) {
+                    recordsRead++;
+                }
+                return result.bytesConsumed() > 0
+                        || result.getHandshakeStatus() != SSLEngineResult.HandshakeStatus.NEED_UNWRAP;
+        }
+    }
+
+    /**
+     * @param readMode whether the buffer is in read mode
+     */
+    private static ByteBuffer grow(ByteBuffer buffer, int capacity, boolean readMode) {
+        ByteBuffer bigger = ByteBuffer.allocate(capacity);
+        if (readMode) {
+            bigger.put(buffer);
+            bigger.flip();
+        } else {
+            buffer.flip();
+            bigger.put(buffer);
+        }
+        return bigger;
+    }
+
+}
@@ -0,0 +1,87 @@
+package dev.psmolinski.kafka.ssl;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import javax.net.ssl.TrustManagerFactory;
+import javax.net.ssl.X509ExtendedTrustManager;
+import java.io.FileInputStream;
+import java.io.InputStream;
+import java.security.KeyStore;
+import java.security.cert.Certificate;
+import java.security.cert.X509Certificate;
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * JMH benchmark of the broker certificate chain validation by the PKIX trust manager
+ * of the trust store, directly and through the {@link CachingTrustManager}.
+ * <p>
+ * The effect on the whole handshake is measured by {@link SslEngineFactoryBenchmark}
+ * with the {@code trust.cache} agent option.
+ * <pre>
+ * java -cp target/test-classes:target/classes:... dev.psmolinski.kafka.ssl.TrustManagerBenchmark
+ * </pre>
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class TrustManagerBenchmark {
+
+    private X509Certificate[] chain;
+
+    private X509ExtendedTrustManager plain;
+    private X509ExtendedTrustManager cached;
+
+    @Setup
+    public void setup() throws Exception {
+        KeyStore keystore = load(SslTestSupport.CERTIFICATES + "/kafka.jks");
+        Certificate[] certificates = keystore.getCertificateChain("kafka");
+        chain = Arrays.copyOf(certificates, certificates.length, X509Certificate[].class);
+
+        TrustManagerFactory factory = TrustManagerFactory.getInstance(TrustManagerFactory.getDefaultAlgorithm());
+        factory.init(load(SslTestSupport.CERTIFICATES + "/ca.jks"));
+        plain = (X509ExtendedTrustManager) factory.getTrustManagers()[0];
+        cached = new CachingTrustManager(plain, 256, 3_600_000L);
+    }
+
+    @Benchmark
+    public X509Certificate[] plain() throws Exception {
+        plain.checkServerTrusted(chain, "RSA");
+        return chain;
+    }
+
+    @Benchmark
+    public X509Certificate[] cached() throws Exception {
+        cached.checkServerTrusted(chain, "RSA");
+        return chain;
+    }
+
+    private static KeyStore load(String path) throws Exception {
+        KeyStore keystore = KeyStore.getInstance("PKCS12");
+        try (InputStream in = new FileInputStream(path)) {
+            keystore.load(in, "changeit".toCharArray());
+        }
+        return keystore;
+    }
+
+    public static void main(String...args) throws Exception {
+        new Runner(new OptionsBuilder()
+                .include(TrustManagerBenchmark.class.getName())
+                .build()).run();
+    }
+
+}
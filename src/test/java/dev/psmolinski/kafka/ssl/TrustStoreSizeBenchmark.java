@@ -0,0 +1,113 @@
+package dev.psmolinski.kafka.ssl;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import javax.net.ssl.TrustManagerFactory;
+import javax.net.ssl.X509ExtendedTrustManager;
+import java.io.FileInputStream;
+import java.io.InputStream;
+import java.security.KeyStore;
+import java.security.cert.Certificate;
+import java.security.cert.CertificateFactory;
+import java.security.cert.X509Certificate;
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * JMH benchmark of the broker certificate chain validation as the trust store grows.
+ * The trust store holds the test CA after the given number of unrelated CAs from
+ * {@code bundle.crt}. The chain is validated by the trust manager of the store directly
+ * and through the {@link IndexedTrustManager}; the trust manager creation, which is
+ * a part of every context build, is measured as well.
+ * <pre>
+ * java -cp target/test-classes:target/classes:... dev.psmolinski.kafka.ssl.TrustStoreSizeBenchmark
+ * </pre>
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class TrustStoreSizeBenchmark {
+
+    @Param({"0", "100", "500"})
+    public int anchors;
+
+    private X509Certificate[] chain;
+    private KeyStore truststore;
+
+    private X509ExtendedTrustManager plain;
+    private X509ExtendedTrustManager indexed;
+
+    @Setup
+    public void setup() throws Exception {
+        KeyStore keystore = KeyStore.getInstance("PKCS12");
+        try (InputStream in = new FileInputStream(SslTestSupport.CERTIFICATES + "/kafka.jks")) {
+            keystore.load(in, "changeit".toCharArray());
+        }
+        Certificate[] certificates = keystore.getCertificateChain("kafka");
+        chain = Arrays.copyOf(certificates, certificates.length, X509Certificate[].class);
+
+        CertificateFactory certificateFactory = CertificateFactory.getInstance("X.509");
+        truststore = KeyStore.getInstance("PKCS12");
+        truststore.load(null, null);
+        try (InputStream in = new FileInputStream(SslTestSupport.CERTIFICATES + "/bundle.crt")) {
+            int i = 0;
+            for (Certificate certificate : certificateFactory.generateCertificates(in)) {
+                if (i == anchors) {
+                    break;
+                }
+                truststore.setCertificateEntry("bundle-" + i++, certificate);
+            }
+        }
+        try (InputStream in = new FileInputStream(SslTestSupport.CERTIFICATES + "/ca.crt")) {
+            truststore.setCertificateEntry("ca", certificateFactory.generateCertificate(in));
+        }
+
+        plain = trustManager();
+        indexed = new IndexedTrustManager(trustManager(), TrustManagerFactory.getDefaultAlgorithm(), null);
+    }
+
+    @Benchmark
+    public X509Certificate[] plain() throws Exception {
+        plain.checkServerTrusted(chain, "RSA");
+        return chain;
+    }
+
+    @Benchmark
+    public X509Certificate[] indexed() throws Exception {
+        indexed.checkServerTrusted(chain, "RSA");
+        return chain;
+    }
+
+    @Benchmark
+    public X509ExtendedTrustManager createTrustManager() throws Exception {
+        return trustManager();
+    }
+
+    private X509ExtendedTrustManager trustManager() throws Exception {
+        TrustManagerFactory factory = TrustManagerFactory.getInstance(TrustManagerFactory.getDefaultAlgorithm());
+        factory.init(truststore);
+        return (X509ExtendedTrustManager) factory.getTrustManagers()[0];
+    }
+
+    public static void main(String...args) throws Exception {
+        new Runner(new OptionsBuilder()
+                .include(TrustStoreSizeBenchmark.class.getName())
+                .build()).run();
+    }
+
+}
@@ -0,0 +1,132 @@
+package dev.psmolinski.kafka.ssl;
+
+import org.apache.kafka.clients.admin.AdminClientConfig;
+import org.apache.kafka.common.metrics.Metrics;
+import org.apache.kafka.common.network.ByteBufferSend;
+import org.apache.kafka.common.network.ChannelBuilder;
+import org.apache.kafka.common.network.ChannelBuilders;
+import org.apache.kafka.common.network.NetworkReceive;
+import org.apache.kafka.common.network.NetworkSend;
+import org.apache.kafka.common.network.Selectable;
+import org.apache.kafka.common.network.Selector;
+import org.apache.kafka.common.security.JaasContext;
+import org.apache.kafka.common.security.auth.SecurityProtocol;
+import org.apache.kafka.common.utils.LogContext;
+import org.apache.kafka.common.utils.Time;
+
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Small requests sent through the client {@code Selector} and {@code SslTransportLayer}
+ * to the {@link LoopbackBroker}. Every connection sends ApiVersions requests one after
+ * another, the way the heartbeats and small produce requests go out. Reports the requests
+ * per second and the TLS records and bytes the broker received per request:
+ * <pre>
+ * java [-javaagent:target/kafka-ssl-fix.jar=write.coalesce] -cp ... dev.psmolinski.kafka.ssl.WriteCoalescingBenchmark [connections] [seconds]
+ * </pre>
+ */
+public class WriteCoalescingBenchmark {
+
+    public static void main(String...args) throws Exception {
+
+        int connections = args.length > 0 ? Integer.parseInt(args[0]) : 10;
+        int seconds = args.length > 1 ? Integer.parseInt(args[1]) : 30;
+
+        try (LoopbackBroker broker = new LoopbackBroker(SslTestSupport.server(), 0)) {
+
+            InetSocketAddress address = new InetSocketAddress("localhost", broker.port());
+
+            Map<String, Object> settings = new HashMap<>();
+            settings.put("bootstrap.servers", broker.bootstrapServers());
+            settings.put("security.protocol", "SSL");
+            settings.put("ssl.truststore.type", "PEM");
+            settings.put("ssl.truststore.certificates", SslTestSupport.readFile(SslTestSupport.CERTIFICATES + "/ca.crt"));
+            settings.put("ssl.endpoint.identification.algorithm", "");
+
+            LogContext logContext = new LogContext();
+            ChannelBuilder channelBuilder = ChannelBuilders.clientChannelBuilder(
+                    SecurityProtocol.SSL,
+                    JaasContext.Type.CLIENT,
+                    new AdminClientConfig(settings),
+                    null,
+                    null,
+                    Time.SYSTEM,
+                    false,
+                    logContext);
+
+            try (Metrics metrics = new Metrics();
+                 Selector selector = new Selector(600_000L, metrics, Time.SYSTEM, "benchmark", channelBuilder, logContext)) {
+
+                for (int i = 0; i < connections; i++) {
+                    selector.connect(String.valueOf(i), address,
+                            Selectable.USE_DEFAULT_BUFFER_SIZE, Selectable.USE_DEFAULT_BUFFER_SIZE);
+                }
+
+                boolean[] inFlight = new boolean[connections];
+                int correlationId = 0;
+                long requests = 0L;
+                long bytes0 = 0L;
+                long records0 = 0L;
+                long t0 = 0L;
+                long warmupEnd = System.nanoTime() + 5_000_000_000L;
+                long end = warmupEnd + seconds * 1_000_000_000L;
+
+                for (long now = System.nanoTime(); now < end; now = System.nanoTime()) {
+                    if (t0 == 0L && now >= warmupEnd) {
+                        t0 = now;
+                        requests = 0L;
+                        bytes0 = broker.bytesReceived();
+                        records0 = broker.recordsReceived();
+                    }
+                    for (int i = 0; i < connections; i++) {
+                        String id = String.valueOf(i);
+                        if (!inFlight[i] && selector.isChannelReady(id)) {
+                            selector.send(new NetworkSend(id, ByteBufferSend.sizePrefixed(apiVersionsRequest(correlationId++))));
+                            inFlight[i] = true;
+                        }
+                    }
+                    selector.poll(100L);
+                    if (!selector.disconnected().isEmpty()) {
+                        throw new IllegalStateException("Disconnected: " + selector.disconnected().keySet());
+                    }
+                    for (NetworkReceive receive : selector.completedReceives()) {
+                        inFlight[Integer.parseInt(receive.source())] = false;
+                        requests++;
+                    }
+                }
+
+                long elapsed = System.nanoTime() - t0;
+                long bytes = broker.bytesReceived() - bytes0;
+                long records = broker.recordsReceived() - records0;
+
+                System.out.printf("requests/s:           %.0f%n", requests * 1e9 / elapsed);
+                System.out.printf("records per request:  %.2f%n", (double) records / Math.max(requests, 1L));
+                System.out.printf("wire bytes/request:   %.1f%n", (double) bytes / Math.max(requests, 1L));
+                System.out.printf("coalesced records:    %d (%d buffers)%n", WriteCoalescing.records(), WriteCoalescing.buffers());
+
+            }
+
+        }
+
+    }
+
+    /**
+     * ApiVersions v0 with the request header v1; the size prefix is added by the send.
+     */
+    private static ByteBuffer apiVersionsRequest(int correlationId) {
+        byte[] clientId = "benchmark".getBytes(StandardCharsets.UTF_8);
+        ByteBuffer buffer = ByteBuffer.allocate(10 + clientId.length);
+        buffer.putShort(LoopbackBroker.API_VERSIONS);
+        buffer.putShort((short) 0);
+        buffer.putInt(correlationId);
+        buffer.putShort((short) clientId.length);
+        buffer.put(clientId);
+        buffer.flip();
+        return buffer;
+    }
+
+}
@@ -0,0 +1,112 @@
+package dev.psmolinski.kafka.ssl;
+
+import org.apache.kafka.common.network.TransportLayer;
+import org.assertj.core.api.Assertions;
+import org.junit.jupiter.api.Test;
+
+import java.lang.reflect.Proxy;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+public class WriteCoalescingTest {
+
+    @Test
+    public void testSmallBuffersAreCoalesced() throws Exception {
+
+        Channel channel = new Channel(Integer.MAX_VALUE);
+        ByteBuffer[] srcs = {buffer(4), buffer(100)};
+
+        Assertions.assertThat(WriteCoalescing.write(channel.proxy(), srcs, 0, 2)).isEqualTo(104L);
+
+        Assertions.assertThat(channel.writes).containsExactly(104);
+        Assertions.assertThat(srcs).allMatch(src -> !src.hasRemaining());
+
+    }
+
+    @Test
+    public void testLargeBufferTopsUpRecord() throws Exception {
+
+        Channel channel = new Channel(Integer.MAX_VALUE);
+        ByteBuffer[] srcs = {buffer(4), buffer(20000)};
+
+        Assertions.assertThat(WriteCoalescing.write(channel.proxy(), srcs, 0, 2)).isEqualTo(20004L);
+
+        Assertions.assertThat(channel.writes).containsExactly(WriteCoalescing.MAX_RECORD_SIZE, 20004 - WriteCoalescing.MAX_RECORD_SIZE);
+        Assertions.assertThat(srcs).allMatch(src -> !src.hasRemaining());
+
+    }
+
+    @Test
+    public void testPartialWriteConsumesWrittenBytes() throws Exception {
+
+        Channel channel = new Channel(50);
+        ByteBuffer[] srcs = {buffer(4), buffer(100)};
+
+        Assertions.assertThat(WriteCoalescing.write(channel.proxy(), srcs, 0, 2)).isEqualTo(50L);
+
+        Assertions.assertThat(srcs[0].hasRemaining()).isFalse();
+        Assertions.assertThat(srcs[1].position()).isEqualTo(46);
+
+    }
+
+    @Test
+    public void testNothingToCoalesce() throws Exception {
+
+        Channel channel = new Channel(Integer.MAX_VALUE);
+
+        // single buffer
+        Assertions.assertThat(WriteCoalescing.write(channel.proxy(), new ByteBuffer[]{buffer(4), buffer(0)}, 0, 2)).isEqualTo(-1L);
+        // first buffer fills a record
+        Assertions.assertThat(WriteCoalescing.write(channel.proxy(),
+                new ByteBuffer[]{buffer(WriteCoalescing.MAX_RECORD_SIZE), buffer(4)}, 0, 2)).isEqualTo(-1L);
+        // invalid range, reported by the original method
+        Assertions.assertThat(WriteCoalescing.write(channel.proxy(), new ByteBuffer[]{buffer(4), buffer(4)}, 1, 2)).isEqualTo(-1L);
+
+        Assertions.assertThat(channel.writes).isEmpty();
+
+    }
+
+    private static ByteBuffer buffer(int size) {
+        return ByteBuffer.allocate(size);
+    }
+
+    /**
+     * Transport layer taking up to the given number of bytes in total.
+     */
+    private static class Channel {
+
+        final List<Integer> writes = new ArrayList<>();
+        int capacity;
+
+        Channel(int capacity) {
+            this.capacity = capacity;
+        }
+
+        TransportLayer proxy() {
+            return (TransportLayer) Proxy.newProxyInstance(
+                    getClass().getClassLoader(),
+                    new Class<?>[]{TransportLayer.class},
+                    (proxy, method, args) -> {
+                        switch (method.getName()) {
+                            case "write":
+                                return write((ByteBuffer) args[0]);
+                            case "hasPendingWrites":
+                                return false;
+                            default:
+                                throw new UnsupportedOperationException(method.getName());
+                        }
+                    });
+        }
+
+        int write(ByteBuffer src) {
+            int n = Math.min(src.remaining(), capacity);
+            src.position(src.position() + n);
+            capacity -= n;
+            writes.add(n);
+            return n;
+        }
+
+    }
+
+}